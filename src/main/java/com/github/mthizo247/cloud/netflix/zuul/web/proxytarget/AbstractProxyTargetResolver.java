@@ -17,17 +17,13 @@
 package com.github.mthizo247.cloud.netflix.zuul.web.proxytarget;
 
 import com.github.mthizo247.cloud.netflix.zuul.web.socket.ZuulWebSocketProperties;
-import com.github.mthizo247.cloud.netflix.zuul.web.util.MapPropertyResolver;
-import org.springframework.boot.bind.RelaxedPropertyResolver;
 import org.springframework.cloud.client.ServiceInstance;
 import org.springframework.cloud.netflix.zuul.filters.ZuulProperties;
 import org.springframework.core.Ordered;
 import org.springframework.util.Assert;
-import org.springframework.web.util.UriComponentsBuilder;
 
 import java.net.URI;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 
 /**
  * @author Ronald Mthombeni
@@ -36,6 +32,8 @@ import java.util.Map;
 public abstract class AbstractProxyTargetResolver implements ProxyTargetResolver, Ordered {
     protected ZuulProperties zuulProperties;
     protected int order = 0;
+    protected ProxyTargetHealth targetHealth;
+    protected ProxyTargetZones targetZones;
 
     public AbstractProxyTargetResolver(ZuulProperties zuulProperties) {
         Assert.notNull(zuulProperties, "zuulProperties must not be null");
@@ -50,19 +48,35 @@ public abstract class AbstractProxyTargetResolver implements ProxyTargetResolver
     }
 
     protected URI resolveUri(ServiceInstance serviceInstance) {
-        Map<String, Object> metadata = new HashMap<>();
-        for (Map.Entry<String, String> entry : serviceInstance.getMetadata().entrySet()) {
-            metadata.put(entry.getKey(), entry.getValue());
-        }
+        return ProxyTarget.resolveUri(serviceInstance);
+    }
+
+    /**
+     * @return the targets that aren't ejected, those in the zone of the gateway first if
+     * zone affinity is on
+     */
+    protected List<ProxyTarget> available(List<ProxyTarget> targets) {
+        List<ProxyTarget> candidates = targetZones != null ? targetZones.filter(targets) : targets;
+        return targetHealth != null ? targetHealth.filter(candidates) : candidates;
+    }
 
-        UriComponentsBuilder uriBuilder = UriComponentsBuilder.fromUri(serviceInstance.getUri());
-        RelaxedPropertyResolver propertyResolver = new RelaxedPropertyResolver(new MapPropertyResolver(metadata));
-        String configPath = propertyResolver.getProperty("configPath");
-        if (configPath != null) {
-            uriBuilder.path(configPath);
+    /**
+     * @return the URI of the target chosen among the available ones, its probe is
+     * claimed if it is an ejected target due for one
+     */
+    protected URI choose(ProxyTarget target) {
+        if (targetHealth != null) {
+            targetHealth.isAvailable(target.getUri());
         }
+        return target.getUri();
+    }
+
+    public void setTargetHealth(ProxyTargetHealth targetHealth) {
+        this.targetHealth = targetHealth;
+    }
 
-        return uriBuilder.build().toUri();
+    public void setTargetZones(ProxyTargetZones targetZones) {
+        this.targetZones = targetZones;
     }
 
     @Override
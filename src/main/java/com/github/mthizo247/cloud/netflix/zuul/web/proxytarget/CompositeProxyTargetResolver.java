@@ -17,6 +17,7 @@
 package com.github.mthizo247.cloud.netflix.zuul.web.proxytarget;
 
 import com.github.mthizo247.cloud.netflix.zuul.web.socket.ZuulWebSocketProperties;
+import org.springframework.web.socket.WebSocketSession;
 
 import java.net.URI;
 import java.util.List;
@@ -27,7 +28,7 @@ import java.util.List;
  * @author Ronald Mthombeni
  * @author Salman Noor
  */
-public class CompositeProxyTargetResolver implements ProxyTargetResolver {
+public class CompositeProxyTargetResolver implements SessionAwareProxyTargetResolver {
     private List<ProxyTargetResolver> targetResolvers;
 
     public CompositeProxyTargetResolver(final List<ProxyTargetResolver> targetResolvers) {
@@ -46,6 +47,21 @@ public class CompositeProxyTargetResolver implements ProxyTargetResolver {
         return target;
     }
 
+    @Override
+    public URI resolveTarget(ZuulWebSocketProperties.WsBrokerage wsBrokerage,
+                             WebSocketSession session) {
+        URI target = null;
+        for (ProxyTargetResolver resolver : targetResolvers) {
+            target = resolver instanceof SessionAwareProxyTargetResolver
+                    ? ((SessionAwareProxyTargetResolver) resolver).resolveTarget(wsBrokerage, session)
+                    : resolver.resolveTarget(wsBrokerage);
+            if (target != null)
+                break;
+        }
+
+        return target;
+    }
+
     public List<ProxyTargetResolver> getTargetResolvers() {
         return targetResolvers;
     }
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.proxytarget;
+
+import com.github.mthizo247.cloud.netflix.zuul.web.socket.ZuulWebSocketProperties;
+import org.springframework.cloud.netflix.zuul.filters.ZuulProperties;
+import org.springframework.http.HttpHeaders;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Strategy to resolve zuul proxy target to the same discovered instance for the same
+ * user, for brokerages with
+ * {@link ZuulWebSocketProperties.TargetSelection#CONSISTENT_HASH consistent hash} target
+ * selection.
+ * <p>
+ * Targets are ranked by rendezvous hashing of the session key and the target URI,
+ * weighed by the {@code weight} metadata of the instance. A user only moves when its
+ * instance goes away or an instance ranked higher joins, about 1/N of the users when
+ * there are N instances. The session key is the configured handshake header or cookie,
+ * or else the principal name. Sessions without either are spread by session id.
+ *
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class ConsistentHashProxyTargetResolver extends AbstractProxyTargetResolver
+        implements SessionAwareProxyTargetResolver {
+    public static final int DEFAULT_ORDER = HIGHEST_PRECEDENCE;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final ProxyTargetCache targetCache;
+
+    public ConsistentHashProxyTargetResolver(ProxyTargetCache targetCache,
+                                             ZuulProperties zuulProperties) {
+        super(zuulProperties);
+        Assert.notNull(targetCache, "targetCache can't be null");
+        this.targetCache = targetCache;
+        this.order = DEFAULT_ORDER;
+    }
+
+    @Override
+    public URI resolveTarget(ZuulWebSocketProperties.WsBrokerage wsBrokerage) {
+        // nothing to hash without a session
+        return null;
+    }
+
+    @Override
+    public URI resolveTarget(ZuulWebSocketProperties.WsBrokerage wsBrokerage,
+                             WebSocketSession session) {
+        if (wsBrokerage.getTargetSelection() != ZuulWebSocketProperties.TargetSelection.CONSISTENT_HASH) {
+            return null;
+        }
+
+        ZuulProperties.ZuulRoute zuulRoute = resolveRoute(wsBrokerage);
+        if (zuulRoute == null || StringUtils.isEmpty(zuulRoute.getServiceId())) return null;
+
+        // users of an ejected target go to their next ranked one meanwhile
+        List<ProxyTarget> targets = available(targetCache.getTargets(zuulRoute.getServiceId()));
+        if (targets.isEmpty()) {
+            return null;
+        }
+
+        long key = hash(resolveKey(wsBrokerage, session));
+        ProxyTarget selected = null;
+        double selectedScore = 0;
+        for (ProxyTarget target : targets) {
+            double score = score(key, target);
+            if (selected == null || score > selectedScore) {
+                selected = target;
+                selectedScore = score;
+            }
+        }
+        return choose(selected);
+    }
+
+    static String resolveKey(ZuulWebSocketProperties.WsBrokerage wsBrokerage,
+                             WebSocketSession session) {
+        HttpHeaders headers = session.getHandshakeHeaders();
+        String header = wsBrokerage.getHashKeyHeader();
+        if (header != null && headers != null && StringUtils.hasText(headers.getFirst(header))) {
+            return headers.getFirst(header);
+        }
+
+        String cookie = wsBrokerage.getHashKeyCookie();
+        if (cookie != null && headers != null) {
+            String value = getCookie(headers, cookie);
+            if (StringUtils.hasText(value)) {
+                return value;
+            }
+        }
+
+        return session.getPrincipal() != null ? session.getPrincipal().getName()
+                : session.getId();
+    }
+
+    private static String getCookie(HttpHeaders headers, String name) {
+        List<String> cookieHeaders = headers.get(HttpHeaders.COOKIE);
+        if (cookieHeaders == null) {
+            return null;
+        }
+
+        for (String cookieHeader : cookieHeaders) {
+            for (String cookie : cookieHeader.split(";")) {
+                int eq = cookie.indexOf('=');
+                if (eq > 0 && cookie.substring(0, eq).trim().equals(name)) {
+                    return cookie.substring(eq + 1).trim();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the weighted rendezvous score of the target for the key, the target
+     * with the highest score wins
+     */
+    private static double score(long key, ProxyTarget target) {
+        long hash = mix(key ^ hash(target.getUri().toString()));
+        // uniform in (0, 1)
+        double uniform = ((hash >>> 11) + 0.5) / (1L << 53);
+        return -target.getWeight() / Math.log(uniform);
+    }
+
+    private static long hash(String value) {
+        // FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(UTF8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long z) {
+        // splitmix64 finalizer
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -36,6 +36,7 @@ import java.util.List;
 public class EurekaProxyTargetResolver extends AbstractProxyTargetResolver {
     public static final int DEFAULT_ORDER = LoadBalancedProxyTargetResolver.DEFAULT_ORDER + 10;
     private DiscoveryClient discoveryClient;
+    private ProxyTargetCache targetCache;
 
     public EurekaProxyTargetResolver(DiscoveryClient discoveryClient, ZuulProperties zuulProperties) {
         super(zuulProperties);
@@ -44,12 +45,27 @@ public class EurekaProxyTargetResolver extends AbstractProxyTargetResolver {
         this.order = DEFAULT_ORDER;
     }
 
+    /**
+     * Resolves targets from the instances cached by the given cache.
+     */
+    public EurekaProxyTargetResolver(ProxyTargetCache targetCache, ZuulProperties zuulProperties) {
+        super(zuulProperties);
+        Assert.notNull(targetCache, "targetCache can't be null");
+        this.targetCache = targetCache;
+        this.order = DEFAULT_ORDER;
+    }
+
 
     @Override
     public URI resolveTarget(ZuulWebSocketProperties.WsBrokerage wsBrokerage) {
         ZuulProperties.ZuulRoute zuulRoute = resolveRoute(wsBrokerage);
         if (zuulRoute == null || StringUtils.isEmpty(zuulRoute.getServiceId())) return null;
 
+        if (targetCache != null) {
+            List<ProxyTarget> targets = available(targetCache.getTargets(zuulRoute.getServiceId()));
+            return targets.isEmpty() ? null : choose(targets.get(0));
+        }
+
         List<ServiceInstance> instances = discoveryClient.getInstances(zuulRoute.getServiceId());
         ServiceInstance serviceInstance = CollectionUtils.isEmpty(instances) ? null : instances.get(0);
         return serviceInstance != null ? resolveUri(serviceInstance) : null;
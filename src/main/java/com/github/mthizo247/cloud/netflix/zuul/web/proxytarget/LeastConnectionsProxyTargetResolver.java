@@ -0,0 +1,114 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.proxytarget;
+
+import com.github.mthizo247.cloud.netflix.zuul.web.socket.ZuulWebSocketProperties;
+import org.springframework.cloud.netflix.zuul.filters.ZuulProperties;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Strategy to resolve zuul proxy target to the discovered instance with the fewest
+ * proxied sessions, for brokerages with
+ * {@link ZuulWebSocketProperties.TargetSelection#LEAST_CONNECTIONS least connections} or
+ * {@link ZuulWebSocketProperties.TargetSelection#POWER_OF_TWO_CHOICES power of two
+ * choices} target selection.
+ * <p>
+ * Sessions are weighed against the {@code weight} metadata of an instance, an instance
+ * of weight 2 takes twice the sessions of one of weight 1.
+ *
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class LeastConnectionsProxyTargetResolver extends AbstractProxyTargetResolver {
+    public static final int DEFAULT_ORDER = HIGHEST_PRECEDENCE;
+    private final ProxyTargetCache targetCache;
+    private final ProxyTargetConnections connections;
+
+    public LeastConnectionsProxyTargetResolver(ProxyTargetCache targetCache,
+                                               ProxyTargetConnections connections,
+                                               ZuulProperties zuulProperties) {
+        super(zuulProperties);
+        Assert.notNull(targetCache, "targetCache can't be null");
+        Assert.notNull(connections, "connections can't be null");
+        this.targetCache = targetCache;
+        this.connections = connections;
+        this.order = DEFAULT_ORDER;
+    }
+
+    @Override
+    public URI resolveTarget(ZuulWebSocketProperties.WsBrokerage wsBrokerage) {
+        ZuulWebSocketProperties.TargetSelection selection = wsBrokerage.getTargetSelection();
+        if (selection != ZuulWebSocketProperties.TargetSelection.LEAST_CONNECTIONS
+                && selection != ZuulWebSocketProperties.TargetSelection.POWER_OF_TWO_CHOICES) {
+            return null;
+        }
+
+        ZuulProperties.ZuulRoute zuulRoute = resolveRoute(wsBrokerage);
+        if (zuulRoute == null || StringUtils.isEmpty(zuulRoute.getServiceId())) return null;
+
+        List<ProxyTarget> targets = available(targetCache.getTargets(zuulRoute.getServiceId()));
+        if (targets.isEmpty()) {
+            return null;
+        }
+
+        ProxyTarget target = selection == ZuulWebSocketProperties.TargetSelection.LEAST_CONNECTIONS
+                ? leastLoaded(targets) : leastLoadedOfTwo(targets);
+        return choose(target);
+    }
+
+    private ProxyTarget leastLoaded(List<ProxyTarget> targets) {
+        ProxyTarget selected = null;
+        double selectedLoad = 0;
+        int ties = 0;
+        for (ProxyTarget target : targets) {
+            double load = load(target);
+            if (selected == null || load < selectedLoad) {
+                selected = target;
+                selectedLoad = load;
+                ties = 1;
+            } else if (load == selectedLoad
+                    && ThreadLocalRandom.current().nextInt(++ties) == 0) {
+                // equally loaded targets are picked at random, not always the first
+                selected = target;
+            }
+        }
+        return selected;
+    }
+
+    private ProxyTarget leastLoadedOfTwo(List<ProxyTarget> targets) {
+        if (targets.size() < 3) {
+            return leastLoaded(targets);
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(targets.size());
+        int second = random.nextInt(targets.size() - 1);
+        second = second >= first ? second + 1 : second;
+        ProxyTarget a = targets.get(first);
+        ProxyTarget b = targets.get(second);
+        return load(a) <= load(b) ? a : b;
+    }
+
+    private double load(ProxyTarget target) {
+        return connections.getCount(target.getUri()) / (double) target.getWeight();
+    }
+}
@@ -33,6 +33,7 @@ import java.net.URI;
  */
 public class LoadBalancedProxyTargetResolver extends AbstractProxyTargetResolver {
     public static final int DEFAULT_ORDER = HIGHEST_PRECEDENCE + 10;
+    private static final int MAX_CHOICES = 3;
 
     private LoadBalancerClient loadBalancerClient;
 
@@ -48,8 +49,16 @@ public class LoadBalancedProxyTargetResolver extends AbstractProxyTargetResolver
         ZuulProperties.ZuulRoute zuulRoute = resolveRoute(wsBrokerage);
         if (zuulRoute == null || StringUtils.isEmpty(zuulRoute.getServiceId())) return null;
 
-        ServiceInstance serviceInstance = loadBalancerClient.choose(zuulRoute.getServiceId());
-        return serviceInstance != null ? resolveUri(serviceInstance) : null;
+        URI target = null;
+        for (int i = 0; i < MAX_CHOICES; i++) {
+            ServiceInstance serviceInstance = loadBalancerClient.choose(zuulRoute.getServiceId());
+            target = serviceInstance != null ? resolveUri(serviceInstance) : null;
+            // the load balancer doesn't know about ejected targets, ask it again
+            if (target == null || targetHealth == null || targetHealth.isAvailable(target)) {
+                break;
+            }
+        }
+        return target;
     }
 
 
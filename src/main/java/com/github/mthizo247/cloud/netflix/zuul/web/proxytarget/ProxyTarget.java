@@ -0,0 +1,100 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.proxytarget;
+
+import com.github.mthizo247.cloud.netflix.zuul.web.util.MapPropertyResolver;
+import org.springframework.boot.bind.RelaxedPropertyResolver;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A backend service instance together with the target URI web socket sessions are
+ * proxied to, which honours the {@code configPath} metadata of the instance, its
+ * {@code weight} and {@code zone}.
+ *
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public final class ProxyTarget {
+    private final ServiceInstance serviceInstance;
+    private final URI uri;
+    private final int weight;
+    private final String zone;
+
+    public ProxyTarget(ServiceInstance serviceInstance) {
+        this.serviceInstance = serviceInstance;
+        this.uri = resolveUri(serviceInstance);
+        this.weight = resolveWeight(serviceInstance);
+        this.zone = serviceInstance.getMetadata().get("zone");
+    }
+
+    public ServiceInstance getServiceInstance() {
+        return serviceInstance;
+    }
+
+    public URI getUri() {
+        return uri;
+    }
+
+    /**
+     * @return the {@code weight} metadata of the instance, 1 if it has none
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return the {@code zone} metadata of the instance, {@code null} if it has none
+     */
+    public String getZone() {
+        return zone;
+    }
+
+    private static int resolveWeight(ServiceInstance serviceInstance) {
+        String weight = serviceInstance.getMetadata().get("weight");
+        try {
+            return weight != null ? Math.max(Integer.parseInt(weight.trim()), 1) : 1;
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    static URI resolveUri(ServiceInstance serviceInstance) {
+        Map<String, Object> metadata = new HashMap<>();
+        for (Map.Entry<String, String> entry : serviceInstance.getMetadata().entrySet()) {
+            metadata.put(entry.getKey(), entry.getValue());
+        }
+
+        UriComponentsBuilder uriBuilder = UriComponentsBuilder.fromUri(serviceInstance.getUri());
+        RelaxedPropertyResolver propertyResolver = new RelaxedPropertyResolver(new MapPropertyResolver(metadata));
+        String configPath = propertyResolver.getProperty("configPath");
+        if (configPath != null) {
+            uriBuilder.path(configPath);
+        }
+
+        return uriBuilder.build().toUri();
+    }
+
+    @Override
+    public String toString() {
+        return uri.toString();
+    }
+}
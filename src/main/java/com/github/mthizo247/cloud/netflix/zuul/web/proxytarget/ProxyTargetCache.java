@@ -0,0 +1,137 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.proxytarget;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Caches the {@link ProxyTarget}s of the services looked up in a {@link DiscoveryClient},
+ * target URIs are computed once per lookup instead of once per connection.
+ * <p>
+ * The targets of a service are looked up again in the background once they are within
+ * the refresh ahead millis of their time to live, and synchronously once it is up, by a
+ * single caller while the others go on with the expired targets. When the lookup fails
+ * the targets of the previous lookup are used for the failure backoff millis before it
+ * is tried again.
+ *
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class ProxyTargetCache {
+    private final Log logger = LogFactory.getLog(ProxyTargetCache.class);
+    private final DiscoveryClient discoveryClient;
+    private final TaskScheduler taskScheduler;
+    private final long timeToLive;
+    private final long refreshAhead;
+    private final long failureBackoff;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public ProxyTargetCache(DiscoveryClient discoveryClient, TaskScheduler taskScheduler,
+                            long timeToLive, long refreshAhead, long failureBackoff) {
+        Assert.notNull(discoveryClient, "discoveryClient can't be null");
+        Assert.notNull(taskScheduler, "taskScheduler can't be null");
+        this.discoveryClient = discoveryClient;
+        this.taskScheduler = taskScheduler;
+        this.timeToLive = timeToLive;
+        this.refreshAhead = refreshAhead;
+        this.failureBackoff = failureBackoff;
+    }
+
+    /**
+     * @return the targets of the given service, empty if it has no instances
+     */
+    public List<ProxyTarget> getTargets(final String serviceId) {
+        Entry entry = entries.get(serviceId);
+        if (entry == null) {
+            return load(serviceId, null);
+        }
+
+        long age = System.currentTimeMillis() - entry.loadedAt;
+        if (age > entry.timeToLive) {
+            // one caller looks the targets up again, the others use the expired ones
+            if (entry.loading.compareAndSet(false, true)) {
+                return load(serviceId, entry);
+            }
+            return entry.targets;
+        }
+
+        if (!entry.stale && refreshAhead > 0 && age >= entry.timeToLive - refreshAhead
+                && entry.loading.compareAndSet(false, true)) {
+            taskScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    load(serviceId, entries.get(serviceId));
+                }
+            }, new Date());
+        }
+        return entry.targets;
+    }
+
+    private List<ProxyTarget> load(String serviceId, Entry stale) {
+        List<ServiceInstance> instances;
+        try {
+            instances = discoveryClient.getInstances(serviceId);
+        } catch (Exception e) {
+            if (stale == null) {
+                throw e;
+            }
+
+            logger.warn("Using stale targets of " + serviceId + ", discovery failed: " + e);
+            // not looked up again before the backoff is up
+            entries.replace(serviceId, stale, new Entry(stale.targets, failureBackoff, true));
+            return stale.targets;
+        }
+
+        List<ProxyTarget> targets = new ArrayList<>();
+        if (instances != null) {
+            for (ServiceInstance instance : instances) {
+                targets.add(new ProxyTarget(instance));
+            }
+        }
+
+        Entry entry = new Entry(Collections.unmodifiableList(targets), timeToLive, false);
+        entries.put(serviceId, entry);
+        return entry.targets;
+    }
+
+    private static final class Entry {
+        private final List<ProxyTarget> targets;
+        private final long loadedAt = System.currentTimeMillis();
+        private final long timeToLive;
+        private final boolean stale;
+        private final AtomicBoolean loading = new AtomicBoolean();
+
+        Entry(List<ProxyTarget> targets, long timeToLive, boolean stale) {
+            this.targets = targets;
+            this.timeToLive = timeToLive;
+            this.stale = stale;
+        }
+    }
+}
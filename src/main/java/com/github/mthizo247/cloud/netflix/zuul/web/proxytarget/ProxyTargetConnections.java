@@ -0,0 +1,54 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.proxytarget;
+
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the proxied sessions connected to each resolved target.
+ *
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class ProxyTargetConnections {
+    private final ConcurrentMap<URI, AtomicInteger> connections = new ConcurrentHashMap<>();
+
+    public void connected(URI target) {
+        AtomicInteger count = connections.get(target);
+        if (count == null) {
+            AtomicInteger created = new AtomicInteger();
+            count = connections.putIfAbsent(target, created);
+            count = count == null ? created : count;
+        }
+        count.incrementAndGet();
+    }
+
+    public void disconnected(URI target) {
+        AtomicInteger count = connections.get(target);
+        if (count != null) {
+            count.decrementAndGet();
+        }
+    }
+
+    public int getCount(URI target) {
+        AtomicInteger count = connections.get(target);
+        return count != null ? Math.max(count.get(), 0) : 0;
+    }
+}
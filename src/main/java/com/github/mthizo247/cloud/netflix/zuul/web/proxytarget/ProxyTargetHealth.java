@@ -0,0 +1,201 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.proxytarget;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Records the outcome and time of the connects to each resolved target and ejects the
+ * outliers, targets that fail too many connects or connect too slowly.
+ * <p>
+ * Connects are judged in windows of a minimum number of connects. An ejected target
+ * is not resolved for the ejection time, then it is probed with at most one connect
+ * per probe interval until a probe connects in time, or is ejected again for longer.
+ *
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class ProxyTargetHealth {
+    private static final int MAX_EJECTION_FACTOR = 10;
+    private static final double CONNECT_TIME_WEIGHT = 0.2;
+    private final Log logger = LogFactory.getLog(ProxyTargetHealth.class);
+    private final int minConnects;
+    private final double maxErrorRate;
+    private final long maxConnectTime;
+    private final long ejectionTime;
+    private final long probeInterval;
+    private final ConcurrentMap<URI, Stats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxConnectTime the average connect millis over which a target is ejected,
+     *                       0 to never eject slow targets
+     */
+    public ProxyTargetHealth(int minConnects, double maxErrorRate, long maxConnectTime,
+                             long ejectionTime, long probeInterval) {
+        this.minConnects = Math.max(minConnects, 1);
+        this.maxErrorRate = maxErrorRate;
+        this.maxConnectTime = maxConnectTime;
+        this.ejectionTime = ejectionTime;
+        this.probeInterval = probeInterval;
+    }
+
+    public void connectSucceeded(URI target, long connectTime) {
+        getStats(target).record(true, connectTime);
+    }
+
+    public void connectFailed(URI target) {
+        getStats(target).record(false, 0);
+    }
+
+    /**
+     * @return whether the given target may be connected to, a target due for a probe
+     * is only available to one caller per probe interval, only ask for the target
+     * actually connected to
+     */
+    public boolean isAvailable(URI target) {
+        Stats targetStats = stats.get(target);
+        return targetStats == null || targetStats.isAvailable(System.currentTimeMillis());
+    }
+
+    public boolean isEjected(URI target) {
+        Stats targetStats = stats.get(target);
+        return targetStats != null && targetStats.isEjected();
+    }
+
+    /**
+     * @return the available targets among the given ones, all of them if none is
+     * available rather than none. Targets due for a probe are kept without claiming
+     * the probe, see {@link #isAvailable(URI)} for the target chosen among them.
+     */
+    public List<ProxyTarget> filter(List<ProxyTarget> targets) {
+        long now = System.currentTimeMillis();
+        List<ProxyTarget> available = null;
+        for (int i = 0; i < targets.size(); i++) {
+            ProxyTarget target = targets.get(i);
+            Stats targetStats = stats.get(target.getUri());
+            if (targetStats == null || targetStats.isProbeDue(now)) {
+                if (available != null) {
+                    available.add(target);
+                }
+            } else if (available == null) {
+                available = new ArrayList<>(targets.subList(0, i));
+            }
+        }
+
+        if (available == null) {
+            return targets;
+        }
+        return available.isEmpty() ? targets : available;
+    }
+
+    private Stats getStats(URI target) {
+        Stats targetStats = stats.get(target);
+        if (targetStats == null) {
+            Stats created = new Stats(target);
+            targetStats = stats.putIfAbsent(target, created);
+            targetStats = targetStats == null ? created : targetStats;
+        }
+        return targetStats;
+    }
+
+    private final class Stats {
+        private final URI target;
+        private int connects;
+        private int failures;
+        private double connectTime = -1;
+        private int ejections;
+        private long ejectedUntil;
+        private long nextProbeAt;
+
+        Stats(URI target) {
+            this.target = target;
+        }
+
+        synchronized void record(boolean succeeded, long time) {
+            long now = System.currentTimeMillis();
+            if (ejections > 0) {
+                // a probe, or a connect resolved before the ejection
+                if (succeeded && (maxConnectTime <= 0 || time <= maxConnectTime)) {
+                    logger.info("Proxy target " + target + " is back");
+                    ejections = 0;
+                    ejectedUntil = 0;
+                    connects = 0;
+                    failures = 0;
+                    connectTime = time;
+                } else if (now >= ejectedUntil) {
+                    eject(now, "failed its probe");
+                }
+                return;
+            }
+
+            connects++;
+            if (succeeded) {
+                connectTime = connectTime < 0 ? time
+                        : connectTime + CONNECT_TIME_WEIGHT * (time - connectTime);
+            } else {
+                failures++;
+            }
+
+            if (connects >= minConnects) {
+                if (failures > maxErrorRate * connects) {
+                    eject(now, failures + " of " + connects + " connects failed");
+                } else if (maxConnectTime > 0 && connectTime > maxConnectTime) {
+                    eject(now, "connects take " + (long) connectTime + " millis");
+                }
+                connects = 0;
+                failures = 0;
+            }
+        }
+
+        private void eject(long now, String reason) {
+            ejections++;
+            ejectedUntil = now + ejectionTime * Math.min(ejections, MAX_EJECTION_FACTOR);
+            nextProbeAt = ejectedUntil;
+            logger.warn("Ejecting proxy target " + target + " until "
+                    + new Date(ejectedUntil) + ", " + reason);
+        }
+
+        synchronized boolean isEjected() {
+            return ejections > 0;
+        }
+
+        synchronized boolean isProbeDue(long now) {
+            return ejections == 0 || now >= nextProbeAt;
+        }
+
+        synchronized boolean isAvailable(long now) {
+            if (ejections == 0) {
+                return true;
+            }
+
+            if (now < nextProbeAt) {
+                return false;
+            }
+
+            nextProbeAt = now + probeInterval;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.proxytarget;
+
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps proxied sessions in the availability zone of the gateway, by the {@code zone}
+ * metadata of the discovered instances.
+ * <p>
+ * The instances in the zone of the gateway are preferred as long as the weight of
+ * those not ejected by the {@link ProxyTargetHealth} is at least the minimum share of
+ * the weight of all of them. Below it, or without instances in the zone, the instances
+ * of all zones are used.
+ *
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class ProxyTargetZones {
+    private final String zone;
+    private final double minLocalCapacity;
+    private ProxyTargetHealth targetHealth;
+
+    /**
+     * @param zone             the zone of the gateway, {@code null} to prefer no zone
+     * @param minLocalCapacity the share of the weight of the instances in the zone that
+     *                         must be healthy for them to be preferred
+     */
+    public ProxyTargetZones(String zone, double minLocalCapacity) {
+        Assert.isTrue(minLocalCapacity >= 0 && minLocalCapacity <= 1,
+                "minLocalCapacity must be between 0 and 1");
+        this.zone = StringUtils.hasText(zone) ? zone.trim() : null;
+        this.minLocalCapacity = minLocalCapacity;
+    }
+
+    public void setTargetHealth(ProxyTargetHealth targetHealth) {
+        this.targetHealth = targetHealth;
+    }
+
+    public String getZone() {
+        return zone;
+    }
+
+    /**
+     * @return the given targets in the zone of the gateway if they have the capacity,
+     * all given targets otherwise
+     */
+    public List<ProxyTarget> filter(List<ProxyTarget> targets) {
+        if (zone == null) {
+            return targets;
+        }
+
+        List<ProxyTarget> local = new ArrayList<>();
+        long capacity = 0;
+        long healthyCapacity = 0;
+        for (ProxyTarget target : targets) {
+            if (zone.equalsIgnoreCase(target.getZone())) {
+                local.add(target);
+                capacity += target.getWeight();
+                if (targetHealth == null || !targetHealth.isEjected(target.getUri())) {
+                    healthyCapacity += target.getWeight();
+                }
+            }
+        }
+
+        if (local.size() == targets.size()) {
+            return targets;
+        }
+        return healthyCapacity > 0 && healthyCapacity >= minLocalCapacity * capacity
+                ? local : targets;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.socket;
+
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.util.Assert;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the last frame received from a backend server per destination, so new
+ * subscribers can be sent the current value right away instead of waiting for the next
+ * publish.
+ * <p>
+ * The cache is bounded by entry count and total body bytes, the least recently used
+ * entries are evicted first. Entries older than the time to live are never returned.
+ *
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class LastValueCache {
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long timeToLive;
+    private final LinkedHashMap<String, LastValue> values = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    /**
+     * @param timeToLive the millis a value is served for, 0 to serve it until evicted
+     */
+    public LastValueCache(int maxEntries, long maxBytes, long timeToLive) {
+        Assert.isTrue(maxEntries > 0, "maxEntries must be positive");
+        Assert.isTrue(maxBytes > 0, "maxBytes must be positive");
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Caches the given frame as the last value of the destination on the given backend
+     * server.
+     */
+    public void put(String uri, String destination, StompHeaders headers, byte[] body) {
+        if (body.length > maxBytes) {
+            return;
+        }
+
+        String key = key(uri, destination);
+        synchronized (values) {
+            LastValue previous = values.get(key);
+            if (previous != null && previous.body == body) {
+                // the same frame fanned out to another subscriber
+                return;
+            }
+
+            if (previous != null) {
+                bytes -= previous.body.length;
+            }
+            values.put(key, new LastValue(copyHeaders(headers), body));
+            bytes += body.length;
+            evict();
+        }
+    }
+
+    /**
+     * @return the last value of the destination on the given backend server,
+     * {@code null} if there is none or it expired
+     */
+    public LastValue get(String uri, String destination) {
+        String key = key(uri, destination);
+        synchronized (values) {
+            LastValue value = values.get(key);
+            if (value != null && isExpired(value, System.currentTimeMillis())) {
+                values.remove(key);
+                bytes -= value.body.length;
+                return null;
+            }
+            return value;
+        }
+    }
+
+    public int size() {
+        synchronized (values) {
+            return values.size();
+        }
+    }
+
+    public long getBytes() {
+        synchronized (values) {
+            return bytes;
+        }
+    }
+
+    private void evict() {
+        long now = System.currentTimeMillis();
+        Iterator<LastValue> iterator = values.values().iterator();
+        while (iterator.hasNext()) {
+            LastValue eldest = iterator.next();
+            if (values.size() <= maxEntries && bytes <= maxBytes
+                    && !isExpired(eldest, now)) {
+                return;
+            }
+            iterator.remove();
+            bytes -= eldest.body.length;
+        }
+    }
+
+    private boolean isExpired(LastValue value, long now) {
+        return timeToLive > 0 && now - value.timestamp > timeToLive;
+    }
+
+    private static StompHeaders copyHeaders(StompHeaders headers) {
+        StompHeaders copy = new StompHeaders();
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            copy.put(header.getKey(), header.getValue());
+        }
+        // every delivery gets a message id and subscription of its own
+        copy.remove(StompHeaders.MESSAGE_ID);
+        copy.remove(StompHeaders.SUBSCRIPTION);
+        return copy;
+    }
+
+    private static String key(String uri, String destination) {
+        return uri + " " + destination;
+    }
+
+    public static final class LastValue {
+        private final StompHeaders headers;
+        private final byte[] body;
+        private final long timestamp = System.currentTimeMillis();
+
+        LastValue(StompHeaders headers, byte[] body) {
+            this.headers = headers;
+            this.body = body;
+        }
+
+        /**
+         * @return the headers of the frame, copy them before changing them
+         */
+        public StompHeaders getHeaders() {
+            return headers;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.socket;
+
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A web socket connection manager that multiplexes the user agent session over a STOMP
+ * session shared with other user agents connected to the same backend server.
+ * <p>
+ * Subscriptions of the user agent are mapped onto subscriptions of the shared session,
+ * frames received on them are sent back to the owning user agent session only. As the
+ * handshake of the shared session cannot carry per user credentials, the headers
+ * supplied by the {@link WebSocketHttpHeadersCallback} are added to every SEND and
+ * SUBSCRIBE frame instead.
+ * <p>
+ * User destinations are refused with an ERROR frame, the backend resolves them by the
+ * principal of the shared session, so every user agent on it would share one user
+ * queue.
+ *
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class MultiplexedProxyWebSocketConnectionManager extends ProxyWebSocketConnectionManager {
+    private final SimpMessagingTemplate messagingTemplate;
+    private final ProxyStompSessionPool sessionPool;
+    private final int poolSize;
+    private volatile Map<String, List<String>> userHeaders;
+
+    public MultiplexedProxyWebSocketConnectionManager(SimpMessagingTemplate messagingTemplate,
+                                                      WebSocketStompClient stompClient,
+                                                      WebSocketSession userAgentSession,
+                                                      WebSocketHttpHeadersCallback httpHeadersCallback,
+                                                      String uri,
+                                                      ProxyStompSessionPool sessionPool,
+                                                      UserAgentMessageSender messageSender,
+                                                      int poolSize) {
+        super(messagingTemplate, stompClient, userAgentSession, httpHeadersCallback, uri);
+        this.messagingTemplate = messagingTemplate;
+        this.sessionPool = sessionPool;
+        this.poolSize = poolSize;
+        messageSender(messageSender);
+    }
+
+    @Override
+    public void subscribe(String subscriptionId, String destination, String ackMode)
+            throws Exception {
+        if (!isUserDestination(destination)) {
+            super.subscribe(subscriptionId, destination, ackMode);
+        }
+    }
+
+    @Override
+    public void sendMessage(StompHeaders headers, Object msg) {
+        if (!isUserDestination(headers.getDestination())) {
+            super.sendMessage(headers, msg);
+        }
+    }
+
+    /**
+     * @return whether the given destination is a user destination, the user agent is
+     * sent an ERROR frame if it is
+     */
+    private boolean isUserDestination(String destination) {
+        String prefix = messagingTemplate.getUserDestinationPrefix();
+        if (destination == null || prefix == null || !destination.startsWith(prefix)) {
+            return false;
+        }
+
+        logger.warn("Refusing user destination " + destination + " of multiplexed session "
+                + userAgentSession.getId());
+        failUserAgent("User destinations are not supported on multiplexed sessions: "
+                + destination);
+        return true;
+    }
+
+    @Override
+    protected ListenableFuture<StompSession> connectToProxiedTarget() {
+        return sessionPool.acquire(getUri().toString(), poolSize, this);
+    }
+
+    @Override
+    protected void closeConnection() throws Exception {
+        cancelConnect();
+        unsubscribeAll();
+        sessionPool.release(getUri().toString(), this);
+    }
+
+    @Override
+    public void retarget(URI proxyTarget, String uri) {
+        // the shared session of the old target is no longer ours
+        sessionPool.release(getUri().toString(), this);
+        super.retarget(proxyTarget, uri);
+    }
+
+    @Override
+    protected void discard(StompSession session) {
+        // the lease outlived the cancelled connect, other user agents use the session
+        if (!isConnected() && !isConnecting()) {
+            sessionPool.release(getUri().toString(), this);
+        }
+    }
+
+    @Override
+    protected void retire(StompSession session) {
+        // other user agents go on using the shared session, its slot is released already
+    }
+
+    @Override
+    protected StompHeaders createHeaders(String destination) {
+        StompHeaders headers = super.createHeaders(destination);
+        for (Map.Entry<String, List<String>> header : getUserHeaders().entrySet()) {
+            headers.put(header.getKey(), new ArrayList<>(header.getValue()));
+        }
+        return headers;
+    }
+
+    private Map<String, List<String>> getUserHeaders() {
+        if (userHeaders == null) {
+            userHeaders = buildWebSocketHttpHeaders();
+        }
+        return userHeaders;
+    }
+
+    @Override
+    protected StompSession.Receiptable sendToProxiedTarget(StompHeaders headers,
+                                                           Object payload) {
+        // the user agent can't override the headers it is authenticated by
+        for (Map.Entry<String, List<String>> header : getUserHeaders().entrySet()) {
+            headers.put(header.getKey(), new ArrayList<>(header.getValue()));
+        }
+        return super.sendToProxiedTarget(headers, payload);
+    }
+
+    @Override
+    protected void handleFrame(ProxySubscription subscription, StompHeaders headers,
+                               Object payload) {
+        messageSender.sendMessage(userAgentSession, subscription.getId(), headers, payload);
+    }
+}
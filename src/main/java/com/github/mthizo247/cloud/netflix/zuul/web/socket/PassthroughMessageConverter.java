@@ -0,0 +1,47 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.socket;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.MessageConverter;
+
+/**
+ * Hands out frame bodies as they were received whenever a {@code byte[]} payload is
+ * asked for, whatever their content type. Put in front of the converters of the proxy
+ * STOMP client so backend bodies of brokerages in payload passthrough mode are never
+ * parsed.
+ *
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class PassthroughMessageConverter implements MessageConverter {
+
+    @Override
+    public Object fromMessage(Message<?> message, Class<?> targetClass) {
+        if (targetClass == byte[].class && message.getPayload() instanceof byte[]) {
+            return message.getPayload();
+        }
+        return null;
+    }
+
+    @Override
+    public Message<?> toMessage(Object payload, MessageHeaders headers) {
+        // left to the other converters
+        return null;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.socket;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.util.Assert;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Reconnects connection managers that lost their backend session, on a shared
+ * {@link TaskScheduler} instead of a thread per connection.
+ * <p>
+ * Attempts are delayed with exponential backoff and full jitter as configured by the
+ * {@link ZuulWebSocketProperties.Reconnect} settings of the brokerage, and no more than
+ * a fixed number of reconnects are in flight at any time. The user agent is sent an
+ * ERROR frame once the attempts are exhausted.
+ *
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class ProxyReconnectScheduler {
+    private final Log logger = LogFactory.getLog(ProxyReconnectScheduler.class);
+    private final TaskScheduler taskScheduler;
+    private final int maxConcurrentReconnects;
+    private final Semaphore inFlight;
+    private final ZuulWebSocketMetrics metrics;
+    private final ConcurrentMap<ProxyWebSocketConnectionManager, Integer> attempts = new ConcurrentHashMap<>();
+
+    public ProxyReconnectScheduler(TaskScheduler taskScheduler, int maxConcurrentReconnects,
+                                   ZuulWebSocketMetrics metrics) {
+        Assert.notNull(taskScheduler, "taskScheduler must not be null");
+        Assert.isTrue(maxConcurrentReconnects > 0, "maxConcurrentReconnects must be positive");
+        Assert.notNull(metrics, "metrics must not be null");
+        this.taskScheduler = taskScheduler;
+        this.maxConcurrentReconnects = maxConcurrentReconnects;
+        this.inFlight = new Semaphore(maxConcurrentReconnects);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Schedules the reconnection of the given connection manager unless reconnection is
+     * disabled for its brokerage or it is already being reconnected.
+     *
+     * @return whether a reconnection was scheduled
+     */
+    public boolean scheduleReconnect(ProxyWebSocketConnectionManager connectionManager) {
+        if (!getPolicy(connectionManager).isEnabled()) {
+            return false;
+        }
+
+        if (attempts.putIfAbsent(connectionManager, 0) != null) {
+            return false;
+        }
+
+        connectionManager.reconnectScheduled(true);
+        schedule(connectionManager, 0);
+        return true;
+    }
+
+    /**
+     * @return whether the given connection manager is waiting for or in the middle of a
+     * reconnection
+     */
+    public boolean isReconnecting(ProxyWebSocketConnectionManager connectionManager) {
+        return attempts.containsKey(connectionManager);
+    }
+
+    public int getReconnectsInFlight() {
+        return maxConcurrentReconnects - inFlight.availablePermits();
+    }
+
+    public int getPendingReconnects() {
+        return attempts.size();
+    }
+
+    private void schedule(final ProxyWebSocketConnectionManager connectionManager,
+                          final int attempt) {
+        long delay = backoff(getPolicy(connectionManager), attempt);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Reconnect attempt " + (attempt + 1) + " of " + connectionManager
+                    + " in " + delay + " millis");
+        }
+
+        taskScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                attempt(connectionManager, attempt);
+            }
+        }, new Date(System.currentTimeMillis() + delay));
+    }
+
+    /**
+     * @return a random delay between 0 and the exponentially growing ceiling of the
+     * given attempt
+     */
+    long backoff(ZuulWebSocketProperties.Reconnect policy, int attempt) {
+        double ceiling = policy.getInitialInterval() * Math.pow(policy.getMultiplier(), attempt);
+        long bound = (long) Math.min(policy.getMaxInterval(), ceiling);
+        return bound > 0 ? ThreadLocalRandom.current().nextLong(bound + 1) : 0;
+    }
+
+    private void attempt(final ProxyWebSocketConnectionManager connectionManager,
+                         final int attempt) {
+        final ZuulWebSocketProperties.WsBrokerage wsBrokerage = connectionManager.getBrokerage();
+        if (!connectionManager.isConnectedToUserAgent()) {
+            attempts.remove(connectionManager);
+            connectionManager.reconnectScheduled(false);
+            return;
+        }
+
+        if (!inFlight.tryAcquire()) {
+            // too many reconnects in flight, back off again without using up an attempt
+            metrics.increment(wsBrokerage, "reconnect.deferred");
+            schedule(connectionManager, attempt);
+            return;
+        }
+
+        metrics.increment(wsBrokerage, "reconnect.attempts");
+        ListenableFuture<StompSession> reconnected;
+        try {
+            reconnected = connectionManager.reconnect();
+        } catch (Exception e) {
+            inFlight.release();
+            failed(connectionManager, attempt, e);
+            return;
+        }
+
+        reconnected.addCallback(new ListenableFutureCallback<StompSession>() {
+            @Override
+            public void onSuccess(StompSession session) {
+                inFlight.release();
+                attempts.remove(connectionManager);
+                connectionManager.reconnectScheduled(false);
+                metrics.increment(wsBrokerage, "reconnect.succeeded");
+            }
+
+            @Override
+            public void onFailure(Throwable ex) {
+                inFlight.release();
+                failed(connectionManager, attempt, ex);
+            }
+        });
+    }
+
+    private void failed(ProxyWebSocketConnectionManager connectionManager, int attempt,
+                        Throwable ex) {
+        ZuulWebSocketProperties.WsBrokerage wsBrokerage = connectionManager.getBrokerage();
+        metrics.increment(wsBrokerage, "reconnect.failed");
+        logger.warn("Reconnect attempt " + (attempt + 1) + " of " + connectionManager
+                + " failed: " + ex);
+
+        int maxAttempts = getPolicy(connectionManager).getMaxAttempts();
+        int next = attempt + 1;
+        if (maxAttempts > 0 && next >= maxAttempts) {
+            attempts.remove(connectionManager);
+            connectionManager.reconnectScheduled(false);
+            metrics.increment(wsBrokerage, "reconnect.exhausted");
+            connectionManager.failUserAgent("Proxied target unreachable after " + next
+                    + " reconnect attempts");
+            return;
+        }
+
+        attempts.put(connectionManager, next);
+        schedule(connectionManager, next);
+    }
+
+    private static ZuulWebSocketProperties.Reconnect getPolicy(
+            ProxyWebSocketConnectionManager connectionManager) {
+        ZuulWebSocketProperties.WsBrokerage wsBrokerage = connectionManager.getBrokerage();
+        return wsBrokerage != null ? wsBrokerage.getReconnect()
+                : new ZuulWebSocketProperties.Reconnect();
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.socket;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.boot.bind.PropertiesConfigurationFactory;
+import org.springframework.cloud.context.environment.EnvironmentChangeEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.util.Assert;
+
+/**
+ * Keeps the {@link ProxyRouteTable} of the brokerages in the environment, a new table
+ * is swapped in whenever {@code zuul.ws} properties change.
+ * <p>
+ * Brokerages are bound afresh into a new {@link ZuulWebSocketProperties} for every
+ * table, the first one included, sessions connected on the old table keep the
+ * brokerages they were connected with. The {@code zuul.ws} properties bean itself is
+ * rebound in place on the same events, it is never used for routes. End points and
+ * brokers are registered at startup, routes may only be changed on end points that
+ * exist.
+ *
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class ProxyRouteRefresher implements ApplicationListener<EnvironmentChangeEvent> {
+    private static final String PREFIX = "zuul.ws";
+    private final Log logger = LogFactory.getLog(ProxyRouteRefresher.class);
+    private final ConfigurableEnvironment environment;
+    private volatile ProxyRouteTable routeTable;
+
+    public ProxyRouteRefresher(ConfigurableEnvironment environment) {
+        Assert.notNull(environment, "environment must not be null");
+        this.environment = environment;
+        try {
+            this.routeTable = new ProxyRouteTable(bind());
+        } catch (Exception e) {
+            throw new IllegalStateException("Unable to bind web socket brokerages", e);
+        }
+    }
+
+    public ProxyRouteTable getRouteTable() {
+        return routeTable;
+    }
+
+    @Override
+    public void onApplicationEvent(EnvironmentChangeEvent event) {
+        for (String key : event.getKeys()) {
+            // relaxed names, zuul.ws.brokerages... or ZUUL_WS_BROKERAGES...
+            if (key.toLowerCase().replace('_', '.').startsWith(PREFIX + ".")) {
+                refresh();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Rebinds the brokerages from the environment, the current table is kept if they
+     * can't be bound.
+     */
+    public void refresh() {
+        ZuulWebSocketProperties zuulWebSocketProperties;
+        try {
+            zuulWebSocketProperties = bind();
+        } catch (Exception e) {
+            logger.error("Keeping web socket routes, brokerages can't be refreshed", e);
+            return;
+        }
+
+        routeTable = new ProxyRouteTable(zuulWebSocketProperties);
+        if (logger.isInfoEnabled()) {
+            logger.info("Refreshed web socket routes of brokerages "
+                    + zuulWebSocketProperties.getBrokerages().keySet());
+        }
+    }
+
+    private ZuulWebSocketProperties bind() throws Exception {
+        ZuulWebSocketProperties zuulWebSocketProperties = new ZuulWebSocketProperties();
+        PropertiesConfigurationFactory<ZuulWebSocketProperties> factory =
+                new PropertiesConfigurationFactory<>(zuulWebSocketProperties);
+        factory.setPropertySources(environment.getPropertySources());
+        factory.setTargetName(PREFIX);
+        factory.bindPropertiesToTarget();
+        zuulWebSocketProperties.init();
+        return zuulWebSocketProperties;
+    }
+}
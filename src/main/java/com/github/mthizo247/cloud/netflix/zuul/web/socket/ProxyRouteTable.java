@@ -0,0 +1,148 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.socket;
+
+import org.springframework.util.PatternMatchUtils;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Maps web socket session URIs to the enabled brokerage and end point they were opened
+ * on. The end points are compiled once, in brokerage order, and the route of every
+ * distinct path is remembered up to a fixed number of paths. SockJS paths are remembered
+ * without their {@code /{server}/{session}/{transport}} suffix so session ids don't use
+ * up the cache.
+ * <p>
+ * A path is routed to an end point when it contains the end point as a whole path
+ * segment sequence, e.g. {@code /ws} routes {@code /ws/info} and
+ * {@code /app/ws/123/abc/websocket} but not {@code /wsx}.
+ *
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class ProxyRouteTable {
+    static final int MAX_CACHED_PATHS = 4096;
+    private static final Route NO_ROUTE = new Route(null, null, null);
+    private static final Pattern SOCKJS_SESSION = Pattern.compile(
+            "(.*)/[^/.]+/[^/.]+/(websocket|xhr|xhr_send|xhr_streaming|eventsource|htmlfile|jsonp|jsonp_send)");
+    private final Map<String, ZuulWebSocketProperties.WsBrokerage> brokerages;
+    private final List<Route> routes;
+    private final ConcurrentMap<String, Route> routesByPath = new ConcurrentHashMap<>();
+
+    public ProxyRouteTable(ZuulWebSocketProperties zuulWebSocketProperties) {
+        List<Route> routes = new ArrayList<>();
+        for (ZuulWebSocketProperties.WsBrokerage wsBrokerage : zuulWebSocketProperties
+                .getBrokerages().values()) {
+            if (wsBrokerage.isEnabled() && wsBrokerage.getEndPoints() != null) {
+                for (String endPoint : wsBrokerage.getEndPoints()) {
+                    routes.add(new Route(wsBrokerage, endPoint, toSegments(endPoint)));
+                }
+            }
+        }
+        this.routes = Collections.unmodifiableList(routes);
+        this.brokerages = Collections.unmodifiableMap(
+                new LinkedHashMap<>(zuulWebSocketProperties.getBrokerages()));
+    }
+
+    /**
+     * @return the brokerage of the given id, enabled or not
+     */
+    public ZuulWebSocketProperties.WsBrokerage getBrokerage(String id) {
+        return brokerages.get(id);
+    }
+
+    /**
+     * @return the route of the given session URI, {@code null} if no end point matches
+     */
+    public Route getRoute(URI uri) {
+        String path = uri.getRawPath() != null ? uri.getRawPath() : uri.toString();
+        String key = withoutSockJsSession(path);
+        Route route = routesByPath.get(key);
+        if (route == null) {
+            route = match(path);
+            // unless the end point lies within what looked like a SockJS session suffix
+            boolean cacheable = key.equals(path) || match(key) == route;
+            if (cacheable && routesByPath.size() < MAX_CACHED_PATHS) {
+                routesByPath.put(key, route);
+            }
+        }
+        return route != NO_ROUTE ? route : null;
+    }
+
+    int getCachedPaths() {
+        return routesByPath.size();
+    }
+
+    private static String withoutSockJsSession(String path) {
+        Matcher matcher = SOCKJS_SESSION.matcher(path);
+        return matcher.matches() ? matcher.group(1) : path;
+    }
+
+    private Route match(String path) {
+        String segments = path.endsWith("/") ? path : path + "/";
+        for (Route route : routes) {
+            if (route.matches(segments)) {
+                return route;
+            }
+        }
+        return NO_ROUTE;
+    }
+
+    private static String toSegments(String endPoint) {
+        String segments = endPoint.startsWith("/") ? endPoint : "/" + endPoint;
+        return segments.endsWith("/") ? segments : segments + "/";
+    }
+
+    public static final class Route {
+        private final ZuulWebSocketProperties.WsBrokerage wsBrokerage;
+        private final String endPoint;
+        private final String segments;
+        private final String pattern;
+
+        Route(ZuulWebSocketProperties.WsBrokerage wsBrokerage, String endPoint,
+              String segments) {
+            this.wsBrokerage = wsBrokerage;
+            this.endPoint = endPoint;
+            this.segments = segments;
+            // end points with wildcards still need the pattern matcher
+            this.pattern = segments != null && segments.contains("*")
+                    ? "*" + segments + "*" : null;
+        }
+
+        boolean matches(String path) {
+            return pattern != null ? PatternMatchUtils.simpleMatch(pattern, path)
+                    : path.contains(segments);
+        }
+
+        public ZuulWebSocketProperties.WsBrokerage getBrokerage() {
+            return wsBrokerage;
+        }
+
+        public String getEndPoint() {
+            return endPoint;
+        }
+    }
+}
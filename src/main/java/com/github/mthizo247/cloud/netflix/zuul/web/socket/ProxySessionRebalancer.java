@@ -0,0 +1,320 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.socket;
+
+import com.github.mthizo247.cloud.netflix.zuul.web.proxytarget.ProxyTarget;
+import com.github.mthizo247.cloud.netflix.zuul.web.proxytarget.ProxyTargetCache;
+import com.github.mthizo247.cloud.netflix.zuul.web.proxytarget.ProxyTargetHealth;
+import com.github.mthizo247.cloud.netflix.zuul.web.proxytarget.ProxyTargetZones;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.cloud.netflix.zuul.filters.ZuulProperties;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Spreads the proxied sessions of a service over its discovered instances again once
+ * the instances change, e.g. when the service is scaled out. Sessions are otherwise
+ * pinned to the instance they were connected to and new instances only get new users.
+ * <p>
+ * The instances are looked up through the {@link ProxyTargetCache} on every interval.
+ * Whenever they changed, sessions are
+ * {@link ProxyWebSocketConnectionManager#migrate(URI) migrated} from the instances over
+ * their weighted share to the instances under it, at most a fixed number per interval,
+ * until every instance holds its share. With {@link ProxyTargetZones zone affinity} only
+ * the preferred instances get a share, sessions on the others are moved to them.
+ * Instances {@link ProxyTargetHealth#isEjected(URI) ejected} for failing or slow
+ * connects get no share either. User agents stay connected throughout. Sessions
+ * of brokerages with consistent hash target selection stay with the instance of their
+ * user.
+ *
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class ProxySessionRebalancer implements Runnable, InitializingBean, DisposableBean {
+    private final Log logger = LogFactory.getLog(ProxySessionRebalancer.class);
+    private final ProxyTargetCache targetCache;
+    private final ZuulProperties zuulProperties;
+    private final TaskScheduler taskScheduler;
+    private final ZuulWebSocketMetrics metrics;
+    private final long interval;
+    private final int maxMigrations;
+    private final List<ProxyWebSocketHandler> handlers = new CopyOnWriteArrayList<>();
+    private final Map<String, Set<URI>> discovered = new HashMap<>();
+    private final Set<String> unbalanced = new HashSet<>();
+    private ProxyTargetZones targetZones;
+    private ProxyTargetHealth targetHealth;
+    private ScheduledFuture<?> task;
+
+    /**
+     * @param interval      the millis between two rebalancing runs
+     * @param maxMigrations the maximum number of sessions migrated per run
+     */
+    public ProxySessionRebalancer(ProxyTargetCache targetCache, ZuulProperties zuulProperties,
+                                  TaskScheduler taskScheduler, ZuulWebSocketMetrics metrics,
+                                  long interval, int maxMigrations) {
+        Assert.notNull(targetCache, "targetCache must not be null");
+        Assert.notNull(zuulProperties, "zuulProperties must not be null");
+        Assert.notNull(taskScheduler, "taskScheduler must not be null");
+        Assert.notNull(metrics, "metrics must not be null");
+        Assert.isTrue(interval > 0, "interval must be positive");
+        Assert.isTrue(maxMigrations > 0, "maxMigrations must be positive");
+        this.targetCache = targetCache;
+        this.zuulProperties = zuulProperties;
+        this.taskScheduler = taskScheduler;
+        this.metrics = metrics;
+        this.interval = interval;
+        this.maxMigrations = maxMigrations;
+    }
+
+    public void targetZones(ProxyTargetZones targetZones) {
+        this.targetZones = targetZones;
+    }
+
+    public void targetHealth(ProxyTargetHealth targetHealth) {
+        this.targetHealth = targetHealth;
+    }
+
+    /**
+     * Rebalances the sessions proxied by the given handler from now on.
+     */
+    public void register(ProxyWebSocketHandler handler) {
+        handlers.add(handler);
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        task = taskScheduler.scheduleWithFixedDelay(this, interval);
+    }
+
+    @Override
+    public void destroy() {
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            rebalance();
+        } catch (Exception e) {
+            logger.error("Error rebalancing proxied sessions", e);
+        }
+    }
+
+    /**
+     * @return the number of sessions migrated
+     */
+    public synchronized int rebalance() {
+        int migrated = 0;
+        for (Map.Entry<String, List<ProxyWebSocketConnectionManager>> service : getManagersByService()
+                .entrySet()) {
+            String serviceId = service.getKey();
+            List<ProxyTarget> targets = targetCache.getTargets(serviceId);
+            List<ProxyTarget> healthy = withoutEjected(targets);
+            List<ProxyTarget> preferred = targetZones != null ? targetZones.filter(healthy)
+                    : healthy;
+            if (isChanged(serviceId, preferred)) {
+                unbalanced.add(serviceId);
+            }
+
+            if (migrated < maxMigrations && unbalanced.contains(serviceId)) {
+                ServiceLoad load = new ServiceLoad(targets, preferred, service.getValue());
+                if (load.isBalanced()) {
+                    unbalanced.remove(serviceId);
+                } else {
+                    migrated += load.rebalance(maxMigrations - migrated);
+                }
+            }
+        }
+        return migrated;
+    }
+
+    private List<ProxyTarget> withoutEjected(List<ProxyTarget> targets) {
+        if (targetHealth == null) {
+            return targets;
+        }
+
+        List<ProxyTarget> healthy = new ArrayList<>(targets.size());
+        for (ProxyTarget target : targets) {
+            if (!targetHealth.isEjected(target.getUri())) {
+                healthy.add(target);
+            }
+        }
+        return healthy;
+    }
+
+    private boolean isChanged(String serviceId, List<ProxyTarget> targets) {
+        Set<URI> uris = new HashSet<>();
+        for (ProxyTarget target : targets) {
+            uris.add(target.getUri());
+        }
+        return !uris.equals(discovered.put(serviceId, uris));
+    }
+
+    private Map<String, List<ProxyWebSocketConnectionManager>> getManagersByService() {
+        Map<String, List<ProxyWebSocketConnectionManager>> managersByService = new LinkedHashMap<>();
+        for (ProxyWebSocketHandler handler : handlers) {
+            for (ProxyWebSocketConnectionManager manager : handler.getConnectionManagers()) {
+                String serviceId = getServiceId(manager.getBrokerage());
+                if (serviceId != null && manager.getProxyTarget() != null
+                        && manager.isConnectedToUserAgent()) {
+                    List<ProxyWebSocketConnectionManager> managers = managersByService.get(serviceId);
+                    if (managers == null) {
+                        managers = new ArrayList<>();
+                        managersByService.put(serviceId, managers);
+                    }
+                    managers.add(manager);
+                }
+            }
+        }
+        return managersByService;
+    }
+
+    private String getServiceId(ZuulWebSocketProperties.WsBrokerage wsBrokerage) {
+        if (wsBrokerage == null || wsBrokerage.getTargetSelection()
+                == ZuulWebSocketProperties.TargetSelection.CONSISTENT_HASH) {
+            return null;
+        }
+
+        ZuulProperties.ZuulRoute zuulRoute = zuulProperties.getRoutes().get(wsBrokerage.getRouteId());
+        zuulRoute = zuulRoute == null ? zuulProperties.getRoutes().get(wsBrokerage.getId()) : zuulRoute;
+        return zuulRoute != null && StringUtils.hasText(zuulRoute.getServiceId())
+                ? zuulRoute.getServiceId() : null;
+    }
+
+    /**
+     * The sessions of a service per discovered instance, sessions of instances no longer
+     * discovered are left to reconnect by themselves.
+     */
+    private final class ServiceLoad {
+        private final List<TargetLoad> loads = new ArrayList<>();
+
+        ServiceLoad(List<ProxyTarget> targets, List<ProxyTarget> preferred,
+                    List<ProxyWebSocketConnectionManager> managers) {
+            Map<URI, TargetLoad> loadsByUri = new HashMap<>();
+            double totalWeight = 0;
+            for (ProxyTarget target : targets) {
+                TargetLoad load = new TargetLoad(target, preferred.contains(target));
+                loads.add(load);
+                loadsByUri.put(target.getUri(), load);
+                totalWeight += load.preferred ? target.getWeight() : 0;
+            }
+
+            int sessions = 0;
+            for (ProxyWebSocketConnectionManager manager : managers) {
+                TargetLoad load = loadsByUri.get(manager.getProxyTarget());
+                if (load != null) {
+                    load.managers.add(manager);
+                    load.count++;
+                    sessions++;
+                }
+            }
+
+            for (TargetLoad load : loads) {
+                load.share = load.preferred ? sessions * load.target.getWeight() / totalWeight : 0;
+            }
+        }
+
+        boolean isBalanced() {
+            return getDonor() == null || getReceiver() == null;
+        }
+
+        int rebalance(int maxMigrations) {
+            int migrated = 0;
+            TargetLoad donor;
+            TargetLoad receiver;
+            while (migrated < maxMigrations && (donor = getDonor()) != null
+                    && (receiver = getReceiver()) != null) {
+                ProxyWebSocketConnectionManager manager;
+                while ((manager = donor.managers.poll()) != null) {
+                    // busy sessions are left where they are
+                    if (manager.migrate(receiver.target.getUri()) != null) {
+                        donor.count--;
+                        receiver.count++;
+                        migrated++;
+                        metrics.increment(manager.getBrokerage(), "rebalance.migrated");
+                        break;
+                    }
+                }
+            }
+
+            if (migrated > 0 && logger.isInfoEnabled()) {
+                logger.info("Migrated " + migrated + " proxied sessions to other instances");
+            }
+            return migrated;
+        }
+
+        /**
+         * @return the instance furthest over its share with sessions left to migrate
+         */
+        private TargetLoad getDonor() {
+            TargetLoad donor = null;
+            for (TargetLoad load : loads) {
+                if (load.count > Math.ceil(load.share) && !load.managers.isEmpty()
+                        && (donor == null || load.count - load.share > donor.count - donor.share)) {
+                    donor = load;
+                }
+            }
+            return donor;
+        }
+
+        /**
+         * @return the instance furthest under its share
+         */
+        private TargetLoad getReceiver() {
+            TargetLoad receiver = null;
+            for (TargetLoad load : loads) {
+                if (load.count < Math.floor(load.share)
+                        && (receiver == null || load.share - load.count > receiver.share - receiver.count)) {
+                    receiver = load;
+                }
+            }
+            return receiver;
+        }
+    }
+
+    private static final class TargetLoad {
+        private final ProxyTarget target;
+        private final boolean preferred;
+        private final Queue<ProxyWebSocketConnectionManager> managers = new ArrayDeque<>();
+        private int count;
+        private double share;
+
+        TargetLoad(ProxyTarget target, boolean preferred) {
+            this.target = target;
+            this.preferred = preferred;
+        }
+    }
+}
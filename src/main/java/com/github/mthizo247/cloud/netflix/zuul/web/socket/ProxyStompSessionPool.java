@@ -0,0 +1,296 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.socket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.simp.stomp.StompSessionHandler;
+import org.springframework.messaging.simp.stomp.StompSessionHandlerAdapter;
+import org.springframework.util.Assert;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.socket.WebSocketHttpHeaders;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A small pool of STOMP sessions per backend server uri that are shared by the
+ * connection managers of many user agent sessions. Each lessee, usually a connection
+ * manager, leases one session of the pool, the least leased one, for as long as it is
+ * connected and is told about transport errors of that session.
+ *
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class ProxyStompSessionPool {
+    private final Logger logger = LoggerFactory.getLogger(ProxyStompSessionPool.class);
+    private final WebSocketStompClient stompClient;
+    private final ConcurrentMap<String, TargetSessions> targets = new ConcurrentHashMap<>();
+
+    public ProxyStompSessionPool(WebSocketStompClient stompClient) {
+        Assert.notNull(stompClient, "stompClient must not be null");
+        this.stompClient = stompClient;
+    }
+
+    /**
+     * Leases the least leased session of the pool of the given uri, connecting it first
+     * if necessary. The pool grows to the largest size any caller asks for. The returned future completes once the session is connected, no
+     * thread is blocked while connecting. Each lessee gets a future of its own,
+     * cancelling it only gives back the lease of that lessee.
+     */
+    public ListenableFuture<StompSession> acquire(String uri, int poolSize,
+                                                  StompSessionHandler lessee) {
+        TargetSessions sessions = targets.get(uri);
+        if (sessions == null) {
+            TargetSessions created = new TargetSessions(uri);
+            sessions = targets.putIfAbsent(uri, created);
+            sessions = sessions == null ? created : sessions;
+        }
+
+        return sessions.acquire(Math.max(1, poolSize), lessee);
+    }
+
+    /**
+     * Gives a leased session back, the session is disconnected when nobody uses it
+     * anymore.
+     */
+    public void release(String uri, StompSessionHandler lessee) {
+        TargetSessions sessions = targets.get(uri);
+        if (sessions != null) {
+            sessions.release(lessee);
+        }
+    }
+
+    public int getSessionCount(String uri) {
+        TargetSessions sessions = targets.get(uri);
+        return sessions != null ? sessions.connectedCount() : 0;
+    }
+
+    private class TargetSessions {
+        private final String uri;
+        private final List<SharedSession> slots = new CopyOnWriteArrayList<>();
+
+        TargetSessions(String uri) {
+            this.uri = uri;
+        }
+
+        synchronized ListenableFuture<StompSession> acquire(int size,
+                                                            StompSessionHandler lessee) {
+            // brokerages on the same uri may ask for pools of different sizes
+            while (slots.size() < size) {
+                slots.add(new SharedSession(uri));
+            }
+
+            SharedSession leastLeased = null;
+            for (SharedSession slot : slots) {
+                if (slot.leases.contains(lessee)) {
+                    leastLeased = slot;
+                    break;
+                }
+                if (leastLeased == null || slot.leases.size() < leastLeased.leases.size()) {
+                    leastLeased = slot;
+                }
+            }
+
+            return leastLeased.lease(lessee);
+        }
+
+        void release(StompSessionHandler lessee) {
+            for (SharedSession slot : slots) {
+                slot.release(lessee);
+            }
+        }
+
+        int connectedCount() {
+            int count = 0;
+            for (SharedSession slot : slots) {
+                if (slot.isConnected()) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    private class SharedSession extends StompSessionHandlerAdapter {
+        private final String uri;
+        private final Set<StompSessionHandler> leases = Collections
+                .newSetFromMap(new ConcurrentHashMap<StompSessionHandler, Boolean>());
+        // leases waiting for the session to connect
+        private final Map<StompSessionHandler, SettableListenableFuture<StompSession>> waiting =
+                new ConcurrentHashMap<>();
+        private volatile StompSession session;
+        private ListenableFuture<StompSession> connecting;
+
+        SharedSession(String uri) {
+            this.uri = uri;
+        }
+
+        synchronized ListenableFuture<StompSession> lease(final StompSessionHandler lessee) {
+            SettableListenableFuture<StompSession> lease = waiting.get(lessee);
+            if (lease != null) {
+                return lease;
+            }
+
+            leases.add(lessee);
+            lease = new SettableListenableFuture<>();
+            if (connecting == null && isConnected()) {
+                lease.set(session);
+                return lease;
+            }
+
+            waiting.put(lessee, lease);
+            final SettableListenableFuture<StompSession> cancellable = lease;
+            lease.addCallback(new ListenableFutureCallback<StompSession>() {
+                @Override
+                public void onSuccess(StompSession connected) {
+                    // nothing, completed by the shared connect
+                }
+
+                @Override
+                public void onFailure(Throwable ex) {
+                    // the lessee gave up, the others go on waiting
+                    if (ex instanceof CancellationException) {
+                        cancelled(lessee, cancellable);
+                    }
+                }
+            });
+
+            if (connecting == null) {
+                // handshake headers are not user specific, credentials travel per frame
+                final ListenableFuture<StompSession> future = stompClient.connect(uri,
+                        new WebSocketHttpHeaders(), this);
+                connecting = future;
+                future.addCallback(new ListenableFutureCallback<StompSession>() {
+                    @Override
+                    public void onSuccess(StompSession connected) {
+                        connected(future, connected);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable ex) {
+                        failed(future, ex);
+                    }
+                });
+            }
+            return lease;
+        }
+
+        private void connected(ListenableFuture<StompSession> future, StompSession connected) {
+            List<SettableListenableFuture<StompSession>> completed;
+            synchronized (this) {
+                if (connecting != future) {
+                    return;
+                }
+
+                connecting = null;
+                if (leases.isEmpty()) {
+                    // every lessee left while connecting
+                    connected.disconnect();
+                    return;
+                }
+
+                session = connected;
+                completed = new ArrayList<>(waiting.values());
+                waiting.clear();
+            }
+
+            for (SettableListenableFuture<StompSession> lease : completed) {
+                lease.set(connected);
+            }
+        }
+
+        private void failed(ListenableFuture<StompSession> future, Throwable ex) {
+            List<SettableListenableFuture<StompSession>> failed;
+            synchronized (this) {
+                if (connecting != future) {
+                    return;
+                }
+
+                connecting = null;
+                leases.clear();
+                failed = new ArrayList<>(waiting.values());
+                waiting.clear();
+            }
+
+            // lessees are told through their own future
+            for (SettableListenableFuture<StompSession> lease : failed) {
+                lease.setException(ex);
+            }
+        }
+
+        private synchronized void cancelled(StompSessionHandler lessee,
+                                            SettableListenableFuture<StompSession> lease) {
+            if (waiting.remove(lessee, lease)) {
+                leases.remove(lessee);
+            }
+        }
+
+        synchronized void release(StompSessionHandler lessee) {
+            waiting.remove(lessee);
+            if (leases.remove(lessee) && leases.isEmpty() && isConnected()) {
+                session.disconnect();
+                session = null;
+            }
+        }
+
+        boolean isConnected() {
+            return session != null && session.isConnected();
+        }
+
+        @Override
+        public void afterConnected(StompSession session, StompHeaders connectedHeaders) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Shared proxied target now connected " + session);
+            }
+        }
+
+        @Override
+        public void handleException(StompSession session, StompCommand command,
+                                    StompHeaders headers, byte[] payload, Throwable ex) {
+            logger.error("Error handling " + command + " frame from shared proxied target "
+                    + uri, ex);
+        }
+
+        @Override
+        public void handleTransportError(StompSession session, Throwable ex) {
+            List<StompSessionHandler> lost;
+            synchronized (this) {
+                // every lease has lost its subscriptions, each reconnects on its own
+                lost = new ArrayList<>(leases);
+                leases.clear();
+            }
+
+            for (StompSessionHandler lease : lost) {
+                lease.handleTransportError(session, ex);
+            }
+        }
+    }
+}
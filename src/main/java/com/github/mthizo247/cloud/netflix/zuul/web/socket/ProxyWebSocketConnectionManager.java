@@ -16,41 +16,98 @@
 
 package com.github.mthizo247.cloud.netflix.zuul.web.socket;
 
+import com.github.mthizo247.cloud.netflix.zuul.web.proxytarget.ProxyTargetHealth;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.stomp.ConnectionLostException;
 import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompFrameHandler;
 import org.springframework.messaging.simp.stomp.StompHeaders;
 import org.springframework.messaging.simp.stomp.StompSession;
 import org.springframework.messaging.simp.stomp.StompSessionHandler;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.messaging.support.NativeMessageHeaderAccessor;
+import org.springframework.util.Assert;
 import org.springframework.util.ErrorHandler;
+import org.springframework.util.PatternMatchUtils;
+import org.springframework.util.StringUtils;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.WebSocketHttpHeaders;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.client.ConnectionManagerSupport;
 import org.springframework.web.socket.messaging.WebSocketStompClient;
 
 import java.lang.reflect.Type;
+import java.net.URI;
+import java.nio.charset.Charset;
 import java.security.Principal;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A web socket connection manager bridge between client and backend server via zuul
  * reverse proxy
+ * <p>
+ * The backend session is connected asynchronously, frames of the user agent are queued
+ * up to a limit until the backend session is connected and are then sent in the order
+ * they were received. The user agent gets a STOMP ERROR frame if the backend session
+ * can't be connected in time.
  *
  * @author Ronald Mthombeni
  * @author Salman Noor
  */
 public class ProxyWebSocketConnectionManager extends ConnectionManagerSupport
         implements StompSessionHandler {
-    private final WebSocketStompClient stompClient;
-    private final WebSocketSession userAgentSession;
-    private final WebSocketHttpHeadersCallback httpHeadersCallback;
-    private StompSession serverSession;
-    private Map<String, StompSession.Subscription> subscriptions = new ConcurrentHashMap<>();
+    private static final byte[] EMPTY_PAYLOAD = new byte[0];
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String TRANSACTION = "transaction";
+    protected final WebSocketStompClient stompClient;
+    protected final WebSocketSession userAgentSession;
+    protected final WebSocketHttpHeadersCallback httpHeadersCallback;
+    protected StompSession serverSession;
+    private Map<String, ProxySubscription> subscriptions = new ConcurrentHashMap<>();
     private ErrorHandler errorHandler;
     private SimpMessagingTemplate messagingTemplate;
+    private SharedSubscriptionRegistry sharedSubscriptionRegistry;
+    private String[] sharedDestinations;
+    private String[] conflatedDestinations;
+    private long conflationInterval;
+    private LastValueCache lastValueCache;
+    private String[] lastValueDestinations;
+    private boolean payloadPassthrough;
+    private boolean directDelivery;
+    private final Queue<Runnable> pendingFrames = new ArrayDeque<>();
+    private ListenableFuture<StompSession> connecting;
+    private ScheduledFuture<?> connectTimeoutTask;
+    private long connectTimeout = 10000;
+    private int pendingFramesLimit = 256;
+    protected UserAgentMessageSender messageSender;
+    private ZuulWebSocketProperties.WsBrokerage brokerage;
+    private volatile URI proxyTarget;
+    private volatile URI targetUri;
+    private ProxyTargetHealth targetHealth;
+    private Retargeter retargeter;
+    private volatile String userDestination;
+    private volatile boolean reconnectScheduled;
+    private final AtomicLong receiptIds = new AtomicLong();
+    private final Map<String, ProxySubscription> unacknowledged = new ConcurrentHashMap<>();
+    private final Map<String, List<Runnable>> transactions = new ConcurrentHashMap<>();
 
     public ProxyWebSocketConnectionManager(SimpMessagingTemplate messagingTemplate,
                                            WebSocketStompClient stompClient, WebSocketSession userAgentSession,
@@ -66,7 +123,133 @@ public class ProxyWebSocketConnectionManager extends ConnectionManagerSupport
         this.errorHandler = errorHandler;
     }
 
-    private WebSocketHttpHeaders buildWebSocketHttpHeaders() {
+    /**
+     * @param connectTimeout the millis to wait for the backend session to connect
+     *                       before the user agent is sent an ERROR frame, 0 to wait
+     *                       forever
+     */
+    public void connectTimeout(long connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * @param pendingFramesLimit the maximum number of frames held back while the backend
+     *                           session is connecting
+     */
+    public void pendingFramesLimit(int pendingFramesLimit) {
+        this.pendingFramesLimit = pendingFramesLimit;
+    }
+
+    public void messageSender(UserAgentMessageSender messageSender) {
+        this.messageSender = messageSender;
+    }
+
+    public void brokerage(ZuulWebSocketProperties.WsBrokerage brokerage) {
+        this.brokerage = brokerage;
+    }
+
+    public ZuulWebSocketProperties.WsBrokerage getBrokerage() {
+        return brokerage;
+    }
+
+    /**
+     * @param proxyTarget the target resolved for the brokerage, the URI connected to is
+     *                    the end point path on it
+     */
+    public void proxyTarget(URI proxyTarget) {
+        this.proxyTarget = proxyTarget;
+    }
+
+    public URI getProxyTarget() {
+        return proxyTarget;
+    }
+
+    /**
+     * @param targetHealth where the outcome of every connect to the proxy target is
+     *                     recorded
+     */
+    public void targetHealth(ProxyTargetHealth targetHealth) {
+        this.targetHealth = targetHealth;
+    }
+
+    /**
+     * @param retargeter picks another proxy target before reconnecting when the current
+     *                   one is ejected
+     */
+    public void retargeter(Retargeter retargeter) {
+        this.retargeter = retargeter;
+    }
+
+    /**
+     * Connects to the given target from the next connect on, the current session is
+     * left as is.
+     *
+     * @param uri the uri of the end point on the proxy target
+     */
+    public void retarget(URI proxyTarget, String uri) {
+        this.targetUri = URI.create(uri);
+        this.proxyTarget = proxyTarget;
+    }
+
+    @Override
+    protected URI getUri() {
+        URI uri = targetUri;
+        return uri != null ? uri : super.getUri();
+    }
+
+    /**
+     * Subscriptions to destinations matching the given patterns share one subscription
+     * on the proxied target with the subscriptions of other user agents.
+     */
+    public void sharedSubscriptions(SharedSubscriptionRegistry registry,
+                                    String... destinationPatterns) {
+        this.sharedSubscriptionRegistry = registry;
+        this.sharedDestinations = destinationPatterns;
+    }
+
+    /**
+     * Subscriptions to destinations matching the given patterns only relay the latest
+     * frame received while the previous one was being relayed.
+     *
+     * @param interval the minimum millis between two frames relayed to a subscription
+     */
+    public void conflatedDestinations(long interval, String... destinationPatterns) {
+        this.conflationInterval = interval;
+        this.conflatedDestinations = destinationPatterns;
+    }
+
+    /**
+     * The last frame of destinations matching the given patterns is cached and sent to
+     * subscriptions to them as soon as they are made.
+     */
+    public void lastValueCache(LastValueCache cache, String... destinationPatterns) {
+        this.lastValueCache = cache;
+        this.lastValueDestinations = destinationPatterns;
+    }
+
+    /**
+     * @param payloadPassthrough whether frame bodies of the proxied target are taken as
+     *                           {@code byte[]} and relayed unchanged, the STOMP client
+     *                           needs a {@link PassthroughMessageConverter} for it
+     */
+    public void payloadPassthrough(boolean payloadPassthrough) {
+        this.payloadPassthrough = payloadPassthrough;
+    }
+
+    public boolean isPayloadPassthrough() {
+        return payloadPassthrough;
+    }
+
+    /**
+     * @param directDelivery whether frames of the proxied target are sent straight to
+     *                       the subscription of the user agent instead of through the
+     *                       local message broker, needs a {@link UserAgentMessageSender}
+     */
+    public void directDelivery(boolean directDelivery) {
+        this.directDelivery = directDelivery;
+    }
+
+    protected WebSocketHttpHeaders buildWebSocketHttpHeaders() {
         WebSocketHttpHeaders wsHeaders = new WebSocketHttpHeaders();
         if (httpHeadersCallback != null) {
             httpHeadersCallback.applyHeaders(userAgentSession, wsHeaders);
@@ -79,43 +262,344 @@ public class ProxyWebSocketConnectionManager extends ConnectionManagerSupport
         connect();
     }
 
+    /**
+     * Starts connecting to the proxied target unless already connecting, returns without
+     * waiting for the connection. The user agent is sent an ERROR frame if the
+     * connection fails.
+     */
     public void connect() {
+        connect(true);
+    }
+
+    private ListenableFuture<StompSession> connect(final boolean failUserAgent) {
+        final ListenableFuture<StompSession> future;
+        final URI target = proxyTarget;
+        final long start = System.currentTimeMillis();
+        synchronized (pendingFrames) {
+            if (connecting != null) {
+                return connecting;
+            }
+
+            future = connectToProxiedTarget();
+            connecting = future;
+            connectTimeoutTask = scheduleConnectTimeout(future, target, failUserAgent);
+        }
+
+        future.addCallback(new ListenableFutureCallback<StompSession>() {
+            @Override
+            public void onSuccess(StompSession session) {
+                if (targetHealth != null && target != null) {
+                    targetHealth.connectSucceeded(target, System.currentTimeMillis() - start);
+                }
+                connected(future, session);
+            }
+
+            @Override
+            public void onFailure(Throwable ex) {
+                // cancelled on close or on timeout, a timeout is recorded by itself
+                if (!(ex instanceof CancellationException)) {
+                    recordConnectFailed(target);
+                }
+                connectFailed(future, ex, failUserAgent);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * @return the future of the STOMP session with the proxied target
+     */
+    protected ListenableFuture<StompSession> connectToProxiedTarget() {
+        return stompClient.connect(getUri().toString(), buildWebSocketHttpHeaders(), this);
+    }
+
+    private void recordConnectFailed(URI target) {
+        if (targetHealth != null && target != null) {
+            targetHealth.connectFailed(target);
+        }
+    }
+
+    private ScheduledFuture<?> scheduleConnectTimeout(
+            final ListenableFuture<StompSession> future, final URI target,
+            final boolean failUserAgent) {
+        TaskScheduler scheduler = stompClient.getTaskScheduler();
+        if (scheduler == null || connectTimeout <= 0) {
+            return null;
+        }
+
+        return scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (clearConnecting(future)) {
+                    future.cancel(true);
+                    recordConnectFailed(target);
+                    if (failUserAgent) {
+                        failUserAgent("Proxied target " + getUri() + " did not connect within "
+                                + connectTimeout + " millis");
+                    }
+                }
+            }
+        }, new Date(System.currentTimeMillis() + connectTimeout));
+    }
+
+    private void connected(ListenableFuture<StompSession> future, StompSession session) {
+        synchronized (pendingFrames) {
+            if (connecting != future) {
+                // timed out or closed in the meantime
+                discard(session);
+                return;
+            }
+
+            clearConnecting(future);
+            serverSession = session;
+            // replayed while holding the lock so later frames queue up behind them
+            Runnable frame;
+            while ((frame = pendingFrames.poll()) != null) {
+                try {
+                    frame.run();
+                } catch (Exception e) {
+                    logger.error("Error sending pending frame to web socket uri " + getUri(), e);
+                }
+            }
+        }
+    }
+
+    private void connectFailed(ListenableFuture<StompSession> future, Throwable ex,
+                               boolean failUserAgent) {
+        if (clearConnecting(future)) {
+            logger.error("Error connecting to web socket uri " + getUri(), ex);
+            if (failUserAgent) {
+                failUserAgent("Unable to connect to proxied target " + getUri());
+            }
+        }
+    }
+
+    /**
+     * Stops connecting to the proxied target and drops the frames waiting for it.
+     */
+    protected void cancelConnect() {
+        ListenableFuture<StompSession> future;
+        synchronized (pendingFrames) {
+            future = connecting;
+            pendingFrames.clear();
+        }
+
+        if (future != null && clearConnecting(future)) {
+            future.cancel(true);
+        }
+    }
+
+    private boolean clearConnecting(ListenableFuture<StompSession> future) {
+        synchronized (pendingFrames) {
+            if (connecting != future) {
+                return false;
+            }
+
+            connecting = null;
+            if (connectTimeoutTask != null) {
+                connectTimeoutTask.cancel(false);
+                connectTimeoutTask = null;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Sends an ERROR frame to the user agent, the user agent session is closed after it.
+     */
+    protected void failUserAgent(String message) {
+        synchronized (pendingFrames) {
+            pendingFrames.clear();
+        }
+
+        if (messageSender != null) {
+            messageSender.sendError(userAgentSession, message);
+            return;
+        }
+
         try {
-            serverSession = stompClient
-                    .connect(getUri().toString(), buildWebSocketHttpHeaders(), this)
-                    .get();
+            userAgentSession.close(CloseStatus.SERVER_ERROR.withReason(message));
         } catch (Exception e) {
-            logger.error("Error connecting to web socket uri " + getUri(), e);
-            throw new RuntimeException(e);
+            // nothing
         }
     }
 
-    public void reconnect(final long delay) {
-        if (delay > 0) {
-            logger.warn("Connection lost or refused, will attempt to reconnect after "
-                    + delay + " millis");
-            try {
-                Thread.sleep(delay);
-            } catch (InterruptedException e) {
-                //
+    /**
+     * Sends a frame to the proxied target right away if connected, queues it until the
+     * connection is established otherwise. The user agent is sent an ERROR frame if the
+     * session is lost and neither connecting nor scheduled to reconnect.
+     */
+    protected void execute(Runnable frame) {
+        synchronized (pendingFrames) {
+            if (!isConnected() || !pendingFrames.isEmpty()) {
+                if (pendingFrames.size() >= pendingFramesLimit) {
+                    logger.warn("Too many frames pending for web socket uri " + getUri());
+                    failUserAgent("Too many frames pending for proxied target " + getUri());
+                    return;
+                }
+
+                if (serverSession != null && connecting == null && !reconnectScheduled) {
+                    // lost and nobody brings it back, the frame would wait forever
+                    failUserAgent("Lost connection to proxied target " + getUri());
+                    return;
+                }
+
+                pendingFrames.add(frame);
+                return;
             }
         }
 
-        Set<String> destinations = new HashSet<>(subscriptions.keySet());
+        frame.run();
+    }
 
-        connect();
+    /**
+     * Connects a new session to the proxied target in place of the lost one and
+     * subscribes to the destinations of the lost subscriptions again. Frames still
+     * waiting for the lost session are dropped, the lost session is disconnected if it
+     * is still connected so it stops relaying to the lost subscriptions.
+     *
+     * @return the future of the new session, failing it doesn't fail the user agent
+     */
+    public ListenableFuture<StompSession> reconnect() {
+        cancelConnect();
+        if (retargeter != null && targetHealth != null && proxyTarget != null
+                && targetHealth.isEjected(proxyTarget)) {
+            retargeter.retarget(this);
+        }
 
-        for (String destination : destinations) {
+        List<ProxySubscription> lost = new ArrayList<>(subscriptions.values());
+        // gone with the lost session, they are subscribed again on the new one
+        subscriptions.clear();
+        // the new session redelivers what the lost one didn't get acknowledged
+        unacknowledged.clear();
+
+        StompSession previous;
+        synchronized (pendingFrames) {
+            previous = serverSession;
+            serverSession = null;
+        }
+        if (previous != null && previous.isConnected()) {
+            for (ProxySubscription subscription : lost) {
+                if (!subscription.shared) {
+                    try {
+                        subscription.unsubscribe();
+                    } catch (Exception ignored) {
+                        // nothing
+                    }
+                }
+            }
+            retire(previous);
+        }
+
+        ListenableFuture<StompSession> future = connect(false);
+
+        for (ProxySubscription subscription : lost) {
             try {
-                subscribe(destination);
+                // the user agent has seen the values of the lost session already
+                subscribe(subscription.getId(), subscription.getDestination(),
+                        subscription.ackMode, false);
             } catch (Exception ignored) {
                 // nothing
             }
         }
+
+        return future;
+    }
+
+    /**
+     * Moves the session with the proxied target to the given target while the user agent
+     * stays connected. A session to the new target is connected and the subscriptions
+     * are made on it before the current session is disconnected, frames sent by the user
+     * agent meanwhile wait for the new session. A frame published around the switch may
+     * be relayed twice.
+     * <p>
+     * Only settled sessions are migrated, not ones connecting, waiting for
+     * acknowledgements or holding open transactions. If the new session fails to connect
+     * the current one is disconnected and the manager reconnected as if it was lost.
+     *
+     * @return the future of the new session, {@code null} if not migrated
+     */
+    public ListenableFuture<StompSession> migrate(URI proxyTarget) {
+        if (retargeter == null || proxyTarget.equals(this.proxyTarget)) {
+            return null;
+        }
+
+        final StompSession previous;
+        ListenableFuture<StompSession> future;
+        synchronized (pendingFrames) {
+            if (connecting != null || !isConnected() || !pendingFrames.isEmpty()
+                    || !unacknowledged.isEmpty() || !transactions.isEmpty()) {
+                return null;
+            }
+
+            previous = serverSession;
+            // frames queue up for the new session from here on
+            serverSession = null;
+            retargeter.retarget(this, proxyTarget);
+            future = connect(false);
+            for (ProxySubscription subscription : new ArrayList<>(subscriptions.values())) {
+                // the subscription on the current session is dropped once replaced
+                subscribe(subscription.getId(), subscription.getDestination(),
+                        subscription.ackMode, false);
+            }
+        }
+
+        future.addCallback(new ListenableFutureCallback<StompSession>() {
+            @Override
+            public void onSuccess(StompSession session) {
+                retire(previous);
+            }
+
+            @Override
+            public void onFailure(Throwable ex) {
+                retire(previous);
+                handleTransportError(previous, new ConnectionLostException(
+                        "Migration to " + getUri() + " failed: " + ex));
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Disconnects a session connected after the manager stopped waiting for it.
+     */
+    protected void discard(StompSession session) {
+        session.disconnect();
+    }
+
+    /**
+     * Tells the manager whether the reconnect scheduler is bringing its lost session
+     * back, frames sent meanwhile wait for the new session instead of failing the user
+     * agent.
+     */
+    void reconnectScheduled(boolean reconnectScheduled) {
+        this.reconnectScheduled = reconnectScheduled;
+    }
+
+    /**
+     * @return whether a session with the proxied target is being connected
+     */
+    protected boolean isConnecting() {
+        synchronized (pendingFrames) {
+            return connecting != null;
+        }
+    }
+
+    /**
+     * Disconnects a session the manager no longer uses, once migrated or reconnected.
+     */
+    protected void retire(StompSession session) {
+        try {
+            session.disconnect();
+        } catch (Exception ignored) {
+            // nothing
+        }
     }
 
     @Override
     protected void closeConnection() throws Exception {
+        releaseSharedSubscriptions();
+        cancelConnect();
         if (isConnected()) {
             this.serverSession.disconnect();
         }
@@ -150,74 +634,389 @@ public class ProxyWebSocketConnectionManager extends ConnectionManagerSupport
 
     @Override
     public Type getPayloadType(StompHeaders headers) {
-        return Object.class;
+        return payloadPassthrough ? byte[].class : Object.class;
     }
 
-    public void sendMessage(final String destination, final Object msg) {
-        if (msg instanceof String) { // in case of a json string to avoid double
-            // converstion by the converters
-            serverSession.send(destination, ((String) msg).getBytes());
+    public void sendMessage(String destination, Object msg) {
+        StompHeaders headers = new StompHeaders();
+        headers.setDestination(destination);
+        sendMessage(headers, msg);
+    }
+
+    /**
+     * Sends a SEND frame with the given headers to the proxied target. A {@code receipt}
+     * header is replaced with one unique on the proxied target session, its RECEIPT is
+     * relayed to the user agent with the original receipt id.
+     */
+    public void sendMessage(final StompHeaders headers, final Object msg) {
+        String transaction = headers.getFirst(TRANSACTION);
+        // transactions are held at the gateway, the proxied target never sees them
+        headers.remove(TRANSACTION);
+        execute(transaction, new Runnable() {
+            @Override
+            public void run() {
+                send(headers, msg);
+            }
+        });
+    }
+
+    /**
+     * Acknowledges a message of a {@code client} or {@code client-individual}
+     * subscription on the proxied target. Ids of messages the proxied target didn't send
+     * on such a subscription, like last values sent on SUBSCRIBE, are ignored.
+     *
+     * @param ackId       the {@code ack} header of the message, its {@code message-id}
+     *                    for STOMP 1.1
+     * @param consumed    {@code true} for ACK, {@code false} for NACK
+     * @param transaction the transaction the frame is part of or {@code null}
+     */
+    public void acknowledge(final String ackId, final boolean consumed, String transaction) {
+        execute(transaction, new Runnable() {
+            @Override
+            public void run() {
+                ProxySubscription subscription = ackId != null ? unacknowledged.get(ackId) : null;
+                if (subscription == null) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Ignoring " + (consumed ? "ACK" : "NACK")
+                                + " of unknown message " + ackId);
+                    }
+                    return;
+                }
+
+                subscription.acknowledged(ackId);
+                serverSession.acknowledge(ackId, consumed);
+            }
+        });
+    }
+
+    /**
+     * Starts a transaction, frames sent in it are held until it is committed.
+     */
+    public void begin(String transaction) {
+        if (transaction == null
+                || transactions.put(transaction, new ArrayList<Runnable>()) != null) {
+            failUserAgent("Transaction " + transaction + " can't be begun");
+        }
+    }
+
+    public void commit(String transaction) {
+        List<Runnable> frames = transaction != null ? transactions.remove(transaction) : null;
+        if (frames == null) {
+            failUserAgent("Unknown transaction " + transaction);
             return;
         }
 
-        serverSession.send(destination, msg);
+        synchronized (frames) {
+            for (Runnable frame : frames) {
+                execute(frame);
+            }
+        }
+    }
+
+    public void abort(String transaction) {
+        if (transaction == null || transactions.remove(transaction) == null) {
+            failUserAgent("Unknown transaction " + transaction);
+        }
+    }
+
+    private void execute(String transaction, Runnable frame) {
+        if (transaction == null) {
+            execute(frame);
+            return;
+        }
+
+        List<Runnable> frames = transactions.get(transaction);
+        if (frames == null) {
+            failUserAgent("Unknown transaction " + transaction);
+            return;
+        }
+
+        synchronized (frames) {
+            if (frames.size() >= pendingFramesLimit) {
+                failUserAgent("Too many frames in transaction " + transaction);
+                return;
+            }
+            frames.add(frame);
+        }
+    }
+
+    private void send(StompHeaders headers, Object msg) {
+        // in case of a json string to avoid double conversion by the converters
+        Object payload = msg instanceof String ? ((String) msg).getBytes(UTF8) : msg;
+        String receipt = headers.getReceipt();
+        if (receipt == null) {
+            sendToProxiedTarget(headers, payload);
+            return;
+        }
+
+        if (messageSender == null) {
+            // nowhere to relay the receipt to
+            headers.remove(StompHeaders.RECEIPT);
+            sendToProxiedTarget(headers, payload);
+            return;
+        }
+
+        headers.setReceipt(userAgentSession.getId() + "-" + receiptIds.incrementAndGet());
+        relayReceipt(sendToProxiedTarget(headers, payload), receipt);
+    }
+
+    protected StompSession.Receiptable sendToProxiedTarget(StompHeaders headers,
+                                                           Object payload) {
+        return serverSession.send(headers, payload);
+    }
+
+    private void relayReceipt(StompSession.Receiptable receiptable, final String receipt) {
+        if (receiptable == null || receiptable.getReceiptId() == null) {
+            return;
+        }
+
+        receiptable.addReceiptTask(new Runnable() {
+            @Override
+            public void run() {
+                messageSender.sendReceipt(userAgentSession, receipt);
+            }
+        });
+        receiptable.addReceiptLostTask(new Runnable() {
+            @Override
+            public void run() {
+                logger.warn("No RECEIPT from " + getUri() + " for receipt " + receipt
+                        + " of user agent session " + userAgentSession.getId());
+            }
+        });
     }
 
     @Override
     public void handleFrame(StompHeaders headers, Object payload) {
-        if (headers.getDestination() != null) {
-            String destination = headers.getDestination();
-            if (logger.isDebugEnabled()) {
-                logger.debug("Received " + payload + ", To " + headers.getDestination());
+        String destination = headers.getDestination();
+        if (destination == null) {
+            return;
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Received " + payload + ", To " + destination);
+        }
+
+        String userDestinationPrefix = messagingTemplate.getUserDestinationPrefix();
+        if (destination.startsWith(userDestinationPrefix)) {
+            String userDestination = getUserDestination(destination, userDestinationPrefix);
+            if (userDestination != null) {
+                destination = userDestination;
             }
+        }
+
+        messagingTemplate.send(destination, createMessage(headers, payload));
+    }
+
+    /**
+     * @return the message relayed to the local message broker, the headers received from
+     * the proxied target are its native headers as they are
+     */
+    private Message<?> createMessage(StompHeaders headers, Object payload) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(
+                SimpMessageType.MESSAGE);
+        // copied by the broker for every subscriber before it is changed
+        accessor.setHeader(NativeMessageHeaderAccessor.NATIVE_HEADERS, headers);
+        // the template sets the destination without copying the headers again
+        accessor.setLeaveMutable(true);
+
+        Object body = payload != null ? payload : EMPTY_PAYLOAD;
+        if (body instanceof byte[]) {
+            // the content-type native header is left to describe the body
+            return MessageBuilder.createMessage((byte[]) body, accessor.getMessageHeaders());
+        }
 
+        Message<?> message = messagingTemplate.getMessageConverter().toMessage(body,
+                accessor.getMessageHeaders());
+        Assert.state(message != null, "Unable to convert payload " + body.getClass());
+        return message;
+    }
+
+    /**
+     * @return the destination of the user of this session the given user destination
+     * resolves to, {@code null} for an anonymous user agent
+     */
+    private String getUserDestination(String destination, String userDestinationPrefix) {
+        String prefix = userDestination;
+        if (prefix == null) {
             Principal principal = userAgentSession.getPrincipal();
-            String userDestinationPrefix = messagingTemplate.getUserDestinationPrefix();
-            if (principal != null && destination.startsWith(userDestinationPrefix)) {
-                destination = destination.substring(userDestinationPrefix.length());
+            if (principal == null) {
+                return null;
+            }
+            // as the messaging template resolves user destinations
+            prefix = userDestinationPrefix + StringUtils.replace(principal.getName(), "/", "%2F");
+            userDestination = prefix;
+        }
 
-                destination = destination.startsWith("/") ? destination
-                        : "/" + destination;
+        int start = userDestinationPrefix.length();
+        boolean slash = destination.length() > start && destination.charAt(start) == '/';
+        StringBuilder builder = new StringBuilder(prefix.length() + destination.length() - start + 1);
+        builder.append(prefix);
+        if (!slash) {
+            builder.append('/');
+        }
+        return builder.append(destination, start, destination.length()).toString();
+    }
 
-                messagingTemplate.convertAndSendToUser(principal.getName(), destination,
-                        payload, copyHeaders(headers.toSingleValueMap()));
-            } else {
-                messagingTemplate.convertAndSend(destination, payload,
-                        copyHeaders(headers.toSingleValueMap()));
+    /**
+     * Relays a frame received on one of the subscriptions of this connection to the
+     * user agent, with direct delivery to that subscription of the user agent only.
+     */
+    protected void handleFrame(ProxySubscription subscription, StompHeaders headers,
+                               Object payload) {
+        if (directDelivery) {
+            messageSender.sendMessage(userAgentSession, subscription.getId(), headers, payload);
+            return;
+        }
+        handleFrame(headers, payload);
+    }
+
+    /**
+     * Relays a frame of a shared subscription to the user agent subscription with the
+     * given id.
+     */
+    void handleSharedFrame(String subscriptionId, StompHeaders headers, byte[] body) {
+        ProxySubscription subscription = subscriptions.get(subscriptionId);
+        if (subscription != null) {
+            subscription.handleFrame(headers, body);
+        }
+    }
+
+    /**
+     * @return the headers of a frame sent to the proxied target on behalf of the user
+     * agent
+     */
+    protected StompHeaders createHeaders(String destination) {
+        StompHeaders headers = new StompHeaders();
+        headers.setDestination(destination);
+        return headers;
+    }
+
+    /**
+     * Subscribes to the given destination on the proxied target.
+     *
+     * @param subscriptionId the id of the subscription as chosen by the user agent
+     */
+    public void subscribe(String subscriptionId, String destination) throws Exception {
+        subscribe(subscriptionId, destination, null);
+    }
+
+    /**
+     * Subscribes to the given destination on the proxied target.
+     *
+     * @param subscriptionId the id of the subscription as chosen by the user agent
+     * @param ackMode        the {@code ack} header of the subscription, {@code null} for
+     *                       {@code auto}
+     */
+    public void subscribe(String subscriptionId, String destination, String ackMode)
+            throws Exception {
+        subscribe(subscriptionId, destination, ackMode, true);
+    }
+
+    private void subscribe(String subscriptionId, String destination, String ackMode,
+                           boolean sendLastValue) {
+        final ProxySubscription subscription = new ProxySubscription(subscriptionId,
+                destination, ackMode);
+        final ProxySubscription previous = subscriptions.put(subscriptionId, subscription);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (previous != null) {
+                    try {
+                        previous.unsubscribe();
+                    } catch (Exception ignored) {
+                        // gone with the session it was made on
+                    }
+                }
+                subscription.subscribe(serverSession);
+            }
+        }, subscription.shared && (previous == null || previous.shared));
+
+        if (sendLastValue && subscription.cached) {
+            LastValueCache.LastValue lastValue = lastValueCache.get(getSharedUri(), destination);
+            if (lastValue != null) {
+                messageSender.sendMessage(userAgentSession, subscriptionId,
+                        lastValue.getHeaders(), lastValue.getBody());
             }
         }
     }
 
-    private Map<String, Object> copyHeaders(Map<String, String> original) {
-        Map<String, Object> copy = new HashMap<>();
-        for (String key : original.keySet()) {
-            copy.put(key, original.get(key));
+    public void unsubscribe(String subscriptionId) {
+        final ProxySubscription subscription = subscriptions.remove(subscriptionId);
+        if (subscription != null) {
+            subscription.forgetUnacknowledged();
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    subscription.unsubscribe();
+                }
+            }, subscription.shared);
         }
+    }
 
-        return copy;
+    private void execute(Runnable frame, boolean shared) {
+        if (shared) {
+            // shared subscriptions don't use the session of this user agent
+            frame.run();
+        } else {
+            execute(frame);
+        }
     }
 
-    private void connectIfNecessary() {
-        if (!isConnected()) {
-            connect();
+    private Conflation createConflation(ProxySubscription subscription) {
+        TaskScheduler scheduler = stompClient.getTaskScheduler();
+        // every message of a subscription acknowledged by the client matters
+        if (!subscription.isAutoAck() || conflatedDestinations == null || scheduler == null
+                || !PatternMatchUtils.simpleMatch(conflatedDestinations,
+                subscription.getDestination())) {
+            return null;
         }
+        return new Conflation(subscription, scheduler);
     }
 
-    public void subscribe(String destination) throws Exception {
-        connectIfNecessary();
-        StompSession.Subscription subscription = serverSession.subscribe(destination,
-                this);
-        subscriptions.put(destination, subscription);
+    private boolean isShared(String destination) {
+        // shared subscriptions are anonymous, a user's own destinations never are
+        return sharedSubscriptionRegistry != null && destination != null
+                && !destination.startsWith(messagingTemplate.getUserDestinationPrefix())
+                && PatternMatchUtils.simpleMatch(sharedDestinations, destination);
     }
 
-    public void unsubscribe(String destination) {
-        StompSession.Subscription subscription = subscriptions.remove(destination);
-        if (subscription != null) {
-            connectIfNecessary();
-            subscription.unsubscribe();
+    /**
+     * @return the uri of the proxied target without the user specific query, shared
+     * subscriptions are keyed by it
+     */
+    private String getSharedUri() {
+        String uri = getUri().toString();
+        int query = uri.indexOf('?');
+        return query == -1 ? uri : uri.substring(0, query);
+    }
+
+    private void releaseSharedSubscriptions() {
+        for (ProxySubscription subscription : new ArrayList<>(subscriptions.values())) {
+            if (subscription.shared && subscriptions.remove(subscription.getId(), subscription)) {
+                subscription.unsubscribe();
+            }
+        }
+    }
+
+    protected void unsubscribeAll() {
+        // nothing is left to unsubscribe from on a lost session
+        boolean connected = isConnected();
+        for (ProxySubscription subscription : new ArrayList<>(subscriptions.values())) {
+            if (subscriptions.remove(subscription.getId(), subscription)
+                    && (subscription.shared || connected)) {
+                try {
+                    subscription.unsubscribe();
+                } catch (Exception ignored) {
+                    // nothing
+                }
+            }
         }
     }
 
+    public WebSocketSession getUserAgentSession() {
+        return userAgentSession;
+    }
+
     public boolean isConnectedToUserAgent() {
         return (userAgentSession != null && userAgentSession.isOpen());
     }
@@ -229,4 +1028,249 @@ public class ProxyWebSocketConnectionManager extends ConnectionManagerSupport
             // nothing
         }
     }
+
+    /**
+     * A subscription of the user agent mapped onto a subscription on the proxied target,
+     * the proxied target assigns its own subscription id.
+     */
+    protected class ProxySubscription implements StompFrameHandler {
+        private final String id;
+        private final String destination;
+        private final String ackMode;
+        private final String uri;
+        private final boolean shared;
+        private final Conflation conflation;
+        private final boolean cached;
+        private final Set<String> unacknowledgedIds = new LinkedHashSet<>();
+        private volatile StompSession.Subscription subscription;
+
+        ProxySubscription(String id, String destination, String ackMode) {
+            this.id = id;
+            this.destination = destination;
+            this.ackMode = ackMode;
+            // kept for the life of the subscription, the manager may be retargeted
+            this.uri = getSharedUri();
+            // a shared subscription can't take acknowledgements of a single user agent
+            this.shared = isAutoAck() && isShared(destination);
+            this.conflation = createConflation(this);
+            this.cached = lastValueCache != null && messageSender != null
+                    && PatternMatchUtils.simpleMatch(lastValueDestinations, destination);
+        }
+
+        void subscribe(StompSession session) {
+            if (shared) {
+                sharedSubscriptionRegistry.subscribe(uri, destination,
+                        ProxyWebSocketConnectionManager.this, id);
+                return;
+            }
+
+            StompHeaders headers = createHeaders(destination);
+            if (!isAutoAck()) {
+                headers.setAck(ackMode);
+            }
+            subscription = session.subscribe(headers, this);
+        }
+
+        boolean isAutoAck() {
+            return ackMode == null || "auto".equals(ackMode);
+        }
+
+        private void unacknowledged(StompHeaders headers) {
+            String ackId = headers.getAck() != null ? headers.getAck() : headers.getMessageId();
+            if (ackId != null) {
+                synchronized (unacknowledgedIds) {
+                    unacknowledgedIds.add(ackId);
+                }
+                unacknowledged.put(ackId, this);
+            }
+        }
+
+        /**
+         * Forgets the given message, with {@code client} acknowledgement all messages
+         * received before it as well.
+         */
+        void acknowledged(String ackId) {
+            synchronized (unacknowledgedIds) {
+                if (!"client".equals(ackMode)) {
+                    unacknowledgedIds.remove(ackId);
+                    unacknowledged.remove(ackId);
+                    return;
+                }
+
+                Iterator<String> iterator = unacknowledgedIds.iterator();
+                while (iterator.hasNext()) {
+                    String acknowledged = iterator.next();
+                    iterator.remove();
+                    unacknowledged.remove(acknowledged);
+                    if (acknowledged.equals(ackId)) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        void forgetUnacknowledged() {
+            synchronized (unacknowledgedIds) {
+                for (String ackId : unacknowledgedIds) {
+                    unacknowledged.remove(ackId);
+                }
+                unacknowledgedIds.clear();
+            }
+        }
+
+        void unsubscribe() {
+            if (conflation != null) {
+                conflation.cancel();
+            }
+
+            if (shared) {
+                sharedSubscriptionRegistry.unsubscribe(uri, destination,
+                        ProxyWebSocketConnectionManager.this, id);
+            } else if (subscription != null) {
+                subscription.unsubscribe();
+            }
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getDestination() {
+            return destination;
+        }
+
+        @Override
+        public Type getPayloadType(StompHeaders headers) {
+            return ProxyWebSocketConnectionManager.this.getPayloadType(headers);
+        }
+
+        @Override
+        public void handleFrame(StompHeaders headers, Object payload) {
+            if (!isAutoAck()) {
+                unacknowledged(headers);
+            }
+
+            if (cached) {
+                // serialized once, the cached body is the one relayed
+                UserAgentMessageSender.Frame frame = messageSender.serialize(headers, payload);
+                headers = frame.getHeaders();
+                payload = frame.getBody();
+                lastValueCache.put(uri, destination, headers, (byte[]) payload);
+            }
+
+            if (conflation != null) {
+                conflation.offer(headers, payload);
+            } else {
+                relay(headers, payload);
+            }
+        }
+
+        void relay(StompHeaders headers, Object payload) {
+            if (shared) {
+                messageSender.sendMessage(userAgentSession, id, headers, payload);
+            } else {
+                ProxyWebSocketConnectionManager.this.handleFrame(this, headers, payload);
+            }
+        }
+    }
+
+    /**
+     * Holds the latest frame of a conflated subscription until it is relayed. One relay
+     * per subscription runs at a time, no sooner than the conflation interval after the
+     * previous one, frames received meanwhile replace the held one. Relays go to the
+     * local message broker or the client outbound channel on a timer, frames are only
+     * conflated at the pace the client reads by the slow consumer decorator.
+     */
+    private class Conflation implements Runnable {
+        private final ProxySubscription subscription;
+        private final TaskScheduler scheduler;
+        private StompHeaders headers;
+        private Object payload;
+        private boolean pending;
+        private boolean scheduled;
+        private boolean cancelled;
+        private long lastRelayed;
+
+        Conflation(ProxySubscription subscription, TaskScheduler scheduler) {
+            this.subscription = subscription;
+            this.scheduler = scheduler;
+        }
+
+        synchronized void offer(StompHeaders headers, Object payload) {
+            if (cancelled) {
+                return;
+            }
+
+            this.headers = headers;
+            this.payload = payload;
+            this.pending = true;
+            if (!scheduled) {
+                scheduled = true;
+                schedule();
+            }
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            pending = false;
+            headers = null;
+            payload = null;
+        }
+
+        @Override
+        public void run() {
+            StompHeaders headers;
+            Object payload;
+            synchronized (this) {
+                if (!pending) {
+                    scheduled = false;
+                    return;
+                }
+
+                headers = this.headers;
+                payload = this.payload;
+                this.headers = null;
+                this.payload = null;
+                pending = false;
+                lastRelayed = System.currentTimeMillis();
+            }
+
+            try {
+                subscription.relay(headers, payload);
+            } catch (Exception e) {
+                logger.error("Error relaying conflated frame of " + subscription.getDestination(), e);
+            }
+
+            synchronized (this) {
+                if (pending) {
+                    schedule();
+                } else {
+                    scheduled = false;
+                }
+            }
+        }
+
+        private void schedule() {
+            long now = System.currentTimeMillis();
+            scheduler.schedule(this, new Date(Math.max(now, lastRelayed + conflationInterval)));
+        }
+    }
+
+    /**
+     * Picks another proxy target for a connection manager.
+     */
+    public interface Retargeter {
+        /**
+         * Resolves a target for the given connection manager and
+         * {@link #retarget(URI, String) retargets} it, unless the resolved target is
+         * the current one.
+         */
+        void retarget(ProxyWebSocketConnectionManager connectionManager);
+
+        /**
+         * {@link #retarget(URI, String) Retargets} the given connection manager to the
+         * given target.
+         */
+        void retarget(ProxyWebSocketConnectionManager connectionManager, URI proxyTarget);
+    }
 }
@@ -16,26 +16,38 @@
 
 package com.github.mthizo247.cloud.netflix.zuul.web.socket;
 
+import com.github.mthizo247.cloud.netflix.zuul.web.proxytarget.ProxyTargetConnections;
+import com.github.mthizo247.cloud.netflix.zuul.web.proxytarget.ProxyTargetHealth;
 import com.github.mthizo247.cloud.netflix.zuul.web.proxytarget.ProxyTargetResolver;
+import com.github.mthizo247.cloud.netflix.zuul.web.proxytarget.SessionAwareProxyTargetResolver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.scheduling.TaskScheduler;
 import org.springframework.util.Assert;
 import org.springframework.util.ErrorHandler;
-import org.springframework.util.PatternMatchUtils;
+import org.springframework.util.ObjectUtils;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.WebSocketHandler;
 import org.springframework.web.socket.WebSocketMessage;
 import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.client.WebSocketClient;
 import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
 import org.springframework.web.socket.messaging.WebSocketStompClient;
-import org.springframework.web.util.UriComponentsBuilder;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 /**
  * A {@link WebSocketHandlerDecorator} that adds web socket support to zuul reverse proxy.
@@ -50,8 +62,26 @@ public class ProxyWebSocketHandler extends WebSocketHandlerDecorator {
     private final ProxyTargetResolver proxyTargetResolver;
     private final ZuulWebSocketProperties zuulWebSocketProperties;
     private final WebSocketStompClient stompClient;
+    private final ProxyRouteTable routeTable;
+    private ProxyRouteRefresher routeRefresher;
+    private ProxyTargetConnections targetConnections;
+    private ProxyTargetHealth targetHealth;
     private final Map<WebSocketSession, ProxyWebSocketConnectionManager> managers = new ConcurrentHashMap<>();
+    private final Set<WebSocketSession> tunneledSessions = Collections
+            .newSetFromMap(new ConcurrentHashMap<WebSocketSession, Boolean>());
+    private final Map<WebSocketSession, ProxyWebSocketTunnel> tunnels = new ConcurrentHashMap<>();
+    private final Set<WebSocketSession> pureProxiedSessions = Collections
+            .newSetFromMap(new ConcurrentHashMap<WebSocketSession, Boolean>());
+    private final Map<WebSocketSession, DestinationRoutes> destinationRoutes = new ConcurrentHashMap<>();
     private ErrorHandler errorHandler;
+    private WebSocketClient webSocketClient;
+    private ProxyStompSessionPool stompSessionPool;
+    private UserAgentMessageSender userAgentMessageSender;
+    private SharedSubscriptionRegistry sharedSubscriptionRegistry;
+    private ZuulWebSocketMetrics metrics = new ZuulWebSocketMetrics();
+    private Executor slowConsumerExecutor;
+    private TaskScheduler slowConsumerScheduler;
+    private LastValueCache lastValueCache;
 
     public ProxyWebSocketHandler(WebSocketHandler delegate,
                                  WebSocketStompClient stompClient,
@@ -65,133 +95,413 @@ public class ProxyWebSocketHandler extends WebSocketHandlerDecorator {
         this.messagingTemplate = messagingTemplate;
         this.proxyTargetResolver = proxyTargetResolver;
         this.zuulWebSocketProperties = zuulWebSocketProperties;
+        this.routeTable = new ProxyRouteTable(zuulWebSocketProperties);
     }
 
     public void errorHandler(ErrorHandler errorHandler) {
         this.errorHandler = errorHandler;
     }
 
-    private String getWebSocketServerPath(ZuulWebSocketProperties.WsBrokerage wsBrokerage,
-                                          URI uri) {
-        String path = uri.toString();
-        if (path.contains(":")) {
-            path = UriComponentsBuilder.fromUriString(path).build().getPath();
-        }
+    public void webSocketClient(WebSocketClient webSocketClient) {
+        this.webSocketClient = webSocketClient;
+    }
 
-        for (String endPoint : wsBrokerage.getEndPoints()) {
-            if (PatternMatchUtils.simpleMatch(toPattern(endPoint), path + "/")) {
-                return endPoint;
-            }
-        }
+    public void stompSessionPool(ProxyStompSessionPool stompSessionPool) {
+        this.stompSessionPool = stompSessionPool;
+    }
+
+    public void userAgentMessageSender(UserAgentMessageSender userAgentMessageSender) {
+        this.userAgentMessageSender = userAgentMessageSender;
+    }
+
+    public void sharedSubscriptionRegistry(SharedSubscriptionRegistry sharedSubscriptionRegistry) {
+        this.sharedSubscriptionRegistry = sharedSubscriptionRegistry;
+    }
 
-        return null;
+    public void metrics(ZuulWebSocketMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void slowConsumerExecutor(Executor slowConsumerExecutor) {
+        this.slowConsumerExecutor = slowConsumerExecutor;
+    }
+
+    /**
+     * @param slowConsumerScheduler checks writes to slow user agents against the send
+     *                              time limit while no further frames are sent
+     */
+    public void slowConsumerScheduler(TaskScheduler slowConsumerScheduler) {
+        this.slowConsumerScheduler = slowConsumerScheduler;
+    }
+
+    public void lastValueCache(LastValueCache lastValueCache) {
+        this.lastValueCache = lastValueCache;
+    }
+
+    public void routeRefresher(ProxyRouteRefresher routeRefresher) {
+        this.routeRefresher = routeRefresher;
+    }
+
+    public void targetConnections(ProxyTargetConnections targetConnections) {
+        this.targetConnections = targetConnections;
+    }
+
+    public void targetHealth(ProxyTargetHealth targetHealth) {
+        this.targetHealth = targetHealth;
+    }
+
+    private ProxyRouteTable getRouteTable() {
+        return routeRefresher != null ? routeRefresher.getRouteTable() : routeTable;
+    }
+
+    private String getWebSocketServerPath(URI uri) {
+        ProxyRouteTable.Route route = getRouteTable().getRoute(uri);
+        return route != null ? route.getEndPoint() : null;
     }
 
     private ZuulWebSocketProperties.WsBrokerage getWebSocketBrokarage(URI uri) {
-        String path = uri.toString();
-        if (path.contains(":")) {
-            path = UriComponentsBuilder.fromUriString(path).build().getPath();
-        }
-
-        for (Map.Entry<String, ZuulWebSocketProperties.WsBrokerage> entry : zuulWebSocketProperties
-                .getBrokerages().entrySet()) {
-            ZuulWebSocketProperties.WsBrokerage wsBrokerage = entry.getValue();
-            if (wsBrokerage.isEnabled()) {
-                for (String endPoint : wsBrokerage.getEndPoints()) {
-                    if (PatternMatchUtils.simpleMatch(toPattern(endPoint), path + "/")) {
-                        return wsBrokerage;
-                    }
-                }
-            }
+        ProxyRouteTable.Route route = getRouteTable().getRoute(uri);
+        return route != null ? route.getBrokerage() : null;
+    }
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+        ZuulWebSocketProperties.WsBrokerage wsBrokerage = getWebSocketBrokarage(
+                session.getUri());
+        if (wsBrokerage != null && wsBrokerage.getMode() == ZuulWebSocketProperties.Mode.TUNNEL) {
+            // tunneled sessions never reach the local STOMP message broker
+            tunneledSessions.add(session);
+            return;
         }
 
-        return null;
-    }
+        if (wsBrokerage != null && wsBrokerage.getMode() == ZuulWebSocketProperties.Mode.PURE_PROXY) {
+            pureProxiedSessions.add(session);
+        }
+
+        if (isSlowConsumerEnabled(wsBrokerage)) {
+            // frames to the user agent are written through the decorator from now on
+            session = SlowConsumerSessionDecorator.decorate(session, wsBrokerage, metrics,
+                    slowConsumerExecutor, slowConsumerScheduler);
+        }
 
-    private String toPattern(String path) {
-        path = path.startsWith("/") ? "**" + path : "**/" + path;
-        return path.endsWith("/") ? path + "**" : path + "/**";
+        super.afterConnectionEstablished(session);
     }
 
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus)
             throws Exception {
+        if (tunneledSessions.remove(session)) {
+            disconnectTunnel(tunnels.remove(session));
+            return;
+        }
+
         disconnectFromProxiedTarget(session);
+        pureProxiedSessions.remove(session);
         super.afterConnectionClosed(session, closeStatus);
     }
 
     @Override
     public void handleMessage(WebSocketSession session, WebSocketMessage<?> message)
             throws Exception {
-        super.handleMessage(session, message);
-        handleMessageFromClient(session, message);
-    }
+        if (tunneledSessions.contains(session)) {
+            handleTunneledMessage(session, message);
+            return;
+        }
 
-    private void handleMessageFromClient(WebSocketSession session,
-                                         WebSocketMessage<?> message) throws Exception {
-        boolean handled = false;
         WebSocketMessageAccessor accessor = WebSocketMessageAccessor.create(message);
-        if (StompCommand.SEND.toString().equalsIgnoreCase(accessor.getCommand())) {
-            handled = true;
-            sendMessageToProxiedTarget(session, accessor);
+        if (!pureProxiedSessions.contains(session) || isHandledLocally(accessor.getStompCommand())) {
+            super.handleMessage(session, message);
         }
+        handleMessageFromClient(session, accessor);
+    }
+
+    /**
+     * @return whether a frame of a pure proxied session goes through the local message
+     * broker, only the frames the session itself depends on do
+     */
+    private static boolean isHandledLocally(StompCommand command) {
+        // heart-beats have no command
+        return command == null || command == StompCommand.CONNECT
+                || command == StompCommand.STOMP || command == StompCommand.DISCONNECT;
+    }
 
-        if (StompCommand.SUBSCRIBE.toString().equalsIgnoreCase(accessor.getCommand())) {
-            handled = true;
-            subscribeToProxiedTarget(session, accessor);
+    private void handleTunneledMessage(WebSocketSession session,
+                                       WebSocketMessage<?> message) throws Exception {
+        ProxyWebSocketTunnel tunnel = tunnels.get(session);
+        if (tunnel == null) {
+            StompCommand command = WebSocketMessageAccessor.create(message).getStompCommand();
+            if (command != StompCommand.CONNECT && command != StompCommand.STOMP) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Dropping " + command + " received before CONNECT on tunneled session "
+                            + session.getId());
+                }
+                return;
+            }
+
+            tunnel = openTunnel(session);
         }
 
-        if (StompCommand.UNSUBSCRIBE.toString().equalsIgnoreCase(accessor.getCommand())) {
-            handled = true;
-            unsubscribeFromProxiedTarget(session, accessor);
+        tunnel.sendMessage(message);
+    }
+
+    private ProxyWebSocketTunnel openTunnel(WebSocketSession session) {
+        Assert.notNull(webSocketClient, "webSocketClient must not be null");
+
+        ZuulWebSocketProperties.WsBrokerage wsBrokerage = getWebSocketBrokarage(
+                session.getUri());
+        Assert.notNull(wsBrokerage, "wsBrokerage must not be null");
+
+        ProxyWebSocketTunnel tunnel = new ProxyWebSocketTunnel(webSocketClient, session,
+                headersCallback, resolveTargetUri(session,
+                resolveTarget(session, wsBrokerage),
+                getWebSocketServerPath(session.getUri()), true));
+        tunnels.put(session, tunnel);
+        tunnel.connect();
+        return tunnel;
+    }
+
+    private void disconnectTunnel(ProxyWebSocketTunnel tunnel) {
+        if (tunnel != null) {
+            tunnel.disconnect();
         }
+    }
 
-        if (StompCommand.CONNECT.toString().equalsIgnoreCase(accessor.getCommand())) {
-            handled = true;
-            connectToProxiedTarget(session);
+    private void handleMessageFromClient(WebSocketSession session,
+                                         WebSocketMessageAccessor accessor) throws Exception {
+        StompCommand command = accessor.getStompCommand();
+        if (command == null) {
+            return;
         }
 
-        if (!handled) {
-            if (logger.isDebugEnabled()) {
-                logger.debug("STOMP COMMAND " + accessor.getCommand()
-                        + " was not explicitly handled");
-            }
+        switch (command) {
+            case SEND:
+                sendMessageToProxiedTarget(session, accessor);
+                break;
+            case SUBSCRIBE:
+                subscribeToProxiedTarget(session, accessor);
+                break;
+            case UNSUBSCRIBE:
+                unsubscribeFromProxiedTarget(session, accessor);
+                break;
+            case ACK:
+            case NACK:
+                acknowledgeOnProxiedTarget(session, accessor, command == StompCommand.ACK);
+                break;
+            case BEGIN:
+            case COMMIT:
+            case ABORT:
+                handleTransaction(session, accessor, command);
+                break;
+            case DISCONNECT:
+                disconnectFromProxiedTarget(session);
+                break;
+            case CONNECT:
+            case STOMP:
+                connectToProxiedTarget(session);
+                break;
+            default:
+                if (logger.isDebugEnabled()) {
+                    logger.debug("STOMP COMMAND " + command + " was not explicitly handled");
+                }
         }
     }
 
     private void connectToProxiedTarget(WebSocketSession session) {
-        URI sessionUri = session.getUri();
-        ZuulWebSocketProperties.WsBrokerage wsBrokerage = getWebSocketBrokarage(
-                sessionUri);
+        // brokerage and end point of the same table, even if it's swapped meanwhile
+        ProxyRouteTable routeTable = getRouteTable();
+        ProxyRouteTable.Route route = routeTable.getRoute(session.getUri());
 
-        Assert.notNull(wsBrokerage, "wsBrokerage must not be null");
+        Assert.notNull(route, "wsBrokerage must not be null");
 
-        String path = getWebSocketServerPath(wsBrokerage, sessionUri);
-        Assert.notNull(path, "Web socket uri path must be null");
+        ZuulWebSocketProperties.WsBrokerage wsBrokerage = route.getBrokerage();
+        String path = route.getEndPoint();
+        ProxyWebSocketConnectionManager connectionManager = createConnectionManager(session,
+                wsBrokerage, path);
+        managers.put(session, connectionManager);
+        if (!wsBrokerage.getDestinationRoutes().isEmpty()) {
+            destinationRoutes.put(session, new DestinationRoutes(session, routeTable,
+                    wsBrokerage, path));
+        }
+        connectionManager.start();
+    }
+
+    private ProxyWebSocketConnectionManager createConnectionManager(WebSocketSession session,
+                                                                    ZuulWebSocketProperties.WsBrokerage wsBrokerage,
+                                                                    String path) {
+        URI routeTarget = resolveTarget(session, wsBrokerage);
+        ProxyWebSocketConnectionManager connectionManager = instantiateConnectionManager(
+                session, wsBrokerage, routeTarget, path);
+        connectionManager.proxyTarget(routeTarget);
+        connectionManager.targetHealth(targetHealth);
+        connectionManager.retargeter(createRetargeter(session, wsBrokerage, path));
+        if (targetConnections != null) {
+            targetConnections.connected(routeTarget);
+        }
+        connectionManager.errorHandler(this.errorHandler);
+        connectionManager.brokerage(wsBrokerage);
+        connectionManager.messageSender(userAgentMessageSender);
+        connectionManager.connectTimeout(wsBrokerage.getConnectTimeout());
+        connectionManager.pendingFramesLimit(wsBrokerage.getPendingFramesLimit());
+        connectionManager.payloadPassthrough(wsBrokerage.isPayloadPassthrough());
+        boolean pureProxied = pureProxiedSessions.contains(session);
+        if (pureProxied) {
+            // the user agent's subscriptions only exist on the proxied target
+            Assert.notNull(userAgentMessageSender, "userAgentMessageSender must not be null");
+        }
+        // every user agent has upstream subscriptions of its own, publishing their frames
+        // to all local subscribers would deliver each of them once per user agent
+        connectionManager.directDelivery(pureProxied
+                || (wsBrokerage.isDirectDelivery() && userAgentMessageSender != null));
+        if (!ObjectUtils.isEmpty(wsBrokerage.getSharedDestinations())) {
+            Assert.notNull(sharedSubscriptionRegistry,
+                    "sharedSubscriptionRegistry must not be null");
+            connectionManager.sharedSubscriptions(sharedSubscriptionRegistry,
+                    wsBrokerage.getSharedDestinations());
+        }
+        if (!ObjectUtils.isEmpty(wsBrokerage.getLastValueDestinations())) {
+            Assert.notNull(lastValueCache, "lastValueCache must not be null");
+            connectionManager.lastValueCache(lastValueCache,
+                    wsBrokerage.getLastValueDestinations());
+        }
+        // without an interval frames are conflated at the pace the client reads them,
+        // while they wait to be written by the slow consumer decorator
+        if (!ObjectUtils.isEmpty(wsBrokerage.getConflatedDestinations())
+                && (wsBrokerage.getConflationInterval() > 0
+                || !isSlowConsumerEnabled(wsBrokerage))) {
+            connectionManager.conflatedDestinations(wsBrokerage.getConflationInterval(),
+                    wsBrokerage.getConflatedDestinations());
+        }
+        return connectionManager;
+    }
+
+    private boolean isSlowConsumerEnabled(ZuulWebSocketProperties.WsBrokerage wsBrokerage) {
+        return wsBrokerage != null && wsBrokerage.getSlowConsumer().isEnabled()
+                && slowConsumerExecutor != null;
+    }
+
+    private ProxyWebSocketConnectionManager instantiateConnectionManager(WebSocketSession session,
+                                                                         ZuulWebSocketProperties.WsBrokerage wsBrokerage,
+                                                                         URI routeTarget, String path) {
+        ZuulWebSocketProperties.Multiplex multiplex = wsBrokerage.getMultiplex();
+        if (multiplex.isEnabled()) {
+            Assert.notNull(stompSessionPool, "stompSessionPool must not be null");
+            Assert.notNull(userAgentMessageSender, "userAgentMessageSender must not be null");
+            // a shared session can't carry the query string of one user agent
+            return new MultiplexedProxyWebSocketConnectionManager(messagingTemplate,
+                    stompClient, session, headersCallback,
+                    resolveTargetUri(session, routeTarget, path, false), stompSessionPool,
+                    userAgentMessageSender, multiplex.getConnectionsPerTarget());
+        }
+
+        return new ProxyWebSocketConnectionManager(messagingTemplate, stompClient, session,
+                headersCallback, resolveTargetUri(session, routeTarget, path, true));
+    }
 
-        URI routeTarget = proxyTargetResolver.resolveTarget(wsBrokerage);
+    private ProxyWebSocketConnectionManager.Retargeter createRetargeter(
+            final WebSocketSession session, final ZuulWebSocketProperties.WsBrokerage wsBrokerage,
+            final String path) {
+        final boolean includeQuery = !wsBrokerage.getMultiplex().isEnabled();
+        return new ProxyWebSocketConnectionManager.Retargeter() {
+            @Override
+            public void retarget(ProxyWebSocketConnectionManager connectionManager) {
+                URI routeTarget = resolveTarget(session, wsBrokerage);
+                if (routeTarget != null
+                        && !routeTarget.equals(connectionManager.getProxyTarget())) {
+                    retarget(connectionManager, routeTarget);
+                }
+            }
 
+            @Override
+            public void retarget(ProxyWebSocketConnectionManager connectionManager,
+                                 URI routeTarget) {
+                URI current = connectionManager.getProxyTarget();
+                connectionManager.retarget(routeTarget,
+                        resolveTargetUri(session, routeTarget, path, includeQuery));
+                if (targetConnections != null) {
+                    targetConnections.disconnected(current);
+                    targetConnections.connected(routeTarget);
+                }
+            }
+        };
+    }
+
+    private URI resolveTarget(WebSocketSession session,
+                              ZuulWebSocketProperties.WsBrokerage wsBrokerage) {
+        if (proxyTargetResolver instanceof SessionAwareProxyTargetResolver) {
+            return ((SessionAwareProxyTargetResolver) proxyTargetResolver).resolveTarget(
+                    wsBrokerage, session);
+        }
+        return proxyTargetResolver.resolveTarget(wsBrokerage);
+    }
+
+    private String resolveTargetUri(WebSocketSession session, URI routeTarget,
+                                    String path, boolean includeQuery) {
+        Assert.notNull(path, "Web socket uri path must be null");
         Assert.notNull(routeTarget, "routeTarget must not be null");
 
-        String uri = ServletUriComponentsBuilder
+        return ServletUriComponentsBuilder
                 .fromUri(routeTarget)
                 .path(path)
-                .replaceQuery(sessionUri.getQuery())
+                .replaceQuery(includeQuery ? session.getUri().getQuery() : null)
                 .toUriString();
-
-        ProxyWebSocketConnectionManager connectionManager = new ProxyWebSocketConnectionManager(
-                messagingTemplate, stompClient, session, headersCallback, uri);
-        connectionManager.errorHandler(this.errorHandler);
-        managers.put(session, connectionManager);
-        connectionManager.start();
     }
 
     private void disconnectFromProxiedTarget(WebSocketSession session) {
         disconnectProxyManager(managers.remove(session));
+        DestinationRoutes routes = destinationRoutes.remove(session);
+        if (routes != null) {
+            for (ProxyWebSocketConnectionManager manager : routes.getConnectionManagers()) {
+                disconnectProxyManager(manager);
+            }
+        }
+    }
+
+    /**
+     * @return the connection manager of the backend serving the given destination
+     */
+    private ProxyWebSocketConnectionManager getConnectionManager(WebSocketSession session,
+                                                                 String destination) {
+        DestinationRoutes routes = destinationRoutes.get(session);
+        ProxyWebSocketConnectionManager manager = routes != null && destination != null
+                ? routes.getConnectionManager(destination) : null;
+        return manager != null ? manager : managers.get(session);
+    }
+
+    /**
+     * @return the connection managers of all backends the given session is connected to
+     */
+    private List<ProxyWebSocketConnectionManager> getConnectionManagers(
+            WebSocketSession session) {
+        ProxyWebSocketConnectionManager manager = managers.get(session);
+        DestinationRoutes routes = destinationRoutes.get(session);
+        if (manager == null || routes == null) {
+            return manager != null ? Collections.singletonList(manager)
+                    : Collections.<ProxyWebSocketConnectionManager>emptyList();
+        }
+
+        List<ProxyWebSocketConnectionManager> connectionManagers = routes.getConnectionManagers();
+        connectionManagers.add(0, manager);
+        return connectionManagers;
+    }
+
+    /**
+     * @return the connection managers of all sessions proxied by this handler
+     */
+    List<ProxyWebSocketConnectionManager> getConnectionManagers() {
+        List<ProxyWebSocketConnectionManager> connectionManagers = new ArrayList<>(
+                managers.values());
+        for (DestinationRoutes routes : destinationRoutes.values()) {
+            connectionManagers.addAll(routes.getConnectionManagers());
+        }
+        return connectionManagers;
     }
 
     private void disconnectProxyManager(ProxyWebSocketConnectionManager proxyManager) {
         if (proxyManager != null) {
+            if (targetConnections != null) {
+                targetConnections.disconnected(proxyManager.getProxyTarget());
+            }
+
             try {
                 proxyManager.disconnect();
             } catch (Throwable ignored) {
@@ -202,21 +512,130 @@ public class ProxyWebSocketHandler extends WebSocketHandlerDecorator {
 
     private void unsubscribeFromProxiedTarget(WebSocketSession session,
                                               WebSocketMessageAccessor accessor) {
-        ProxyWebSocketConnectionManager manager = managers.get(session);
-        if (manager != null) {
-            manager.unsubscribe(accessor.getDestination());
+        // managers ignore ids of subscriptions they don't have
+        for (ProxyWebSocketConnectionManager manager : getConnectionManagers(session)) {
+            manager.unsubscribe(accessor.getHeader("id"));
         }
     }
 
     private void sendMessageToProxiedTarget(WebSocketSession session,
                                             WebSocketMessageAccessor accessor) {
-        ProxyWebSocketConnectionManager manager = managers.get(session);
-        manager.sendMessage(accessor.getDestination(), accessor.getPayload());
+        StompHeaders headers = accessor.getHeaders();
+        ProxyWebSocketConnectionManager manager = getConnectionManager(session,
+                headers.getDestination());
+        // written by the encoder for the body actually sent
+        headers.remove(StompHeaders.CONTENT_LENGTH);
+        manager.sendMessage(headers, accessor.getPayloadBytes());
     }
 
     private void subscribeToProxiedTarget(WebSocketSession session,
                                           WebSocketMessageAccessor accessor) throws Exception {
-        ProxyWebSocketConnectionManager manager = managers.get(session);
-        manager.subscribe(accessor.getDestination());
+        ProxyWebSocketConnectionManager manager = getConnectionManager(session,
+                accessor.getDestination());
+        manager.subscribe(accessor.getHeader("id"), accessor.getDestination(),
+                accessor.getHeader("ack"));
+    }
+
+    private void acknowledgeOnProxiedTarget(WebSocketSession session,
+                                            WebSocketMessageAccessor accessor,
+                                            boolean consumed) {
+        // STOMP 1.1 clients acknowledge by message-id
+        String ackId = accessor.getHeader("id");
+        ackId = ackId != null ? ackId : accessor.getHeader("message-id");
+        for (ProxyWebSocketConnectionManager manager : getConnectionManagers(session)) {
+            manager.acknowledge(ackId, consumed, accessor.getHeader("transaction"));
+        }
+    }
+
+    private void handleTransaction(WebSocketSession session,
+                                   WebSocketMessageAccessor accessor, StompCommand command) {
+        String transaction = accessor.getHeader("transaction");
+        DestinationRoutes routes = destinationRoutes.get(session);
+        if (routes != null) {
+            routes.transaction(command, transaction);
+        }
+
+        // every backend holds the frames of the transaction it is sent
+        for (ProxyWebSocketConnectionManager manager : getConnectionManagers(session)) {
+            if (command == StompCommand.BEGIN) {
+                manager.begin(transaction);
+            } else if (command == StompCommand.COMMIT) {
+                manager.commit(transaction);
+            } else {
+                manager.abort(transaction);
+            }
+        }
+    }
+
+    /**
+     * The backends of a client session besides the one of its brokerage, connected on
+     * the first frame to a destination they serve.
+     */
+    private final class DestinationRoutes {
+        private final WebSocketSession session;
+        private final String path;
+        private final Map<String, ZuulWebSocketProperties.WsBrokerage> brokeragesByPrefix = new LinkedHashMap<>();
+        private final Map<ZuulWebSocketProperties.WsBrokerage, ProxyWebSocketConnectionManager> connectionManagers = new LinkedHashMap<>();
+        private final Set<String> transactions = new HashSet<>();
+
+        DestinationRoutes(WebSocketSession session, ProxyRouteTable routeTable,
+                          ZuulWebSocketProperties.WsBrokerage wsBrokerage, String path) {
+            this.session = session;
+            this.path = path;
+            for (Map.Entry<String, String[]> route : wsBrokerage.getDestinationRoutes()
+                    .entrySet()) {
+                ZuulWebSocketProperties.WsBrokerage target = routeTable.getBrokerage(
+                        route.getKey());
+                for (String prefix : route.getValue()) {
+                    brokeragesByPrefix.put(prefix, target);
+                }
+            }
+        }
+
+        /**
+         * @return the connection manager of the brokerage with the longest prefix of the
+         * given destination, {@code null} if no prefix matches
+         */
+        synchronized ProxyWebSocketConnectionManager getConnectionManager(String destination) {
+            String prefix = null;
+            ZuulWebSocketProperties.WsBrokerage target = null;
+            for (Map.Entry<String, ZuulWebSocketProperties.WsBrokerage> route : brokeragesByPrefix
+                    .entrySet()) {
+                if (destination.startsWith(route.getKey())
+                        && (prefix == null || route.getKey().length() > prefix.length())) {
+                    prefix = route.getKey();
+                    target = route.getValue();
+                }
+            }
+
+            if (target == null) {
+                return null;
+            }
+
+            ProxyWebSocketConnectionManager connectionManager = connectionManagers.get(target);
+            if (connectionManager == null) {
+                String targetPath = ObjectUtils.isEmpty(target.getEndPoints()) ? path
+                        : target.getEndPoints()[0];
+                connectionManager = createConnectionManager(session, target, targetPath);
+                for (String transaction : transactions) {
+                    connectionManager.begin(transaction);
+                }
+                connectionManagers.put(target, connectionManager);
+                connectionManager.start();
+            }
+            return connectionManager;
+        }
+
+        synchronized List<ProxyWebSocketConnectionManager> getConnectionManagers() {
+            return new ArrayList<>(connectionManagers.values());
+        }
+
+        synchronized void transaction(StompCommand command, String transaction) {
+            if (command == StompCommand.BEGIN) {
+                transactions.add(transaction);
+            } else {
+                transactions.remove(transaction);
+            }
+        }
     }
 }
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.socket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketHttpHeaders;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.client.WebSocketClient;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * A raw web socket bridge between client and backend server via zuul reverse proxy.
+ * Frames are relayed byte for byte in both directions, STOMP is negotiated end to end
+ * between the client and the backend.
+ * <p>
+ * The handshake with the backend doesn't block the caller, client frames received
+ * meanwhile are held and relayed once it completes, up to a fixed number of them.
+ *
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class ProxyWebSocketTunnel extends AbstractWebSocketHandler {
+    private final Logger logger = LoggerFactory.getLogger(ProxyWebSocketTunnel.class);
+    private final WebSocketClient webSocketClient;
+    private final WebSocketSession userAgentSession;
+    private final WebSocketHttpHeadersCallback httpHeadersCallback;
+    private final URI uri;
+    private final Queue<WebSocketMessage<?>> pendingMessages = new ArrayDeque<>();
+    private int pendingMessagesLimit = 256;
+    private volatile WebSocketSession serverSession;
+    private boolean closed;
+
+    public ProxyWebSocketTunnel(WebSocketClient webSocketClient,
+                                WebSocketSession userAgentSession,
+                                WebSocketHttpHeadersCallback httpHeadersCallback, String uri) {
+        this.webSocketClient = webSocketClient;
+        this.userAgentSession = userAgentSession;
+        this.httpHeadersCallback = httpHeadersCallback;
+        this.uri = URI.create(uri);
+    }
+
+    private WebSocketHttpHeaders buildWebSocketHttpHeaders() {
+        WebSocketHttpHeaders wsHeaders = new WebSocketHttpHeaders();
+        if (httpHeadersCallback != null) {
+            httpHeadersCallback.applyHeaders(userAgentSession, wsHeaders);
+        }
+        return wsHeaders;
+    }
+
+    public void pendingMessagesLimit(int pendingMessagesLimit) {
+        this.pendingMessagesLimit = pendingMessagesLimit;
+    }
+
+    /**
+     * Starts the handshake with the backend, returns without waiting for it. The client
+     * session is closed if the handshake fails.
+     */
+    public void connect() {
+        webSocketClient.doHandshake(this, buildWebSocketHttpHeaders(), uri)
+                .addCallback(new ListenableFutureCallback<WebSocketSession>() {
+                    @Override
+                    public void onSuccess(WebSocketSession session) {
+                        connected(session);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable ex) {
+                        logger.error("Error connecting to web socket uri " + uri, ex);
+                        synchronized (pendingMessages) {
+                            pendingMessages.clear();
+                        }
+                        try {
+                            closeUserAgentSession(CloseStatus.SERVER_ERROR);
+                        } catch (IOException e) {
+                            // nothing
+                        }
+                    }
+                });
+    }
+
+    private void connected(WebSocketSession session) {
+        synchronized (pendingMessages) {
+            if (closed) {
+                // the client went away during the handshake
+                closeQuietly(session);
+                return;
+            }
+
+            serverSession = session;
+            try {
+                WebSocketMessage<?> message;
+                while ((message = pendingMessages.poll()) != null) {
+                    session.sendMessage(message);
+                }
+            } catch (IOException e) {
+                logger.error("Error relaying pending frames to web socket uri " + uri, e);
+                pendingMessages.clear();
+                closeQuietly(session);
+            }
+        }
+    }
+
+    public boolean isConnected() {
+        return (serverSession != null && serverSession.isOpen());
+    }
+
+    /**
+     * Relays a client frame to the backend, holds it until the handshake completes.
+     */
+    public void sendMessage(WebSocketMessage<?> message) throws IOException {
+        synchronized (pendingMessages) {
+            if (serverSession == null) {
+                if (closed) {
+                    return;
+                }
+
+                if (pendingMessages.size() >= pendingMessagesLimit) {
+                    logger.warn("Too many frames pending for web socket uri " + uri);
+                    pendingMessages.clear();
+                    closeUserAgentSession(CloseStatus.POLICY_VIOLATION
+                            .withReason("Too many frames pending"));
+                    return;
+                }
+
+                pendingMessages.add(message);
+                return;
+            }
+
+            serverSession.sendMessage(message);
+        }
+    }
+
+    @Override
+    public void handleMessage(WebSocketSession session, WebSocketMessage<?> message)
+            throws Exception {
+        if (userAgentSession.isOpen()) {
+            userAgentSession.sendMessage(message);
+        }
+    }
+
+    @Override
+    public void handleTransportError(WebSocketSession session, Throwable exception)
+            throws Exception {
+        logger.error("Tunnel to web socket uri " + uri + " failed", exception);
+        closeUserAgentSession(CloseStatus.SERVER_ERROR);
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status)
+            throws Exception {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Tunnel to web socket uri " + uri + " closed with " + status);
+        }
+        closeUserAgentSession(status);
+    }
+
+    private void closeUserAgentSession(CloseStatus status) throws IOException {
+        if (userAgentSession.isOpen()) {
+            // reserved codes are never sent on the wire, they only describe what happened
+            boolean reserved = status.equalsCode(CloseStatus.NO_STATUS_CODE)
+                    || status.equalsCode(CloseStatus.NO_CLOSE_FRAME)
+                    || status.equalsCode(CloseStatus.TLS_HANDSHAKE_FAILURE);
+            userAgentSession.close(reserved ? CloseStatus.GOING_AWAY : status);
+        }
+    }
+
+    public void disconnect() {
+        synchronized (pendingMessages) {
+            closed = true;
+            pendingMessages.clear();
+        }
+
+        if (isConnected()) {
+            closeQuietly(serverSession);
+        }
+    }
+
+    private static void closeQuietly(WebSocketSession session) {
+        try {
+            session.close();
+        } catch (Exception e) {
+            // nothing
+        }
+    }
+}
@@ -11,13 +11,15 @@ import java.io.IOException;
  * Created by ronald22 on 06/04/2017.
  */
 public class ReconnectErrorHandler implements ProxyWebSocketErrorHandler {
-    private static final long CONNECTION_LOST_RECONNECT_INTERVAL = 10000;
     private final Log logger = LogFactory
             .getLog(ReconnectErrorHandler.class);
     private ErrorAnalyzer errorAnalyzer;
+    private ProxyReconnectScheduler reconnectScheduler;
 
-    public ReconnectErrorHandler(ErrorAnalyzer errorAnalyzer) {
+    public ReconnectErrorHandler(ErrorAnalyzer errorAnalyzer,
+                                 ProxyReconnectScheduler reconnectScheduler) {
         this.errorAnalyzer = errorAnalyzer;
+        this.reconnectScheduler = reconnectScheduler;
     }
 
     @Override
@@ -32,7 +34,7 @@ public class ReconnectErrorHandler implements ProxyWebSocketErrorHandler {
         ProxySessionException exception = (ProxySessionException) t;
 
         if (shouldAttemptToReconnect(exception)) {
-            executeReconnectThread(exception.getConnectionManager());
+            reconnectScheduler.scheduleReconnect(exception.getConnectionManager());
         }
     }
 
@@ -61,16 +63,4 @@ public class ReconnectErrorHandler implements ProxyWebSocketErrorHandler {
         return throwable != null
                 && throwable.getMessage().toLowerCase().contains(" refused ");
     }
-
-    private void executeReconnectThread(
-            final ProxyWebSocketConnectionManager clientConnectionManager) {
-        Thread t = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                clientConnectionManager.reconnect(CONNECTION_LOST_RECONNECT_INTERVAL);
-            }
-        });
-        t.setDaemon(true);
-        t.start();
-    }
 }
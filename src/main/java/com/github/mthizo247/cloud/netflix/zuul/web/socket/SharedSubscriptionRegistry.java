@@ -0,0 +1,283 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.socket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompFrameHandler;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.simp.stomp.StompSessionHandlerAdapter;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.util.Assert;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+
+import java.lang.reflect.Type;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps a single backend subscription per destination and backend server for
+ * destinations broadcast to many user agents. The backend subscription is reference
+ * counted, it is opened with the first user agent subscription and closed with the last
+ * one, every frame received on it is fanned out to all subscribed user agents. User
+ * agents of brokerages relaying payloads unchanged share a subscription of their own,
+ * its frame bodies are taken as {@code byte[]}.
+ * <p>
+ * Backend subscriptions are made on sessions of their own, opened without the
+ * credentials of any user agent, so only public destinations, the same for everyone,
+ * may be shared. When such a session is lost its subscriptions are made again on a new
+ * one, the sessions of the subscribed user agents are left alone.
+ *
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class SharedSubscriptionRegistry {
+    private final Logger logger = LoggerFactory.getLogger(SharedSubscriptionRegistry.class);
+    private final ProxyStompSessionPool sessionPool;
+    private final UserAgentMessageSender messageSender;
+    private final TaskScheduler taskScheduler;
+    private final ConcurrentMap<String, SharedDestination> destinations = new ConcurrentHashMap<>();
+    private long resubscribeDelay = 5000;
+
+    public SharedSubscriptionRegistry(ProxyStompSessionPool sessionPool,
+                                      UserAgentMessageSender messageSender,
+                                      TaskScheduler taskScheduler) {
+        Assert.notNull(sessionPool, "sessionPool must not be null");
+        Assert.notNull(messageSender, "messageSender must not be null");
+        Assert.notNull(taskScheduler, "taskScheduler must not be null");
+        this.sessionPool = sessionPool;
+        this.messageSender = messageSender;
+        this.taskScheduler = taskScheduler;
+    }
+
+    /**
+     * @param resubscribeDelay milliseconds to wait before subscribing again after the
+     *                         backend server could not be connected
+     */
+    public void resubscribeDelay(long resubscribeDelay) {
+        this.resubscribeDelay = resubscribeDelay;
+    }
+
+    /**
+     * Adds a user agent subscription to the shared subscription of the destination on
+     * the given backend server, subscribing on the backend server if it is the first.
+     */
+    public void subscribe(String uri, String destination,
+                          ProxyWebSocketConnectionManager connectionManager,
+                          String subscriptionId) {
+        Subscriber subscriber = new Subscriber(connectionManager, subscriptionId);
+        boolean passthrough = connectionManager.isPayloadPassthrough();
+        while (true) {
+            SharedDestination shared = destinations.get(key(uri, destination, passthrough));
+            if (shared == null) {
+                SharedDestination created = new SharedDestination(uri, destination, passthrough);
+                shared = destinations.putIfAbsent(created.key, created);
+                shared = shared == null ? created : shared;
+            }
+
+            if (shared.add(subscriber)) {
+                return;
+            }
+            // lost a race with the last unsubscribe, start over with a new entry
+        }
+    }
+
+    public void unsubscribe(String uri, String destination,
+                            ProxyWebSocketConnectionManager connectionManager,
+                            String subscriptionId) {
+        SharedDestination shared = destinations.get(key(uri, destination,
+                connectionManager.isPayloadPassthrough()));
+        if (shared != null) {
+            shared.remove(new Subscriber(connectionManager, subscriptionId));
+        }
+    }
+
+    /**
+     * @return the number of user agent subscriptions sharing the backend subscription
+     */
+    public int getSubscriberCount(String uri, String destination) {
+        int count = 0;
+        for (boolean passthrough : new boolean[]{false, true}) {
+            SharedDestination shared = destinations.get(key(uri, destination, passthrough));
+            count += shared != null ? shared.subscribers.size() : 0;
+        }
+        return count;
+    }
+
+    private static String key(String uri, String destination, boolean passthrough) {
+        return uri + " " + destination + (passthrough ? " passthrough" : "");
+    }
+
+    private class SharedDestination extends StompSessionHandlerAdapter
+            implements StompFrameHandler, ListenableFutureCallback<StompSession>, Runnable {
+        private final String uri;
+        private final String destination;
+        private final String key;
+        private final boolean passthrough;
+        private final Set<Subscriber> subscribers = new LinkedHashSet<>();
+        private volatile Subscriber[] snapshot = new Subscriber[0];
+        private StompSession.Subscription subscription;
+        private boolean subscribing;
+        private boolean removed;
+
+        SharedDestination(String uri, String destination, boolean passthrough) {
+            this.uri = uri;
+            this.destination = destination;
+            this.passthrough = passthrough;
+            this.key = key(uri, destination, passthrough);
+        }
+
+        synchronized boolean add(Subscriber subscriber) {
+            if (removed) {
+                return false;
+            }
+
+            subscribers.add(subscriber);
+            snapshot = subscribers.toArray(new Subscriber[subscribers.size()]);
+            subscribe();
+            return true;
+        }
+
+        private synchronized void subscribe() {
+            if (!subscribing && !removed) {
+                subscribing = true;
+                sessionPool.acquire(uri, 1, this).addCallback(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            subscribe();
+        }
+
+        @Override
+        public synchronized void onSuccess(StompSession session) {
+            if (removed) {
+                return;
+            }
+
+            StompHeaders headers = new StompHeaders();
+            headers.setDestination(destination);
+            subscription = session.subscribe(headers, this);
+        }
+
+        @Override
+        public void onFailure(Throwable ex) {
+            logger.error("Error subscribing to shared destination " + destination
+                    + " on " + uri, ex);
+            synchronized (this) {
+                subscribing = false;
+            }
+            taskScheduler.schedule(this, new Date(System.currentTimeMillis() + resubscribeDelay));
+        }
+
+        synchronized void remove(Subscriber subscriber) {
+            if (!subscribers.remove(subscriber)) {
+                return;
+            }
+
+            snapshot = subscribers.toArray(new Subscriber[subscribers.size()]);
+            if (subscribers.isEmpty()) {
+                removed = true;
+                destinations.remove(key, this);
+                if (subscription != null) {
+                    try {
+                        subscription.unsubscribe();
+                    } catch (Exception e) {
+                        // backend session is gone already
+                    }
+                    subscription = null;
+                }
+                sessionPool.release(uri, this);
+            }
+        }
+
+        @Override
+        public Type getPayloadType(StompHeaders headers) {
+            return passthrough ? byte[].class : Object.class;
+        }
+
+        @Override
+        public void handleFrame(StompHeaders headers, Object payload) {
+            // converted once, the same body is sent to every subscriber
+            UserAgentMessageSender.Frame frame = messageSender.serialize(headers, payload);
+            for (Subscriber subscriber : snapshot) {
+                try {
+                    subscriber.connectionManager.handleSharedFrame(subscriber.subscriptionId,
+                            frame.getHeaders(), frame.getBody());
+                } catch (Exception e) {
+                    logger.error("Error relaying " + destination + " to subscription "
+                            + subscriber.subscriptionId, e);
+                }
+            }
+        }
+
+        @Override
+        public void handleException(StompSession session, StompCommand command,
+                                    StompHeaders headers, byte[] payload, Throwable ex) {
+            logger.error("Error handling " + command + " frame from " + destination, ex);
+        }
+
+        @Override
+        public void handleTransportError(StompSession session, Throwable ex) {
+            synchronized (this) {
+                if (subscription == null) {
+                    // failed to connect, onFailure takes care of it
+                    return;
+                }
+
+                logger.warn("Lost session of shared destination " + destination + " on "
+                        + uri + ", subscribing again");
+                // the pool has dropped the lease of the lost session already
+                subscription = null;
+                subscribing = false;
+            }
+
+            subscribe();
+        }
+    }
+
+    private static final class Subscriber {
+        private final ProxyWebSocketConnectionManager connectionManager;
+        private final String subscriptionId;
+
+        Subscriber(ProxyWebSocketConnectionManager connectionManager, String subscriptionId) {
+            this.connectionManager = connectionManager;
+            this.subscriptionId = subscriptionId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Subscriber that = (Subscriber) o;
+            return connectionManager == that.connectionManager
+                    && subscriptionId.equals(that.subscriptionId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(connectionManager) + subscriptionId.hashCode();
+        }
+    }
+}
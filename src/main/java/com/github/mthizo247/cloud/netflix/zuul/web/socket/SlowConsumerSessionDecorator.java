@@ -0,0 +1,386 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.socket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.util.ObjectUtils;
+import org.springframework.util.PatternMatchUtils;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+import org.springframework.web.socket.sockjs.transport.SockJsSession;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Buffers frames sent to a user agent session and writes them on a separate executor,
+ * senders never wait for a slow reader. As Spring's own concurrent session decorator
+ * wraps this one it never gets to buffer anything itself.
+ * <p>
+ * Once the buffer is over its byte limit new frames are handled by the
+ * {@link ZuulWebSocketProperties.OverflowPolicy overflow policy} of the brokerage and
+ * every policy hit is counted in the {@link ZuulWebSocketMetrics}. A session whose write
+ * in progress has taken longer than the send time limit is closed whatever the policy,
+ * the stuck write would hold an executor thread for as long as the client doesn't read.
+ * The limit is checked as frames are offered and, given a task scheduler, by a timer
+ * armed while writes are in progress, so a write stuck on the last frame is caught too.
+ * <p>
+ * Frames of the conflated destinations of the brokerage still waiting to be written
+ * are replaced by newer frames of the same subscription and destination, the client
+ * gets the latest value at the pace it reads.
+ *
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class SlowConsumerSessionDecorator extends WebSocketSessionDecorator {
+    private final Logger logger = LoggerFactory.getLogger(SlowConsumerSessionDecorator.class);
+    private final ZuulWebSocketProperties.WsBrokerage wsBrokerage;
+    private final ZuulWebSocketProperties.SlowConsumer slowConsumer;
+    private final ZuulWebSocketMetrics metrics;
+    private final Executor executor;
+    private final TaskScheduler taskScheduler;
+    private final String[] conflatedDestinations;
+    private final LinkedList<BufferedFrame> buffer = new LinkedList<>();
+    private final AtomicBoolean flushing = new AtomicBoolean();
+    private final AtomicBoolean watching = new AtomicBoolean();
+    private long bufferSize;
+    private volatile long sendStartTime;
+    private volatile boolean closing;
+
+    protected SlowConsumerSessionDecorator(WebSocketSession session,
+                                           ZuulWebSocketProperties.WsBrokerage wsBrokerage,
+                                           ZuulWebSocketMetrics metrics, Executor executor,
+                                           TaskScheduler taskScheduler) {
+        super(session);
+        this.wsBrokerage = wsBrokerage;
+        this.slowConsumer = wsBrokerage.getSlowConsumer();
+        this.metrics = metrics;
+        this.executor = executor;
+        this.taskScheduler = taskScheduler;
+        this.conflatedDestinations = wsBrokerage.getConflatedDestinations();
+    }
+
+    /**
+     * Decorates the given session, SockJS sessions stay recognisable as such.
+     */
+    public static SlowConsumerSessionDecorator decorate(WebSocketSession session,
+                                                        ZuulWebSocketProperties.WsBrokerage wsBrokerage,
+                                                        ZuulWebSocketMetrics metrics,
+                                                        Executor executor) {
+        return decorate(session, wsBrokerage, metrics, executor, null);
+    }
+
+    /**
+     * Decorates the given session, writes stuck for longer than the send time limit are
+     * caught on the given task scheduler even when no further frames are sent.
+     */
+    public static SlowConsumerSessionDecorator decorate(WebSocketSession session,
+                                                        ZuulWebSocketProperties.WsBrokerage wsBrokerage,
+                                                        ZuulWebSocketMetrics metrics,
+                                                        Executor executor,
+                                                        TaskScheduler taskScheduler) {
+        if (session instanceof SockJsSession) {
+            return new SockJsSlowConsumerSessionDecorator(session, wsBrokerage, metrics,
+                    executor, taskScheduler);
+        }
+        return new SlowConsumerSessionDecorator(session, wsBrokerage, metrics, executor,
+                taskScheduler);
+    }
+
+    public int getBufferSize() {
+        synchronized (buffer) {
+            return (int) bufferSize;
+        }
+    }
+
+    @Override
+    public void sendMessage(WebSocketMessage<?> message) throws IOException {
+        if (closing) {
+            return;
+        }
+
+        boolean buffered;
+        synchronized (buffer) {
+            buffered = offer(new BufferedFrame(message));
+        }
+
+        if (closing) {
+            closeSlowConsumer();
+            return;
+        }
+
+        if (buffered && flushing.compareAndSet(false, true)) {
+            // otherwise the flush in progress picks the frame up
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            });
+        }
+    }
+
+    private boolean offer(BufferedFrame frame) {
+        if (isSendTimeLimitExceeded()) {
+            metrics.increment(wsBrokerage, "slow-consumer.close");
+            closing = true;
+            return false;
+        }
+
+        if (isConflated(frame) && conflate(frame)) {
+            // the client hasn't read the previous value yet
+            return true;
+        }
+
+        if (bufferSize + frame.size <= slowConsumer.getBufferSizeLimit()) {
+            add(frame);
+            return true;
+        }
+
+        switch (slowConsumer.getOverflowPolicy()) {
+            case DROP_NEWEST:
+                metrics.increment(wsBrokerage, "slow-consumer.drop-newest");
+                return false;
+            case CONFLATE:
+                if (conflate(frame)) {
+                    metrics.increment(wsBrokerage, "slow-consumer.conflate");
+                    dropOldest();
+                    return true;
+                }
+                // nothing to conflate with
+                return addDroppingOldest(frame);
+            case DROP_OLDEST:
+                return addDroppingOldest(frame);
+            default:
+                metrics.increment(wsBrokerage, "slow-consumer.close");
+                closing = true;
+                return false;
+        }
+    }
+
+    private void add(BufferedFrame frame) {
+        buffer.add(frame);
+        bufferSize += frame.size;
+    }
+
+    private boolean addDroppingOldest(BufferedFrame frame) {
+        metrics.increment(wsBrokerage, "slow-consumer.drop-oldest");
+        add(frame);
+        dropOldest();
+        return true;
+    }
+
+    private void dropOldest() {
+        // the newest frame is always kept
+        while (bufferSize > slowConsumer.getBufferSizeLimit() && buffer.size() > 1) {
+            bufferSize -= buffer.removeFirst().size;
+        }
+    }
+
+    /**
+     * Replaces the buffered frame of the same subscription and destination with the
+     * given one, the replacing frame keeps the position of the replaced one.
+     */
+    private boolean conflate(BufferedFrame frame) {
+        String key = frame.getConflationKey();
+        if (key == null) {
+            return false;
+        }
+
+        ListIterator<BufferedFrame> iterator = buffer.listIterator();
+        while (iterator.hasNext()) {
+            BufferedFrame buffered = iterator.next();
+            if (key.equals(buffered.getConflationKey())) {
+                iterator.set(frame);
+                bufferSize += frame.size - buffered.size;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isConflated(BufferedFrame frame) {
+        return !ObjectUtils.isEmpty(conflatedDestinations) && frame.getConflationKey() != null
+                && PatternMatchUtils.simpleMatch(conflatedDestinations, frame.destination);
+    }
+
+    private boolean isSendTimeLimitExceeded() {
+        long start = sendStartTime;
+        return start > 0 && System.currentTimeMillis() - start > slowConsumer.getSendTimeLimit();
+    }
+
+    private void flush() {
+        do {
+            try {
+                while (!closing) {
+                    BufferedFrame frame;
+                    synchronized (buffer) {
+                        frame = buffer.poll();
+                        if (frame == null) {
+                            break;
+                        }
+                        bufferSize -= frame.size;
+                    }
+
+                    sendStartTime = System.currentTimeMillis();
+                    watchSendTime();
+                    getDelegate().sendMessage(frame.message);
+                    sendStartTime = 0;
+                }
+            } catch (Exception e) {
+                logger.error("Error writing to user agent session " + getId(), e);
+                closing = true;
+                closeSlowConsumer();
+            } finally {
+                sendStartTime = 0;
+                flushing.set(false);
+            }
+            // a frame buffered right before the flag was reset would be left behind
+        } while (!closing && !isBufferEmpty() && flushing.compareAndSet(false, true));
+    }
+
+    /**
+     * Arms the timer checking the write in progress unless it is armed already.
+     */
+    private void watchSendTime() {
+        if (taskScheduler != null && slowConsumer.getSendTimeLimit() > 0
+                && watching.compareAndSet(false, true)) {
+            scheduleSendTimeCheck(sendStartTime);
+        }
+    }
+
+    private void scheduleSendTimeCheck(long start) {
+        taskScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                checkSendTime();
+            }
+        }, new Date(start + slowConsumer.getSendTimeLimit() + 1));
+    }
+
+    private void checkSendTime() {
+        if (closing) {
+            watching.set(false);
+            return;
+        }
+
+        if (isSendTimeLimitExceeded()) {
+            metrics.increment(wsBrokerage, "slow-consumer.close");
+            closing = true;
+            watching.set(false);
+            closeSlowConsumer();
+            return;
+        }
+
+        long start = sendStartTime;
+        if (start > 0) {
+            // another write is in progress by now
+            scheduleSendTimeCheck(start);
+            return;
+        }
+
+        watching.set(false);
+        // a write started right before the flag was reset would go unchecked
+        if (sendStartTime > 0) {
+            watchSendTime();
+        }
+    }
+
+    private boolean isBufferEmpty() {
+        synchronized (buffer) {
+            return buffer.isEmpty();
+        }
+    }
+
+    private void closeSlowConsumer() {
+        synchronized (buffer) {
+            buffer.clear();
+            bufferSize = 0;
+        }
+
+        if (logger.isWarnEnabled()) {
+            logger.warn("Closing slow consumer session " + getId());
+        }
+
+        try {
+            getDelegate().close(new CloseStatus(slowConsumer.getCloseStatusCode(),
+                    "Slow consumer"));
+        } catch (Exception e) {
+            // nothing
+        }
+    }
+
+    private static final class BufferedFrame {
+        private final WebSocketMessage<?> message;
+        private final int size;
+        private String conflationKey;
+        private String destination;
+        private boolean conflationKeyResolved;
+
+        BufferedFrame(WebSocketMessage<?> message) {
+            this.message = message;
+            this.size = message.getPayloadLength();
+        }
+
+        /**
+         * @return subscription and destination of a MESSAGE frame, {@code null} for any
+         * other frame
+         */
+        String getConflationKey() {
+            if (!conflationKeyResolved) {
+                WebSocketMessageAccessor accessor = WebSocketMessageAccessor.create(message);
+                if (accessor.getStompCommand() == StompCommand.MESSAGE
+                        && accessor.getDestination() != null) {
+                    destination = accessor.getDestination();
+                    conflationKey = accessor.getHeader("subscription") + " " + destination;
+                }
+                conflationKeyResolved = true;
+            }
+            return conflationKey;
+        }
+    }
+
+    private static final class SockJsSlowConsumerSessionDecorator
+            extends SlowConsumerSessionDecorator implements SockJsSession {
+
+        SockJsSlowConsumerSessionDecorator(WebSocketSession session,
+                                           ZuulWebSocketProperties.WsBrokerage wsBrokerage,
+                                           ZuulWebSocketMetrics metrics, Executor executor,
+                                           TaskScheduler taskScheduler) {
+            super(session, wsBrokerage, metrics, executor, taskScheduler);
+        }
+
+        @Override
+        public long getTimeSinceLastActive() {
+            return ((SockJsSession) getDelegate()).getTimeSinceLastActive();
+        }
+
+        @Override
+        public void disableHeartbeat() {
+            ((SockJsSession) getDelegate()).disableHeartbeat();
+        }
+    }
+}
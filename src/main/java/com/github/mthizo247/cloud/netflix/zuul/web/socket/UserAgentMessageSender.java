@@ -0,0 +1,154 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.socket;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.Assert;
+import org.springframework.util.MimeType;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * Sends frames received from a backend server straight to one user agent session
+ * through the client outbound channel, bypassing the local message broker.
+ *
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class UserAgentMessageSender {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final MessageChannel clientOutboundChannel;
+    private final MessageConverter messageConverter;
+
+    public UserAgentMessageSender(MessageChannel clientOutboundChannel,
+                                  MessageConverter messageConverter) {
+        Assert.notNull(clientOutboundChannel, "clientOutboundChannel must not be null");
+        Assert.notNull(messageConverter, "messageConverter must not be null");
+        this.clientOutboundChannel = clientOutboundChannel;
+        this.messageConverter = messageConverter;
+    }
+
+    /**
+     * Sends a MESSAGE frame to the given subscription of the user agent session.
+     *
+     * @param headers the headers as received from the backend server, the
+     *                subscription header is replaced with the client subscription id
+     */
+    public void sendMessage(WebSocketSession userAgentSession, String subscriptionId,
+                            StompHeaders headers, Object payload) {
+        Frame frame = serialize(headers, payload);
+        StompHeaderAccessor accessor = StompHeaderAccessor.create(StompCommand.MESSAGE,
+                frame.getHeaders());
+        // the encoder writes the length of the body actually sent
+        accessor.removeNativeHeader(StompHeaders.CONTENT_LENGTH);
+        accessor.setSessionId(userAgentSession.getId());
+        accessor.setSubscriptionId(subscriptionId);
+        if (accessor.getMessageId() == null) {
+            accessor.setMessageId(UUID.randomUUID().toString());
+        }
+
+        clientOutboundChannel.send(MessageBuilder.createMessage(frame.getBody(),
+                accessor.getMessageHeaders()));
+    }
+
+    /**
+     * Sends an ERROR frame to the user agent session, the session is closed once the
+     * frame is written.
+     */
+    public void sendError(WebSocketSession userAgentSession, String message) {
+        StompHeaderAccessor accessor = StompHeaderAccessor.create(StompCommand.ERROR);
+        accessor.setSessionId(userAgentSession.getId());
+        accessor.setMessage(message);
+        clientOutboundChannel.send(MessageBuilder.createMessage(new byte[0],
+                accessor.getMessageHeaders()));
+    }
+
+    /**
+     * Sends a RECEIPT frame for the given receipt id to the user agent session.
+     */
+    public void sendReceipt(WebSocketSession userAgentSession, String receiptId) {
+        StompHeaderAccessor accessor = StompHeaderAccessor.create(StompCommand.RECEIPT);
+        accessor.setSessionId(userAgentSession.getId());
+        accessor.setReceiptId(receiptId);
+        clientOutboundChannel.send(MessageBuilder.createMessage(new byte[0],
+                accessor.getMessageHeaders()));
+    }
+
+    /**
+     * Converts a payload received from the backend server to the body sent to user
+     * agents. The given headers are left as they are, they may be shared by many user
+     * agents, the content type of a converted body is set on a copy of them.
+     * Payloads fanned out to many user agents should be serialized once up front.
+     */
+    public Frame serialize(StompHeaders headers, Object payload) {
+        if (payload == null) {
+            return new Frame(headers, new byte[0]);
+        }
+
+        if (payload instanceof byte[]) {
+            return new Frame(headers, (byte[]) payload);
+        }
+
+        if (payload instanceof String) {
+            return new Frame(headers, ((String) payload).getBytes(UTF8));
+        }
+
+        Message<?> converted = messageConverter.toMessage(payload,
+                new MessageHeaders(null));
+        Assert.state(converted != null && converted.getPayload() instanceof byte[],
+                "Unable to convert payload " + payload.getClass() + " to byte[]");
+        Object contentType = converted.getHeaders().get(MessageHeaders.CONTENT_TYPE);
+        if (contentType instanceof MimeType) {
+            StompHeaders copy = new StompHeaders();
+            copy.putAll(headers);
+            copy.setContentType((MimeType) contentType);
+            headers = copy;
+        }
+
+        return new Frame(headers, (byte[]) converted.getPayload());
+    }
+
+    /**
+     * A serialized body and the headers describing it.
+     */
+    public static final class Frame {
+        private final StompHeaders headers;
+        private final byte[] body;
+
+        public Frame(StompHeaders headers, byte[] body) {
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public StompHeaders getHeaders() {
+            return headers;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+    }
+}
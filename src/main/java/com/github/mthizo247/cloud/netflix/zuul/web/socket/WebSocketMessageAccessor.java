@@ -16,42 +16,133 @@
 
 package com.github.mthizo247.cloud.netflix.zuul.web.socket;
 
-import org.springframework.util.StringUtils;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.WebSocketMessage;
 
 /**
  * An accessor to acess web socket messages before discpatching them to the backend
  * server.
+ * <p>
+ * The STOMP frame is parsed lazily and in place: the command, each header and the
+ * body are only located when first asked for, and nothing but the requested values
+ * is copied out of the underlying frame text or bytes. Header values are decoded as
+ * per the STOMP 1.2 escaping rules, the first occurrence of a repeated header wins
+ * and the body honours the {@code content-length} header when present, otherwise it
+ * ends at the first NUL octet or at the end of the frame.
  *
  * @author Ronald Mthombeni
  * @author Salman Noor
  */
 public final class WebSocketMessageAccessor {
-	private String[] messageComponents;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final StompCommand[] COMMANDS = StompCommand.values();
+	private static final int UNRESOLVED = -1;
+	private static final char NUL = '\0';
+
+	private final FrameSource frame;
+	private final int length;
+	private int commandStart = UNRESOLVED;
+	private int commandEnd = UNRESOLVED;
+	private int headersStart = UNRESOLVED;
+	private int bodyStart = UNRESOLVED;
+	private int bodyEnd = UNRESOLVED;
+	private StompCommand command;
+	private boolean commandResolved;
 
-	private WebSocketMessageAccessor() {
+	private WebSocketMessageAccessor(FrameSource frame) {
+		this.frame = frame;
+		this.length = frame.length();
 	}
 
 	public static WebSocketMessageAccessor create(WebSocketMessage<?> message) {
+		if (message instanceof BinaryMessage) {
+			return create(((BinaryMessage) message).getPayload());
+		}
+
 		String msgPayload = message.getPayload().toString();
 		return create(msgPayload);
 	}
 
 	public static WebSocketMessageAccessor create(String message) {
-		WebSocketMessageAccessor accessor = new WebSocketMessageAccessor();
-		accessor.messageComponents = StringUtils.tokenizeToStringArray(message, "\n");
-		return accessor;
+		return new WebSocketMessageAccessor(new TextFrameSource(message));
 	}
 
+	/**
+	 * Creates an accessor over the remaining bytes of the given buffer, the buffer
+	 * position is left untouched.
+	 */
+	public static WebSocketMessageAccessor create(ByteBuffer message) {
+		return new WebSocketMessageAccessor(new BinaryFrameSource(message));
+	}
+
+	/**
+	 * @return whether the frame was received as binary web socket message
+	 */
+	public boolean isBinary() {
+		return frame instanceof BinaryFrameSource;
+	}
+
+	/**
+	 * @return the command of the frame as sent by the client or {@code null} for a
+	 * heart-beat or an empty frame
+	 */
 	public String getCommand() {
-		if (accessible())
-			return messageComponents[0];
+		if (!accessible())
+			return null;
+
+		return frame.text(commandStart, commandEnd);
+	}
+
+	/**
+	 * @return the {@link StompCommand} of the frame or {@code null} if the frame is a
+	 * heart-beat or does not carry a known command
+	 */
+	public StompCommand getStompCommand() {
+		if (!commandResolved) {
+			command = accessible() ? resolveCommand() : null;
+			commandResolved = true;
+		}
+
+		return command;
+	}
+
+	private StompCommand resolveCommand() {
+		int commandLength = commandEnd - commandStart;
+		for (StompCommand candidate : COMMANDS) {
+			String name = candidate.name();
+			if (name.length() == commandLength
+					&& frame.regionMatches(true, commandStart, name, commandLength)) {
+				return candidate;
+			}
+		}
 
 		return null;
 	}
 
 	private boolean accessible() {
-		return messageComponents != null && messageComponents.length > 0;
+		if (commandStart == UNRESOLVED) {
+			locateCommand();
+		}
+
+		return commandEnd > commandStart;
+	}
+
+	private void locateCommand() {
+		int index = 0;
+		// heart-beats and frame separators are plain EOLs
+		while (index < length && isEol(frame.charAt(index))) {
+			index++;
+		}
+
+		commandStart = index;
+		int eol = indexOfEol(index);
+		commandEnd = trimCarriageReturn(index, eol);
+		headersStart = eol < length ? eol + 1 : length;
 	}
 
 	public String getDestination() {
@@ -59,26 +150,339 @@ public final class WebSocketMessageAccessor {
 	}
 
 	public String getHeader(String header) {
-		if (!accessible())
+		if (header == null || !accessible())
 			return null;
 
-		header = header.endsWith(":") ? header : header + ":";
-		if (accessible()) {
-			for (String messageComponent : messageComponents) {
-				int indx = messageComponent.indexOf(header);
-				if (indx != -1) {
-					return messageComponent.substring(indx + header.length());
-				}
+		int nameLength = header.endsWith(":") ? header.length() - 1 : header.length();
+		int lineStart = headersStart;
+		while (lineStart < length) {
+			int eol = indexOfEol(lineStart);
+			int lineEnd = trimCarriageReturn(lineStart, eol);
+			if (lineEnd == lineStart) {
+				// blank line separates the headers from the body
+				break;
+			}
+
+			int valueStart = lineStart + nameLength;
+			if (valueStart < lineEnd && frame.charAt(valueStart) == ':'
+					&& frame.regionMatches(false, lineStart, header, nameLength)) {
+				return decodeHeaderValue(valueStart + 1, lineEnd);
 			}
+
+			lineStart = eol + 1;
 		}
 
 		return null;
 	}
 
+	/**
+	 * @return all headers of the frame in the order they were sent, each decoded
+	 * header is a copy so the result may be changed freely
+	 */
+	public StompHeaders getHeaders() {
+		StompHeaders headers = new StompHeaders();
+		if (!accessible())
+			return headers;
+
+		int lineStart = headersStart;
+		while (lineStart < length) {
+			int eol = indexOfEol(lineStart);
+			int lineEnd = trimCarriageReturn(lineStart, eol);
+			if (lineEnd == lineStart) {
+				break;
+			}
+
+			int colon = frame.indexOf(':', lineStart);
+			if (colon != -1 && colon < lineEnd) {
+				String name = decodeHeaderValue(lineStart, colon);
+				if (!headers.containsKey(name)) {
+					headers.add(name, decodeHeaderValue(colon + 1, lineEnd));
+				}
+			}
+
+			lineStart = eol + 1;
+		}
+
+		return headers;
+	}
+
+	private String decodeHeaderValue(int start, int end) {
+		String value = frame.text(start, end);
+		if (value.indexOf('\\') == -1 || !isEscapingCommand()) {
+			return value;
+		}
+
+		return unescape(value);
+	}
+
+	private static String unescape(String value) {
+		int length = value.length();
+		StringBuilder unescaped = new StringBuilder(length);
+		for (int index = 0; index < length; index++) {
+			char c = value.charAt(index);
+			if (c != '\\' || index + 1 == length) {
+				unescaped.append(c);
+				continue;
+			}
+
+			char escaped = value.charAt(++index);
+			switch (escaped) {
+			case 'r':
+				unescaped.append('\r');
+				break;
+			case 'n':
+				unescaped.append('\n');
+				break;
+			case 'c':
+				unescaped.append(':');
+				break;
+			case '\\':
+				unescaped.append('\\');
+				break;
+			default:
+				// undefined escape sequences are passed through untouched
+				unescaped.append('\\').append(escaped);
+			}
+		}
+
+		return unescaped.toString();
+	}
+
+	private boolean isEscapingCommand() {
+		StompCommand stompCommand = getStompCommand();
+		return stompCommand != StompCommand.CONNECT && stompCommand != StompCommand.STOMP
+				&& stompCommand != StompCommand.CONNECTED;
+	}
+
+	/**
+	 * @return the declared {@code content-length} or {@code -1} if the header is
+	 * missing or invalid
+	 */
+	public int getContentLength() {
+		String contentLength = getHeader("content-length");
+		if (contentLength == null)
+			return -1;
+
+		try {
+			int value = Integer.parseInt(contentLength.trim());
+			return value >= 0 ? value : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
 	public String getPayload() {
 		if (!accessible())
 			return null;
 
-		return messageComponents[messageComponents.length - 1];
+		locateBodyIfNecessary();
+		return frame.text(bodyStart, bodyEnd);
+	}
+
+	/**
+	 * @return the body octets of the frame, binary frames are copied straight from
+	 * the received buffer without being decoded to text first
+	 */
+	public byte[] getPayloadBytes() {
+		if (!accessible())
+			return null;
+
+		locateBodyIfNecessary();
+		return frame.bytes(bodyStart, bodyEnd);
+	}
+
+	private void locateBodyIfNecessary() {
+		if (bodyEnd != UNRESOLVED)
+			return;
+
+		int lineStart = headersStart;
+		while (lineStart < length) {
+			int eol = indexOfEol(lineStart);
+			if (trimCarriageReturn(lineStart, eol) == lineStart) {
+				lineStart = eol + 1;
+				break;
+			}
+			lineStart = eol + 1;
+		}
+
+		bodyStart = Math.min(lineStart, length);
+		int contentLength = getContentLength();
+		bodyEnd = contentLength >= 0 ? frame.advanceOctets(bodyStart, contentLength)
+				: indexOfNul(bodyStart);
+	}
+
+	private int indexOfNul(int start) {
+		int nul = frame.indexOf(NUL, start);
+		return nul == -1 ? length : nul;
+	}
+
+	private int indexOfEol(int start) {
+		int eol = frame.indexOf('\n', start);
+		return eol == -1 ? length : eol;
+	}
+
+	private int trimCarriageReturn(int start, int end) {
+		return end > start && frame.charAt(end - 1) == '\r' ? end - 1 : end;
+	}
+
+	private static boolean isEol(int c) {
+		return c == '\n' || c == '\r';
+	}
+
+	/**
+	 * Random access to the raw frame, commands, header names and STOMP delimiters
+	 * are all ASCII so they compare the same way on text and on UTF-8 octets.
+	 */
+	private interface FrameSource {
+		int length();
+
+		int charAt(int index);
+
+		int indexOf(char c, int from);
+
+		boolean regionMatches(boolean ignoreCase, int offset, String other, int len);
+
+		String text(int start, int end);
+
+		byte[] bytes(int start, int end);
+
+		/**
+		 * @return the index reached after covering the given number of octets
+		 */
+		int advanceOctets(int start, int octets);
+	}
+
+	private static final class TextFrameSource implements FrameSource {
+		private final String text;
+
+		TextFrameSource(String text) {
+			this.text = text != null ? text : "";
+		}
+
+		@Override
+		public int length() {
+			return text.length();
+		}
+
+		@Override
+		public int charAt(int index) {
+			return text.charAt(index);
+		}
+
+		@Override
+		public int indexOf(char c, int from) {
+			return text.indexOf(c, from);
+		}
+
+		@Override
+		public boolean regionMatches(boolean ignoreCase, int offset, String other, int len) {
+			return text.regionMatches(ignoreCase, offset, other, 0, len);
+		}
+
+		@Override
+		public String text(int start, int end) {
+			return text.substring(start, end);
+		}
+
+		@Override
+		public byte[] bytes(int start, int end) {
+			return text(start, end).getBytes(UTF8);
+		}
+
+		@Override
+		public int advanceOctets(int start, int octets) {
+			int length = text.length();
+			int index = start;
+			int covered = 0;
+			while (index < length && covered < octets) {
+				char c = text.charAt(index);
+				if (c < 0x80) {
+					covered += 1;
+				} else if (c < 0x800) {
+					covered += 2;
+				} else if (Character.isHighSurrogate(c) && index + 1 < length
+						&& Character.isLowSurrogate(text.charAt(index + 1))) {
+					covered += 4;
+					index++;
+				} else {
+					covered += 3;
+				}
+				index++;
+			}
+
+			return index;
+		}
+	}
+
+	private static final class BinaryFrameSource implements FrameSource {
+		private final ByteBuffer buffer;
+		private final int offset;
+		private final int length;
+
+		BinaryFrameSource(ByteBuffer buffer) {
+			this.buffer = buffer;
+			this.offset = buffer.position();
+			this.length = buffer.remaining();
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public int charAt(int index) {
+			return buffer.get(offset + index) & 0xFF;
+		}
+
+		@Override
+		public int indexOf(char c, int from) {
+			for (int index = from; index < length; index++) {
+				if (buffer.get(offset + index) == c) {
+					return index;
+				}
+			}
+			return -1;
+		}
+
+		@Override
+		public boolean regionMatches(boolean ignoreCase, int start, String other, int len) {
+			if (start + len > length)
+				return false;
+
+			for (int index = 0; index < len; index++) {
+				char actual = (char) (buffer.get(offset + start + index) & 0xFF);
+				char expected = other.charAt(index);
+				if (actual != expected && (!ignoreCase
+						|| Character.toUpperCase(actual) != Character.toUpperCase(expected))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public String text(int start, int end) {
+			if (buffer.hasArray()) {
+				return new String(buffer.array(), buffer.arrayOffset() + offset + start,
+						end - start, UTF8);
+			}
+			return new String(bytes(start, end), UTF8);
+		}
+
+		@Override
+		public byte[] bytes(int start, int end) {
+			byte[] bytes = new byte[end - start];
+			// absolute reads, ByteBuffer.position(int) doesn't link on Java 8 if built on 9+
+			for (int i = 0; i < bytes.length; i++) {
+				bytes[i] = buffer.get(offset + start + i);
+			}
+			return bytes;
+		}
+
+		@Override
+		public int advanceOctets(int start, int octets) {
+			return Math.min(length, start + octets);
+		}
 	}
 }
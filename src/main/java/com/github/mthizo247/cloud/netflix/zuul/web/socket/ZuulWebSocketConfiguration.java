@@ -21,9 +21,16 @@ import com.github.mthizo247.cloud.netflix.zuul.web.authentication.CompositeHeade
 import com.github.mthizo247.cloud.netflix.zuul.web.authentication.LoginCookieHeadersCallback;
 import com.github.mthizo247.cloud.netflix.zuul.web.authentication.OAuth2BearerPrincipalHeadersCallback;
 import com.github.mthizo247.cloud.netflix.zuul.web.filter.ProxyRedirectFilter;
+import com.github.mthizo247.cloud.netflix.zuul.web.proxytarget.AbstractProxyTargetResolver;
 import com.github.mthizo247.cloud.netflix.zuul.web.proxytarget.CompositeProxyTargetResolver;
+import com.github.mthizo247.cloud.netflix.zuul.web.proxytarget.ConsistentHashProxyTargetResolver;
 import com.github.mthizo247.cloud.netflix.zuul.web.proxytarget.EurekaProxyTargetResolver;
+import com.github.mthizo247.cloud.netflix.zuul.web.proxytarget.LeastConnectionsProxyTargetResolver;
 import com.github.mthizo247.cloud.netflix.zuul.web.proxytarget.LoadBalancedProxyTargetResolver;
+import com.github.mthizo247.cloud.netflix.zuul.web.proxytarget.ProxyTargetCache;
+import com.github.mthizo247.cloud.netflix.zuul.web.proxytarget.ProxyTargetConnections;
+import com.github.mthizo247.cloud.netflix.zuul.web.proxytarget.ProxyTargetHealth;
+import com.github.mthizo247.cloud.netflix.zuul.web.proxytarget.ProxyTargetZones;
 import com.github.mthizo247.cloud.netflix.zuul.web.proxytarget.ProxyTargetResolver;
 import com.github.mthizo247.cloud.netflix.zuul.web.proxytarget.UrlProxyTargetResolver;
 import com.github.mthizo247.cloud.netflix.zuul.web.util.DefaultErrorAnalyzer;
@@ -44,11 +51,18 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
 import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.core.env.Environment;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.converter.CompositeMessageConverter;
 import org.springframework.messaging.converter.MessageConverter;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
 import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.util.StringUtils;
 import org.springframework.web.socket.WebSocketHandler;
 import org.springframework.web.socket.client.WebSocketClient;
 import org.springframework.web.socket.client.standard.StandardWebSocketClient;
@@ -98,6 +112,34 @@ public class ZuulWebSocketConfiguration extends AbstractWebSocketMessageBrokerCo
     @Autowired
     WebSocketStompClient stompClient;
     @Autowired
+    WebSocketClient webSocketClient;
+    @Autowired
+    ProxyStompSessionPool proxyStompSessionPool;
+    @Autowired
+    UserAgentMessageSender userAgentMessageSender;
+    @Autowired
+    SharedSubscriptionRegistry sharedSubscriptionRegistry;
+    @Autowired
+    ZuulWebSocketMetrics zuulWebSocketMetrics;
+    @Autowired
+    LastValueCache lastValueCache;
+    @Autowired
+    @Qualifier("proxySlowConsumerExecutor")
+    TaskExecutor slowConsumerExecutor;
+    @Autowired
+    @Qualifier("proxyStompClientTaskScheduler")
+    TaskScheduler stompClientTaskScheduler;
+    @Autowired(required = false)
+    ProxyRouteRefresher proxyRouteRefresher;
+    @Autowired
+    ProxyTargetConnections proxyTargetConnections;
+    @Autowired(required = false)
+    ProxyTargetHealth proxyTargetHealth;
+    @Autowired(required = false)
+    ProxySessionRebalancer proxySessionRebalancer;
+    @Autowired(required = false)
+    ProxyTargetZones proxyTargetZones;
+    @Autowired
     @Qualifier("compositeHeadersCallback")
     WebSocketHttpHeadersCallback webSocketHttpHeadersCallback;
 
@@ -163,6 +205,20 @@ public class ZuulWebSocketConfiguration extends AbstractWebSocketMessageBrokerCo
                         proxyTargetResolver,
                         zuulWebSocketProperties);
                 proxyWebSocketHandler.errorHandler(proxyWebSocketErrorHandler);
+                proxyWebSocketHandler.webSocketClient(webSocketClient);
+                proxyWebSocketHandler.stompSessionPool(proxyStompSessionPool);
+                proxyWebSocketHandler.userAgentMessageSender(userAgentMessageSender);
+                proxyWebSocketHandler.sharedSubscriptionRegistry(sharedSubscriptionRegistry);
+                proxyWebSocketHandler.metrics(zuulWebSocketMetrics);
+                proxyWebSocketHandler.slowConsumerExecutor(slowConsumerExecutor);
+                proxyWebSocketHandler.slowConsumerScheduler(stompClientTaskScheduler);
+                proxyWebSocketHandler.lastValueCache(lastValueCache);
+                proxyWebSocketHandler.routeRefresher(proxyRouteRefresher);
+                proxyWebSocketHandler.targetConnections(proxyTargetConnections);
+                proxyWebSocketHandler.targetHealth(proxyTargetHealth);
+                if (proxySessionRebalancer != null) {
+                    proxySessionRebalancer.register(proxyWebSocketHandler);
+                }
                 return proxyWebSocketHandler;
             }
         });
@@ -197,10 +253,39 @@ public class ZuulWebSocketConfiguration extends AbstractWebSocketMessageBrokerCo
         return new UrlProxyTargetResolver(zuulProperties);
     }
 
+    @Bean
+    public ProxyTargetCache proxyTargetCache(final DiscoveryClient discoveryClient,
+                                             @Qualifier("proxyStompClientTaskScheduler") TaskScheduler taskScheduler) {
+        ZuulWebSocketProperties.TargetCache targetCache = zuulWebSocketProperties
+                .getTargetCache();
+        return new ProxyTargetCache(discoveryClient, taskScheduler,
+                targetCache.getTimeToLive(), targetCache.getRefreshAhead(),
+                targetCache.getFailureBackoff());
+    }
+
+    @Bean
+    public ProxyTargetConnections proxyTargetConnections() {
+        return new ProxyTargetConnections();
+    }
+
+    @Bean
+    public ProxyTargetResolver leastConnectionsProxyTargetResolver(
+            final ZuulProperties zuulProperties, final ProxyTargetCache proxyTargetCache,
+            final ProxyTargetConnections proxyTargetConnections) {
+        return new LeastConnectionsProxyTargetResolver(proxyTargetCache,
+                proxyTargetConnections, zuulProperties);
+    }
+
+    @Bean
+    public ProxyTargetResolver consistentHashProxyTargetResolver(
+            final ZuulProperties zuulProperties, final ProxyTargetCache proxyTargetCache) {
+        return new ConsistentHashProxyTargetResolver(proxyTargetCache, zuulProperties);
+    }
+
     @Bean
     public ProxyTargetResolver discoveryProxyTargetResolver(
-            final ZuulProperties zuulProperties, final DiscoveryClient discoveryClient) {
-        return new EurekaProxyTargetResolver(discoveryClient, zuulProperties);
+            final ZuulProperties zuulProperties, final ProxyTargetCache proxyTargetCache) {
+        return new EurekaProxyTargetResolver(proxyTargetCache, zuulProperties);
     }
 
     @Bean
@@ -209,9 +294,54 @@ public class ZuulWebSocketConfiguration extends AbstractWebSocketMessageBrokerCo
         return new LoadBalancedProxyTargetResolver(loadBalancerClient, zuulProperties);
     }
 
+    @Bean
+    @ConditionalOnProperty(prefix = "zuul.ws.target-health", name = "enabled", havingValue = "true", matchIfMissing = true)
+    public ProxyTargetHealth proxyTargetHealth() {
+        ZuulWebSocketProperties.TargetHealth targetHealth = zuulWebSocketProperties
+                .getTargetHealth();
+        return new ProxyTargetHealth(targetHealth.getMinConnects(),
+                targetHealth.getMaxErrorRate(), targetHealth.getMaxConnectTime(),
+                targetHealth.getEjectionTime(), targetHealth.getProbeInterval());
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = "zuul.ws.rebalance", name = "enabled", havingValue = "true")
+    public ProxySessionRebalancer proxySessionRebalancer(
+            final ProxyTargetCache proxyTargetCache,
+            @Qualifier("proxyStompClientTaskScheduler") TaskScheduler taskScheduler,
+            ZuulWebSocketMetrics zuulWebSocketMetrics) {
+        ZuulWebSocketProperties.Rebalance rebalance = zuulWebSocketProperties.getRebalance();
+        ProxySessionRebalancer rebalancer = new ProxySessionRebalancer(proxyTargetCache,
+                zuulProperties, taskScheduler, zuulWebSocketMetrics, rebalance.getInterval(),
+                rebalance.getMaxMigrations());
+        rebalancer.targetZones(proxyTargetZones);
+        rebalancer.targetHealth(proxyTargetHealth);
+        return rebalancer;
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = "zuul.ws.zone-affinity", name = "enabled", havingValue = "true")
+    public ProxyTargetZones proxyTargetZones(Environment environment) {
+        ZuulWebSocketProperties.ZoneAffinity zoneAffinity = zuulWebSocketProperties
+                .getZoneAffinity();
+        String zone = StringUtils.hasText(zoneAffinity.getZone()) ? zoneAffinity.getZone()
+                : environment.getProperty("eureka.instance.metadata-map.zone");
+        return new ProxyTargetZones(zone, zoneAffinity.getMinLocalCapacity());
+    }
+
     @Bean
     @Primary
     public ProxyTargetResolver compositeProxyTargetResolver(final List<ProxyTargetResolver> resolvers) {
+        if (proxyTargetZones != null) {
+            proxyTargetZones.setTargetHealth(proxyTargetHealth);
+        }
+        for (ProxyTargetResolver resolver : resolvers) {
+            if (resolver instanceof AbstractProxyTargetResolver) {
+                // ejected targets are skipped from the first connect on
+                ((AbstractProxyTargetResolver) resolver).setTargetHealth(proxyTargetHealth);
+                ((AbstractProxyTargetResolver) resolver).setTargetZones(proxyTargetZones);
+            }
+        }
         return new CompositeProxyTargetResolver(resolvers);
     }
 
@@ -223,7 +353,9 @@ public class ZuulWebSocketConfiguration extends AbstractWebSocketMessageBrokerCo
 
         WebSocketStompClient client = new WebSocketStompClient(webSocketClient);
         client.setInboundMessageSizeLimit(bufferSizeLimit);
-        client.setMessageConverter(messageConverter);
+        // bodies asked for as byte[] are never parsed, see payload passthrough
+        client.setMessageConverter(new CompositeMessageConverter(Arrays.asList(
+                new PassthroughMessageConverter(), messageConverter)));
         client.setTaskScheduler(taskScheduler);
         client.setDefaultHeartbeat(new long[]{0, 0});
         return client;
@@ -238,6 +370,36 @@ public class ZuulWebSocketConfiguration extends AbstractWebSocketMessageBrokerCo
         return new SockJsClient(transports);
     }
 
+    @Bean
+    public ProxyStompSessionPool proxyStompSessionPool(WebSocketStompClient stompClient) {
+        return new ProxyStompSessionPool(stompClient);
+    }
+
+    @Bean
+    public UserAgentMessageSender userAgentMessageSender(
+            @Qualifier("clientOutboundChannel") MessageChannel clientOutboundChannel,
+            SimpMessagingTemplate messagingTemplate) {
+        return new UserAgentMessageSender(clientOutboundChannel,
+                messagingTemplate.getMessageConverter());
+    }
+
+    @Bean
+    public SharedSubscriptionRegistry sharedSubscriptionRegistry(
+            WebSocketStompClient stompClient, UserAgentMessageSender userAgentMessageSender,
+            @Qualifier("proxyStompClientTaskScheduler") TaskScheduler taskScheduler) {
+        // a pool of its own, shared subscriptions outlive the user agents that opened them
+        return new SharedSubscriptionRegistry(new ProxyStompSessionPool(stompClient),
+                userAgentMessageSender, taskScheduler);
+    }
+
+    @Bean
+    public LastValueCache lastValueCache() {
+        ZuulWebSocketProperties.LastValueCache bounds = zuulWebSocketProperties
+                .getLastValueCache();
+        return new LastValueCache(bounds.getMaxEntries(), bounds.getMaxBytes(),
+                bounds.getTimeToLive());
+    }
+
     @Bean
     @Qualifier("proxyStompClientTaskScheduler")
     public TaskScheduler stompClientTaskScheduler() {
@@ -248,8 +410,33 @@ public class ZuulWebSocketConfiguration extends AbstractWebSocketMessageBrokerCo
     }
 
     @Bean
-    public ProxyWebSocketErrorHandler reconnectErrorHandler() {
-        return new ReconnectErrorHandler(new DefaultErrorAnalyzer());
+    @Qualifier("proxySlowConsumerExecutor")
+    public TaskExecutor slowConsumerExecutor() {
+        // writes to slow user agents, a stuck write holds a thread until the session closes
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix("ProxySlowConsumer-");
+        executor.setCorePoolSize(Runtime.getRuntime().availableProcessors() * 2);
+        executor.setAllowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    @Bean
+    public ZuulWebSocketMetrics zuulWebSocketMetrics() {
+        return new ZuulWebSocketMetrics();
+    }
+
+    @Bean
+    public ProxyReconnectScheduler proxyReconnectScheduler(
+            @Qualifier("proxyStompClientTaskScheduler") TaskScheduler taskScheduler,
+            ZuulWebSocketMetrics zuulWebSocketMetrics) {
+        return new ProxyReconnectScheduler(taskScheduler,
+                zuulWebSocketProperties.getMaxConcurrentReconnects(), zuulWebSocketMetrics);
+    }
+
+    @Bean
+    public ProxyWebSocketErrorHandler reconnectErrorHandler(
+            ProxyReconnectScheduler proxyReconnectScheduler) {
+        return new ReconnectErrorHandler(new DefaultErrorAnalyzer(), proxyReconnectScheduler);
     }
 
     @Bean
@@ -263,6 +450,28 @@ public class ZuulWebSocketConfiguration extends AbstractWebSocketMessageBrokerCo
         return new ProxyRedirectFilter(routeLocator);
     }
 
+    @Configuration
+    @ConditionalOnClass(name = "org.springframework.cloud.context.environment.EnvironmentChangeEvent")
+    protected static class ProxyRouteRefresherConfiguration {
+        @Bean
+        public ProxyRouteRefresher proxyRouteRefresher(ConfigurableEnvironment environment) {
+            // bound on its own, the properties bean is rebound in place on refresh
+            return new ProxyRouteRefresher(environment);
+        }
+    }
+
+    @Configuration
+    @ConditionalOnClass(name = "org.springframework.boot.actuate.endpoint.PublicMetrics")
+    protected static class ZuulWebSocketMetricsConfiguration {
+        @Bean
+        public ZuulWebSocketPublicMetrics zuulWebSocketPublicMetrics(
+                ZuulWebSocketMetrics zuulWebSocketMetrics,
+                ProxyReconnectScheduler proxyReconnectScheduler) {
+            return new ZuulWebSocketPublicMetrics(zuulWebSocketMetrics,
+                    proxyReconnectScheduler);
+        }
+    }
+
     @PostConstruct
     public void init() {
         ignorePattern("**/websocket");
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.socket;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the web socket proxy kept per brokerage, named
+ * {@code zuul.ws.brokerages.<brokerage id>.<counter>}.
+ *
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class ZuulWebSocketMetrics {
+    private static final String PREFIX = "zuul.ws.brokerages.";
+    private static final String DEFAULT_BROKERAGE = "default";
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    public void increment(ZuulWebSocketProperties.WsBrokerage wsBrokerage, String counter) {
+        add(wsBrokerage, counter, 1);
+    }
+
+    public void add(ZuulWebSocketProperties.WsBrokerage wsBrokerage, String counter,
+                    long delta) {
+        String name = name(wsBrokerage, counter);
+        AtomicLong value = counters.get(name);
+        if (value == null) {
+            AtomicLong created = new AtomicLong();
+            value = counters.putIfAbsent(name, created);
+            value = value == null ? created : value;
+        }
+        value.addAndGet(delta);
+    }
+
+    public long getCount(ZuulWebSocketProperties.WsBrokerage wsBrokerage, String counter) {
+        AtomicLong value = counters.get(name(wsBrokerage, counter));
+        return value != null ? value.get() : 0;
+    }
+
+    /**
+     * @return a snapshot of all counters by name
+     */
+    public Map<String, Long> getCounters() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+            snapshot.put(counter.getKey(), counter.getValue().get());
+        }
+        return snapshot;
+    }
+
+    private static String name(ZuulWebSocketProperties.WsBrokerage wsBrokerage,
+                               String counter) {
+        String id = wsBrokerage != null && wsBrokerage.getId() != null ? wsBrokerage.getId()
+                : DEFAULT_BROKERAGE;
+        return PREFIX + id + "." + counter;
+    }
+}
@@ -17,6 +17,7 @@
 package com.github.mthizo247.cloud.netflix.zuul.web.socket;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import javax.annotation.PostConstruct;
@@ -30,7 +31,19 @@ import org.springframework.util.StringUtils;
  */
 @ConfigurationProperties("zuul.ws")
 public class ZuulWebSocketProperties {
+	// as the default user destination prefix of the local message broker
+	private static final String USER_DESTINATION_PREFIX = "/user/";
 	private boolean enabled = true;
+	/**
+	 * Maximum number of backend sessions reconnecting at the same time, across all
+	 * brokerages.
+	 */
+	private int maxConcurrentReconnects = 20;
+	private LastValueCache lastValueCache = new LastValueCache();
+	private TargetCache targetCache = new TargetCache();
+	private TargetHealth targetHealth = new TargetHealth();
+	private Rebalance rebalance = new Rebalance();
+	private ZoneAffinity zoneAffinity = new ZoneAffinity();
 	private Map<String, WsBrokerage> brokerages = new HashMap<>();
 
 	public boolean isEnabled() {
@@ -41,6 +54,54 @@ public class ZuulWebSocketProperties {
 		this.enabled = enabled;
 	}
 
+	public int getMaxConcurrentReconnects() {
+		return maxConcurrentReconnects;
+	}
+
+	public void setMaxConcurrentReconnects(int maxConcurrentReconnects) {
+		this.maxConcurrentReconnects = maxConcurrentReconnects;
+	}
+
+	public LastValueCache getLastValueCache() {
+		return lastValueCache;
+	}
+
+	public void setLastValueCache(LastValueCache lastValueCache) {
+		this.lastValueCache = lastValueCache;
+	}
+
+	public TargetCache getTargetCache() {
+		return targetCache;
+	}
+
+	public void setTargetCache(TargetCache targetCache) {
+		this.targetCache = targetCache;
+	}
+
+	public TargetHealth getTargetHealth() {
+		return targetHealth;
+	}
+
+	public void setTargetHealth(TargetHealth targetHealth) {
+		this.targetHealth = targetHealth;
+	}
+
+	public Rebalance getRebalance() {
+		return rebalance;
+	}
+
+	public void setRebalance(Rebalance rebalance) {
+		this.rebalance = rebalance;
+	}
+
+	public ZoneAffinity getZoneAffinity() {
+		return zoneAffinity;
+	}
+
+	public void setZoneAffinity(ZoneAffinity zoneAffinity) {
+		this.zoneAffinity = zoneAffinity;
+	}
+
 	public Map<String, WsBrokerage> getBrokerages() {
 		return brokerages;
 	}
@@ -56,9 +117,98 @@ public class ZuulWebSocketProperties {
 			if (!StringUtils.hasText(wsBrokerage.getId())) {
 				wsBrokerage.id = entry.getKey();
 			}
+
+			if (wsBrokerage.getSharedDestinations() != null) {
+				for (String shared : wsBrokerage.getSharedDestinations()) {
+					if (shared.startsWith(USER_DESTINATION_PREFIX)) {
+						throw new IllegalStateException("Shared destination " + shared
+								+ " of brokerage " + entry.getKey()
+								+ " is a user destination, only public destinations can be shared");
+					}
+				}
+			}
+
+			for (String routed : wsBrokerage.getDestinationRoutes().keySet()) {
+				if (!this.brokerages.containsKey(routed)) {
+					throw new IllegalStateException("Destinations of brokerage "
+							+ entry.getKey() + " are routed to unknown brokerage " + routed);
+				}
+			}
 		}
 	}
 
+	/**
+	 * How client web socket sessions of a brokerage are bridged to the backend.
+	 */
+	public enum Mode {
+		/**
+		 * STOMP is terminated by the proxy on both sides, client frames are decoded and
+		 * replayed to the backend through a STOMP client session.
+		 */
+		PROXY,
+		/**
+		 * STOMP is terminated by the proxy on both sides, but only CONNECT, DISCONNECT
+		 * and heart-beats of the client go through the local message broker. All other
+		 * frames are only sent to the backend, and frames of the backend are sent
+		 * straight to the subscription of the client.
+		 */
+		PURE_PROXY,
+		/**
+		 * Web socket frames are piped as is between the client and a backend web socket
+		 * session, only the CONNECT frame is looked at to open the backend session.
+		 */
+		TUNNEL
+	}
+
+	/**
+	 * How the backend instance of a client session is chosen among the instances of a
+	 * discovered service.
+	 */
+	public enum TargetSelection {
+		/**
+		 * The instance the load balancer chooses, or the first discovered one.
+		 */
+		DEFAULT,
+		/**
+		 * The instance with the fewest proxied sessions for its weight.
+		 */
+		LEAST_CONNECTIONS,
+		/**
+		 * The less loaded of two instances picked at random, cheaper than least
+		 * connections across many instances and gateways.
+		 */
+		POWER_OF_TWO_CHOICES,
+		/**
+		 * The same instance for the same user, by the hash key header or cookie or else
+		 * the principal name, so backends keep per user state warm.
+		 */
+		CONSISTENT_HASH
+	}
+
+	/**
+	 * What happens to a frame sent to a client whose send buffer is full or whose
+	 * current send has taken too long.
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * The oldest buffered frames are dropped to make room for the new one.
+		 */
+		DROP_OLDEST,
+		/**
+		 * The new frame is dropped.
+		 */
+		DROP_NEWEST,
+		/**
+		 * The new frame replaces a buffered frame of the same subscription and
+		 * destination, falls back to dropping the oldest frames.
+		 */
+		CONFLATE,
+		/**
+		 * The client session is closed.
+		 */
+		CLOSE
+	}
+
 	public static class WsBrokerage {
 		private boolean enabled = true;
 		private String id;
@@ -66,6 +216,73 @@ public class ZuulWebSocketProperties {
 		private String[] endPoints;
 		private String[] brokers;
 		private String[] destinationPrefixes;
+		private Mode mode = Mode.PROXY;
+		private TargetSelection targetSelection = TargetSelection.DEFAULT;
+		/**
+		 * Handshake header hashed to pick the backend instance with consistent hash
+		 * target selection, before the hash key cookie and the principal name.
+		 */
+		private String hashKeyHeader;
+		/**
+		 * Handshake cookie hashed to pick the backend instance with consistent hash
+		 * target selection, before the principal name.
+		 */
+		private String hashKeyCookie;
+		private Multiplex multiplex = new Multiplex();
+		/**
+		 * Destination patterns, such as {@code /topic/prices.*}, subscribed once on a
+		 * backend server on behalf of all user agents subscribed to them. The shared
+		 * subscription is made without the credentials of any user agent, only public
+		 * destinations may be shared, user destinations never are.
+		 */
+		private String[] sharedDestinations;
+		/**
+		 * Destination patterns of feeds where only the latest value matters. With the
+		 * slow consumer buffer enabled, frames of a subscription not yet written to the
+		 * client are replaced by newer ones. Otherwise frames not yet relayed are, one
+		 * relay at a time, which doesn't follow the pace the client reads at.
+		 */
+		private String[] conflatedDestinations;
+		/**
+		 * Minimum millis between two frames relayed to a conflated subscription, 0 to
+		 * relay as fast as they are taken. The interval is kept on a timer, not by the
+		 * client reading.
+		 */
+		private long conflationInterval;
+		/**
+		 * Destination patterns whose last frame is cached and sent to new subscribers
+		 * right away.
+		 */
+		private String[] lastValueDestinations;
+		/**
+		 * Whether backend frame bodies are relayed to clients as received, without being
+		 * converted to objects and back.
+		 */
+		private boolean payloadPassthrough;
+		/**
+		 * Whether backend frames are sent straight to the client subscription they were
+		 * received for, rather than published to the local message broker for every
+		 * client subscribed to their destination.
+		 */
+		private boolean directDelivery = true;
+		/**
+		 * Destination prefixes, such as {@code /topic/quotes/}, by the id of the brokerage
+		 * whose backend serves them. A client session connects to the backend of such a
+		 * brokerage on its first SEND or SUBSCRIBE to one of its prefixes, other
+		 * destinations are served by the backend of this brokerage.
+		 */
+		private Map<String, String[]> destinationRoutes = new LinkedHashMap<>();
+		/**
+		 * Millis to wait for the backend session to connect before the client is sent a
+		 * STOMP ERROR frame, 0 to wait forever.
+		 */
+		private long connectTimeout = 10000;
+		/**
+		 * Maximum number of client frames held back while the backend session connects.
+		 */
+		private int pendingFramesLimit = 256;
+		private Reconnect reconnect = new Reconnect();
+		private SlowConsumer slowConsumer = new SlowConsumer();
 
 		public boolean isEnabled() {
 			return enabled;
@@ -114,5 +331,519 @@ public class ZuulWebSocketProperties {
 		public void setDestinationPrefixes(String[] destinationPrefixes) {
 			this.destinationPrefixes = destinationPrefixes;
 		}
+
+		public Mode getMode() {
+			return mode;
+		}
+
+		public void setMode(Mode mode) {
+			this.mode = mode;
+		}
+
+		public TargetSelection getTargetSelection() {
+			return targetSelection;
+		}
+
+		public void setTargetSelection(TargetSelection targetSelection) {
+			this.targetSelection = targetSelection;
+		}
+
+		public String getHashKeyHeader() {
+			return hashKeyHeader;
+		}
+
+		public void setHashKeyHeader(String hashKeyHeader) {
+			this.hashKeyHeader = hashKeyHeader;
+		}
+
+		public String getHashKeyCookie() {
+			return hashKeyCookie;
+		}
+
+		public void setHashKeyCookie(String hashKeyCookie) {
+			this.hashKeyCookie = hashKeyCookie;
+		}
+
+		public Multiplex getMultiplex() {
+			return multiplex;
+		}
+
+		public void setMultiplex(Multiplex multiplex) {
+			this.multiplex = multiplex;
+		}
+
+		public String[] getSharedDestinations() {
+			return sharedDestinations;
+		}
+
+		public void setSharedDestinations(String[] sharedDestinations) {
+			this.sharedDestinations = sharedDestinations;
+		}
+
+		public String[] getConflatedDestinations() {
+			return conflatedDestinations;
+		}
+
+		public void setConflatedDestinations(String[] conflatedDestinations) {
+			this.conflatedDestinations = conflatedDestinations;
+		}
+
+		public long getConflationInterval() {
+			return conflationInterval;
+		}
+
+		public void setConflationInterval(long conflationInterval) {
+			this.conflationInterval = conflationInterval;
+		}
+
+		public String[] getLastValueDestinations() {
+			return lastValueDestinations;
+		}
+
+		public void setLastValueDestinations(String[] lastValueDestinations) {
+			this.lastValueDestinations = lastValueDestinations;
+		}
+
+		public boolean isPayloadPassthrough() {
+			return payloadPassthrough;
+		}
+
+		public void setPayloadPassthrough(boolean payloadPassthrough) {
+			this.payloadPassthrough = payloadPassthrough;
+		}
+
+		public boolean isDirectDelivery() {
+			return directDelivery;
+		}
+
+		public void setDirectDelivery(boolean directDelivery) {
+			this.directDelivery = directDelivery;
+		}
+
+		public Map<String, String[]> getDestinationRoutes() {
+			return destinationRoutes;
+		}
+
+		public void setDestinationRoutes(Map<String, String[]> destinationRoutes) {
+			this.destinationRoutes = destinationRoutes;
+		}
+
+		public long getConnectTimeout() {
+			return connectTimeout;
+		}
+
+		public void setConnectTimeout(long connectTimeout) {
+			this.connectTimeout = connectTimeout;
+		}
+
+		public int getPendingFramesLimit() {
+			return pendingFramesLimit;
+		}
+
+		public void setPendingFramesLimit(int pendingFramesLimit) {
+			this.pendingFramesLimit = pendingFramesLimit;
+		}
+
+		public Reconnect getReconnect() {
+			return reconnect;
+		}
+
+		public void setReconnect(Reconnect reconnect) {
+			this.reconnect = reconnect;
+		}
+
+		public SlowConsumer getSlowConsumer() {
+			return slowConsumer;
+		}
+
+		public void setSlowConsumer(SlowConsumer slowConsumer) {
+			this.slowConsumer = slowConsumer;
+		}
+	}
+
+	/**
+	 * Sharing of backend STOMP sessions between user agent sessions of a brokerage.
+	 */
+	public static class Multiplex {
+		private boolean enabled = false;
+		private int connectionsPerTarget = 2;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public int getConnectionsPerTarget() {
+			return connectionsPerTarget;
+		}
+
+		public void setConnectionsPerTarget(int connectionsPerTarget) {
+			this.connectionsPerTarget = connectionsPerTarget;
+		}
+	}
+
+	/**
+	 * Reconnection of backend sessions lost while the client is still connected. The
+	 * delay before each attempt is picked at random between 0 and an exponentially
+	 * growing ceiling so that clients of a restarted backend don't all come back at once.
+	 */
+	public static class Reconnect {
+		private boolean enabled = true;
+		/**
+		 * Ceiling of the delay before the first attempt in millis.
+		 */
+		private long initialInterval = 1000;
+		/**
+		 * Upper bound of the delay ceiling in millis.
+		 */
+		private long maxInterval = 30000;
+		private double multiplier = 2;
+		/**
+		 * Attempts before the client is sent an ERROR frame, 0 or less to never give up.
+		 */
+		private int maxAttempts = 10;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public long getInitialInterval() {
+			return initialInterval;
+		}
+
+		public void setInitialInterval(long initialInterval) {
+			this.initialInterval = initialInterval;
+		}
+
+		public long getMaxInterval() {
+			return maxInterval;
+		}
+
+		public void setMaxInterval(long maxInterval) {
+			this.maxInterval = maxInterval;
+		}
+
+		public double getMultiplier() {
+			return multiplier;
+		}
+
+		public void setMultiplier(double multiplier) {
+			this.multiplier = multiplier;
+		}
+
+		public int getMaxAttempts() {
+			return maxAttempts;
+		}
+
+		public void setMaxAttempts(int maxAttempts) {
+			this.maxAttempts = maxAttempts;
+		}
+	}
+
+	/**
+	 * Buffering of frames sent to clients that read slower than frames arrive.
+	 */
+	public static class SlowConsumer {
+		private boolean enabled = false;
+		/**
+		 * Bytes of frames buffered per client before the overflow policy applies.
+		 */
+		private int bufferSizeLimit = 512 * 1024;
+		/**
+		 * Millis a single send may take before the client session is closed, whatever
+		 * the overflow policy.
+		 */
+		private long sendTimeLimit = 10000;
+		private OverflowPolicy overflowPolicy = OverflowPolicy.CLOSE;
+		/**
+		 * Close status code of client sessions closed by the {@code CLOSE} policy or
+		 * the send time limit.
+		 */
+		private int closeStatusCode = 4500;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public int getBufferSizeLimit() {
+			return bufferSizeLimit;
+		}
+
+		public void setBufferSizeLimit(int bufferSizeLimit) {
+			this.bufferSizeLimit = bufferSizeLimit;
+		}
+
+		public long getSendTimeLimit() {
+			return sendTimeLimit;
+		}
+
+		public void setSendTimeLimit(long sendTimeLimit) {
+			this.sendTimeLimit = sendTimeLimit;
+		}
+
+		public OverflowPolicy getOverflowPolicy() {
+			return overflowPolicy;
+		}
+
+		public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+			this.overflowPolicy = overflowPolicy;
+		}
+
+		public int getCloseStatusCode() {
+			return closeStatusCode;
+		}
+
+		public void setCloseStatusCode(int closeStatusCode) {
+			this.closeStatusCode = closeStatusCode;
+		}
+	}
+
+	/**
+	 * Bounds of the cache of last values shared by all brokerages.
+	 */
+	public static class LastValueCache {
+		private int maxEntries = 10000;
+		private long maxBytes = 64 * 1024 * 1024;
+		/**
+		 * Millis a cached value is sent to new subscribers for, 0 until evicted.
+		 */
+		private long timeToLive = 60000;
+
+		public int getMaxEntries() {
+			return maxEntries;
+		}
+
+		public void setMaxEntries(int maxEntries) {
+			this.maxEntries = maxEntries;
+		}
+
+		public long getMaxBytes() {
+			return maxBytes;
+		}
+
+		public void setMaxBytes(long maxBytes) {
+			this.maxBytes = maxBytes;
+		}
+
+		public long getTimeToLive() {
+			return timeToLive;
+		}
+
+		public void setTimeToLive(long timeToLive) {
+			this.timeToLive = timeToLive;
+		}
+	}
+
+	/**
+	 * Caching of the backend instances looked up in service discovery.
+	 */
+	public static class TargetCache {
+		/**
+		 * Millis the instances of a service are used for before they are looked up
+		 * again while resolving a target.
+		 */
+		private long timeToLive = 30000;
+		/**
+		 * Millis before the time to live is up from when the instances are looked up
+		 * again in the background, 0 to only look them up once expired.
+		 */
+		private long refreshAhead = 10000;
+		/**
+		 * Millis the instances of the previous lookup are used for after a lookup
+		 * failed, before it is tried again.
+		 */
+		private long failureBackoff = 5000;
+
+		public long getTimeToLive() {
+			return timeToLive;
+		}
+
+		public void setTimeToLive(long timeToLive) {
+			this.timeToLive = timeToLive;
+		}
+
+		public long getRefreshAhead() {
+			return refreshAhead;
+		}
+
+		public void setRefreshAhead(long refreshAhead) {
+			this.refreshAhead = refreshAhead;
+		}
+
+		public long getFailureBackoff() {
+			return failureBackoff;
+		}
+
+		public void setFailureBackoff(long failureBackoff) {
+			this.failureBackoff = failureBackoff;
+		}
+	}
+
+	/**
+	 * Preference of backend instances in the availability zone of the gateway.
+	 */
+	public static class ZoneAffinity {
+		private boolean enabled = false;
+		/**
+		 * Zone of the gateway, the eureka instance metadata zone if not set.
+		 */
+		private String zone;
+		/**
+		 * Share of the weight of the instances in the zone that must not be ejected for
+		 * them to be preferred over the instances of other zones.
+		 */
+		private double minLocalCapacity = 0.5;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public String getZone() {
+			return zone;
+		}
+
+		public void setZone(String zone) {
+			this.zone = zone;
+		}
+
+		public double getMinLocalCapacity() {
+			return minLocalCapacity;
+		}
+
+		public void setMinLocalCapacity(double minLocalCapacity) {
+			this.minLocalCapacity = minLocalCapacity;
+		}
+	}
+
+	/**
+	 * Migration of proxied sessions to backend instances that joined a service.
+	 */
+	public static class Rebalance {
+		private boolean enabled = false;
+		/**
+		 * Millis between two looks at the instances of the services proxied to.
+		 */
+		private long interval = 10000;
+		/**
+		 * Maximum number of sessions migrated to other instances per interval.
+		 */
+		private int maxMigrations = 10;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public long getInterval() {
+			return interval;
+		}
+
+		public void setInterval(long interval) {
+			this.interval = interval;
+		}
+
+		public int getMaxMigrations() {
+			return maxMigrations;
+		}
+
+		public void setMaxMigrations(int maxMigrations) {
+			this.maxMigrations = maxMigrations;
+		}
+	}
+
+	/**
+	 * Ejection of backend instances that fail or are slow to connect.
+	 */
+	public static class TargetHealth {
+		private boolean enabled = true;
+		/**
+		 * Number of connects to an instance its error rate and connect time are judged
+		 * over.
+		 */
+		private int minConnects = 5;
+		/**
+		 * Fraction of failed connects over which an instance is ejected.
+		 */
+		private double maxErrorRate = 0.5;
+		/**
+		 * Average connect millis over which an instance is ejected, 0 to never eject
+		 * slow instances.
+		 */
+		private long maxConnectTime = 5000;
+		/**
+		 * Millis an instance is ejected for, multiplied by the number of times in a row
+		 * it was ejected.
+		 */
+		private long ejectionTime = 30000;
+		/**
+		 * Minimum millis between two connects probing an instance after its ejection.
+		 */
+		private long probeInterval = 5000;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public int getMinConnects() {
+			return minConnects;
+		}
+
+		public void setMinConnects(int minConnects) {
+			this.minConnects = minConnects;
+		}
+
+		public double getMaxErrorRate() {
+			return maxErrorRate;
+		}
+
+		public void setMaxErrorRate(double maxErrorRate) {
+			this.maxErrorRate = maxErrorRate;
+		}
+
+		public long getMaxConnectTime() {
+			return maxConnectTime;
+		}
+
+		public void setMaxConnectTime(long maxConnectTime) {
+			this.maxConnectTime = maxConnectTime;
+		}
+
+		public long getEjectionTime() {
+			return ejectionTime;
+		}
+
+		public void setEjectionTime(long ejectionTime) {
+			this.ejectionTime = ejectionTime;
+		}
+
+		public long getProbeInterval() {
+			return probeInterval;
+		}
+
+		public void setProbeInterval(long probeInterval) {
+			this.probeInterval = probeInterval;
+		}
 	}
 }
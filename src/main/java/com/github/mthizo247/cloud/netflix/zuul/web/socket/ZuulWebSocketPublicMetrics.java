@@ -0,0 +1,55 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.socket;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Publishes the {@link ZuulWebSocketMetrics} counters on the actuator metrics endpoint.
+ *
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class ZuulWebSocketPublicMetrics implements PublicMetrics {
+    private final ZuulWebSocketMetrics metrics;
+    private final ProxyReconnectScheduler reconnectScheduler;
+
+    public ZuulWebSocketPublicMetrics(ZuulWebSocketMetrics metrics,
+                                      ProxyReconnectScheduler reconnectScheduler) {
+        this.metrics = metrics;
+        this.reconnectScheduler = reconnectScheduler;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> result = new ArrayList<>();
+        for (Map.Entry<String, Long> counter : metrics.getCounters().entrySet()) {
+            result.add(new Metric<Long>(counter.getKey(), counter.getValue()));
+        }
+        result.add(new Metric<Integer>("zuul.ws.reconnect.pending",
+                reconnectScheduler.getPendingReconnects()));
+        result.add(new Metric<Integer>("zuul.ws.reconnect.in-flight",
+                reconnectScheduler.getReconnectsInFlight()));
+        return result;
+    }
+}
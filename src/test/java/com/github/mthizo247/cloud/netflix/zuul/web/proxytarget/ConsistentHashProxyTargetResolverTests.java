@@ -0,0 +1,94 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.proxytarget;
+
+import com.github.mthizo247.cloud.netflix.zuul.web.socket.ZuulWebSocketProperties;
+import org.junit.Test;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.netflix.zuul.filters.ZuulProperties;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class ConsistentHashProxyTargetResolverTests {
+
+    private static List<ProxyTarget> targets(int count) {
+        List<ProxyTarget> targets = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            targets.add(new ProxyTarget(new DefaultServiceInstance("greetings",
+                    "10.0.0." + i, 8080, false)));
+        }
+        return targets;
+    }
+
+    @Test
+    public void sameUserSameTargetAndFewMovesOnScaleOut() throws Exception {
+        ZuulProperties zuulProperties = new ZuulProperties();
+        zuulProperties.getRoutes().put("greetings",
+                new ZuulProperties.ZuulRoute("greetings", "/**", "greetings", null, false, false, null));
+        ProxyTargetCache targetCache = mock(ProxyTargetCache.class);
+        ConsistentHashProxyTargetResolver resolver = new ConsistentHashProxyTargetResolver(
+                targetCache, zuulProperties);
+        ZuulWebSocketProperties.WsBrokerage wsBrokerage = new ZuulWebSocketProperties.WsBrokerage();
+        wsBrokerage.setId("greetings");
+        wsBrokerage.setTargetSelection(ZuulWebSocketProperties.TargetSelection.CONSISTENT_HASH);
+        wsBrokerage.setHashKeyHeader("X-User");
+
+        Map<String, URI> before = new HashMap<>();
+        when(targetCache.getTargets("greetings")).thenReturn(targets(4));
+        for (int i = 0; i < 1000; i++) {
+            URI target = resolver.resolveTarget(wsBrokerage, session("user-" + i));
+            assertThat(resolver.resolveTarget(wsBrokerage, session("user-" + i)), is(target));
+            before.put("user-" + i, target);
+        }
+
+        when(targetCache.getTargets("greetings")).thenReturn(targets(5));
+        int moved = 0;
+        for (int i = 0; i < 1000; i++) {
+            URI target = resolver.resolveTarget(wsBrokerage, session("user-" + i));
+            if (!target.equals(before.get("user-" + i))) {
+                assertThat(target.getHost(), is("10.0.0.5"));
+                moved++;
+            }
+        }
+        // 1/5 expected
+        assertThat(moved, lessThan(280));
+    }
+
+    private static WebSocketSession session(String user) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("X-User", user);
+        WebSocketSession session = mock(WebSocketSession.class);
+        when(session.getHandshakeHeaders()).thenReturn(headers);
+        return session;
+    }
+}
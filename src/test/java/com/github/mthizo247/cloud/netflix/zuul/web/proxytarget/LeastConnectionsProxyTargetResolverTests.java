@@ -0,0 +1,73 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.proxytarget;
+
+import com.github.mthizo247.cloud.netflix.zuul.web.socket.ZuulWebSocketProperties;
+import org.junit.Test;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.netflix.zuul.filters.ZuulProperties;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class LeastConnectionsProxyTargetResolverTests {
+
+    private static ServiceInstance instance(String host, String weight) {
+        return new DefaultServiceInstance("greetings", host, 8080, false,
+                Collections.singletonMap("weight", weight));
+    }
+
+    @Test
+    public void resolvesLeastLoadedTargetForItsWeight() throws Exception {
+        ZuulProperties zuulProperties = new ZuulProperties();
+        zuulProperties.getRoutes().put("greetings",
+                new ZuulProperties.ZuulRoute("greetings", "/**", "greetings", null, false, false, null));
+        ProxyTargetCache targetCache = mock(ProxyTargetCache.class);
+        when(targetCache.getTargets("greetings")).thenReturn(Arrays.asList(
+                new ProxyTarget(instance("10.0.0.1", "1")),
+                new ProxyTarget(instance("10.0.0.2", "3"))));
+        ProxyTargetConnections connections = new ProxyTargetConnections();
+        LeastConnectionsProxyTargetResolver resolver = new LeastConnectionsProxyTargetResolver(
+                targetCache, connections, zuulProperties);
+
+        ZuulWebSocketProperties.WsBrokerage wsBrokerage = new ZuulWebSocketProperties.WsBrokerage();
+        wsBrokerage.setId("greetings");
+        assertThat(resolver.resolveTarget(wsBrokerage), nullValue());
+
+        wsBrokerage.setTargetSelection(ZuulWebSocketProperties.TargetSelection.LEAST_CONNECTIONS);
+        int[] sessions = new int[2];
+        for (int i = 0; i < 8; i++) {
+            URI target = resolver.resolveTarget(wsBrokerage);
+            connections.connected(target);
+            sessions[target.getHost().endsWith(".1") ? 0 : 1]++;
+        }
+        assertThat(sessions[0], is(2));
+        assertThat(sessions[1], is(6));
+    }
+}
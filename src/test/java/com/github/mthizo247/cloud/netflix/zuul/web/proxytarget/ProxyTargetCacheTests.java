@@ -0,0 +1,88 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.proxytarget;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+import org.springframework.scheduling.TaskScheduler;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class ProxyTargetCacheTests {
+
+    @Test
+    public void refreshesAheadAndFallsBackToStaleTargets() throws Exception {
+        DiscoveryClient discoveryClient = mock(DiscoveryClient.class);
+        TaskScheduler taskScheduler = mock(TaskScheduler.class);
+        ServiceInstance instance = new DefaultServiceInstance("greetings", "10.0.0.1", 8080,
+                false, Collections.singletonMap("configPath", "/chat"));
+        when(discoveryClient.getInstances("greetings"))
+                .thenReturn(Collections.singletonList(instance))
+                .thenThrow(new IllegalStateException("eureka down"));
+
+        // due for refresh right away, expired never
+        ProxyTargetCache cache = new ProxyTargetCache(discoveryClient, taskScheduler,
+                Long.MAX_VALUE, Long.MAX_VALUE, 60000);
+        List<ProxyTarget> targets = cache.getTargets("greetings");
+        assertThat(targets.get(0).getUri().toString(), is("http://10.0.0.1:8080/chat"));
+        assertThat(cache.getTargets("greetings"), is(targets));
+        assertThat(cache.getTargets("greetings"), is(targets));
+
+        ArgumentCaptor<Runnable> refresh = ArgumentCaptor.forClass(Runnable.class);
+        verify(taskScheduler).schedule(refresh.capture(), any(Date.class));
+        refresh.getValue().run();
+        verify(discoveryClient, times(2)).getInstances("greetings");
+        assertThat(cache.getTargets("greetings"), is(targets));
+    }
+
+    @Test
+    public void failedLookupNotRetriedBeforeBackoff() throws Exception {
+        DiscoveryClient discoveryClient = mock(DiscoveryClient.class);
+        ServiceInstance instance = new DefaultServiceInstance("greetings", "10.0.0.1", 8080,
+                false, Collections.<String, String>emptyMap());
+        when(discoveryClient.getInstances("greetings"))
+                .thenReturn(Collections.singletonList(instance))
+                .thenThrow(new IllegalStateException("eureka down"));
+
+        // expired right away, looked up again a minute after a failure
+        ProxyTargetCache cache = new ProxyTargetCache(discoveryClient, mock(TaskScheduler.class),
+                -1, 0, 60000);
+        List<ProxyTarget> targets = cache.getTargets("greetings");
+        assertThat(cache.getTargets("greetings"), is(targets));
+        assertThat(cache.getTargets("greetings"), is(targets));
+        assertThat(cache.getTargets("greetings"), is(targets));
+
+        verify(discoveryClient, times(2)).getInstances("greetings");
+    }
+}
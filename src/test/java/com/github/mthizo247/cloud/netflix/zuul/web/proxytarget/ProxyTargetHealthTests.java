@@ -0,0 +1,78 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.proxytarget;
+
+import org.junit.Test;
+import org.springframework.cloud.client.DefaultServiceInstance;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class ProxyTargetHealthTests {
+
+    @Test
+    public void ejectsFailingTargetAndProbesItBack() throws Exception {
+        ProxyTargetHealth health = new ProxyTargetHealth(4, 0.5, 1000, 50, 1000);
+        ProxyTarget failing = new ProxyTarget(
+                new DefaultServiceInstance("greetings", "10.0.0.1", 8080, false));
+        ProxyTarget healthy = new ProxyTarget(
+                new DefaultServiceInstance("greetings", "10.0.0.2", 8080, false));
+        URI uri = failing.getUri();
+
+        health.connectSucceeded(uri, 10);
+        for (int i = 0; i < 3; i++) {
+            health.connectFailed(uri);
+        }
+
+        assertThat(health.isEjected(uri), is(true));
+        assertThat(health.isAvailable(uri), is(false));
+        List<ProxyTarget> available = health.filter(Arrays.asList(failing, healthy));
+        assertThat(available.size(), is(1));
+        assertThat(available.get(0), is(healthy));
+
+        Thread.sleep(80);
+        // filtering leaves the probe to the target chosen
+        assertThat(health.filter(Arrays.asList(failing, healthy)).size(), is(2));
+        assertThat(health.filter(Arrays.asList(failing, healthy)).size(), is(2));
+        // a single probe per interval
+        assertThat(health.isAvailable(uri), is(true));
+        assertThat(health.isAvailable(uri), is(false));
+
+        health.connectSucceeded(uri, 10);
+        assertThat(health.isEjected(uri), is(false));
+        assertThat(health.isAvailable(uri), is(true));
+    }
+
+    @Test
+    public void ejectsSlowTarget() throws Exception {
+        ProxyTargetHealth health = new ProxyTargetHealth(2, 0.5, 100, 10000, 1000);
+        URI uri = URI.create("http://10.0.0.1:8080");
+
+        health.connectSucceeded(uri, 500);
+        health.connectSucceeded(uri, 500);
+
+        assertThat(health.isEjected(uri), is(true));
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.proxytarget;
+
+import org.junit.Test;
+import org.springframework.cloud.client.DefaultServiceInstance;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class ProxyTargetZonesTests {
+
+    private static ProxyTarget target(String host, String zone) {
+        return new ProxyTarget(new DefaultServiceInstance("greetings", host, 8080, false,
+                Collections.singletonMap("zone", zone)));
+    }
+
+    @Test
+    public void prefersLocalZoneWhileItHasCapacity() throws Exception {
+        ProxyTarget localA = target("10.0.0.1", "zone-a");
+        ProxyTarget localB = target("10.0.0.2", "zone-a");
+        ProxyTarget remote = target("10.0.1.1", "zone-c");
+        List<ProxyTarget> targets = Arrays.asList(localA, remote, localB);
+        ProxyTargetHealth health = new ProxyTargetHealth(1, 0.5, 0, 30000, 5000);
+        ProxyTargetZones zones = new ProxyTargetZones("zone-a", 0.5);
+        zones.setTargetHealth(health);
+
+        assertThat(zones.filter(targets), is(Arrays.asList(localA, localB)));
+
+        // half of the local capacity is still enough
+        health.connectFailed(localA.getUri());
+        assertThat(zones.filter(targets), is(Arrays.asList(localA, localB)));
+
+        health.connectFailed(localB.getUri());
+        assertThat(zones.filter(targets), is(targets));
+    }
+}
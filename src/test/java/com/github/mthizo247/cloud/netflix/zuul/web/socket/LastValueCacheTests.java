@@ -0,0 +1,73 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.socket;
+
+import org.junit.Test;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class LastValueCacheTests {
+    private static final String URI = "http://example.com/ws";
+
+    private static StompHeaders headers(String destination) {
+        StompHeaders headers = new StompHeaders();
+        headers.setDestination(destination);
+        headers.set(StompHeaders.MESSAGE_ID, "backend-1");
+        headers.set(StompHeaders.SUBSCRIPTION, "0");
+        return headers;
+    }
+
+    @Test
+    public void keepsLastValuePerDestination() {
+        LastValueCache cache = new LastValueCache(10, 1024, 0);
+        cache.put(URI, "/topic/prices.eur", headers("/topic/prices.eur"), "1.10".getBytes());
+        cache.put(URI, "/topic/prices.eur", headers("/topic/prices.eur"), "1.12".getBytes());
+
+        LastValueCache.LastValue lastValue = cache.get(URI, "/topic/prices.eur");
+        assertThat(new String(lastValue.getBody()), is("1.12"));
+        assertThat(lastValue.getHeaders().getDestination(), is("/topic/prices.eur"));
+        assertThat(lastValue.getHeaders().getMessageId(), nullValue());
+        assertThat(lastValue.getHeaders().getSubscription(), nullValue());
+        assertThat(cache.get("http://other.com/ws", "/topic/prices.eur"), nullValue());
+        assertThat(cache.getBytes(), is(4L));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        LastValueCache cache = new LastValueCache(2, 10, 0);
+        cache.put(URI, "/topic/a", headers("/topic/a"), "aaaa".getBytes());
+        cache.put(URI, "/topic/b", headers("/topic/b"), "bbbb".getBytes());
+        cache.get(URI, "/topic/a");
+
+        // over the entry count
+        cache.put(URI, "/topic/c", headers("/topic/c"), "cc".getBytes());
+        assertThat(cache.get(URI, "/topic/b"), nullValue());
+
+        // over the byte count
+        cache.put(URI, "/topic/d", headers("/topic/d"), "dddddd".getBytes());
+        assertThat(cache.get(URI, "/topic/a"), nullValue());
+        assertThat(cache.size(), is(2));
+        assertThat(cache.getBytes(), is(8L));
+    }
+}
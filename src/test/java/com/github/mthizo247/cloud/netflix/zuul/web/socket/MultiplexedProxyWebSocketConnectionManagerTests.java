@@ -0,0 +1,186 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.socket;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.stomp.StompFrameHandler;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.simp.stomp.StompSessionHandler;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.socket.WebSocketHttpHeaders;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class MultiplexedProxyWebSocketConnectionManagerTests {
+    private static final String URI = "http://example.com/ws";
+
+    private SimpMessagingTemplate messagingTemplate = mock(SimpMessagingTemplate.class);
+    private WebSocketStompClient stompClient = mock(WebSocketStompClient.class);
+    private WebSocketSession alice = mock(WebSocketSession.class);
+    private WebSocketSession bob = mock(WebSocketSession.class);
+    private StompSession serverSession = mock(StompSession.class);
+    private StompSession.Subscription subscription = mock(StompSession.Subscription.class);
+    private SettableListenableFuture<StompSession> listenableFuture = new SettableListenableFuture<>();
+    private UserAgentMessageSender messageSender = mock(UserAgentMessageSender.class);
+    private ProxyStompSessionPool sessionPool = new ProxyStompSessionPool(stompClient);
+
+    private WebSocketHttpHeadersCallback headersCallback = new WebSocketHttpHeadersCallback() {
+        @Override
+        public void applyHeaders(WebSocketSession userAgentSession, WebSocketHttpHeaders headers) {
+            headers.set("Authorization", "Bearer " + userAgentSession.getId());
+        }
+    };
+
+    @Before
+    public void init() throws Exception {
+        when(alice.getId()).thenReturn("alice");
+        when(bob.getId()).thenReturn("bob");
+        listenableFuture.set(serverSession);
+        when(stompClient.connect(eq(URI), eq(new WebSocketHttpHeaders()),
+                any(StompSessionHandler.class))).thenReturn(listenableFuture);
+        when(serverSession.subscribe(any(StompHeaders.class), any(StompFrameHandler.class)))
+                .thenReturn(subscription);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                when(serverSession.isConnected()).thenReturn(false);
+                return null;
+            }
+        }).when(serverSession).disconnect();
+        when(serverSession.isConnected()).thenReturn(true);
+    }
+
+    private MultiplexedProxyWebSocketConnectionManager manager(WebSocketSession session) {
+        return new MultiplexedProxyWebSocketConnectionManager(messagingTemplate, stompClient,
+                session, headersCallback, URI, sessionPool, messageSender, 1);
+    }
+
+    @Test
+    public void userAgentsShareOneServerSession() throws Exception {
+        manager(alice).start();
+        manager(bob).start();
+
+        verify(stompClient, times(1)).connect(eq(URI), eq(new WebSocketHttpHeaders()),
+                any(StompSessionHandler.class));
+        assertThat(sessionPool.getSessionCount(URI), is(1));
+    }
+
+    @Test
+    public void subscriptionCarriesUserHeadersAndRelaysToOwner() throws Exception {
+        MultiplexedProxyWebSocketConnectionManager manager = manager(alice);
+        manager.start();
+
+        manager.subscribe("sub-0", "/topic/greetings");
+
+        ArgumentCaptor<StompHeaders> headers = ArgumentCaptor.forClass(StompHeaders.class);
+        ArgumentCaptor<StompFrameHandler> handler = ArgumentCaptor.forClass(StompFrameHandler.class);
+        verify(serverSession).subscribe(headers.capture(), handler.capture());
+        assertThat(headers.getValue().getDestination(), is("/topic/greetings"));
+        assertThat(headers.getValue().getFirst("Authorization"), is("Bearer alice"));
+
+        StompHeaders frameHeaders = new StompHeaders();
+        frameHeaders.setDestination("/topic/greetings");
+        handler.getValue().handleFrame(frameHeaders, "hello");
+
+        verify(messageSender).sendMessage(alice, "sub-0", frameHeaders, "hello");
+    }
+
+    @Test
+    public void serverSessionClosedWithLastUserAgent() throws Exception {
+        MultiplexedProxyWebSocketConnectionManager aliceManager = manager(alice);
+        MultiplexedProxyWebSocketConnectionManager bobManager = manager(bob);
+        aliceManager.start();
+        bobManager.start();
+        aliceManager.subscribe("sub-0", "/topic/greetings");
+
+        aliceManager.disconnect();
+
+        verify(subscription).unsubscribe();
+        verify(serverSession, never()).disconnect();
+
+        bobManager.disconnect();
+
+        verify(serverSession).disconnect();
+    }
+
+    @Test
+    public void userAgentLeavingWhileConnectingLeavesOthersConnecting() throws Exception {
+        SettableListenableFuture<StompSession> connecting = new SettableListenableFuture<>();
+        when(stompClient.connect(eq(URI), eq(new WebSocketHttpHeaders()),
+                any(StompSessionHandler.class))).thenReturn(connecting);
+        MultiplexedProxyWebSocketConnectionManager aliceManager = manager(alice);
+        MultiplexedProxyWebSocketConnectionManager bobManager = manager(bob);
+        aliceManager.start();
+        bobManager.start();
+
+        aliceManager.disconnect();
+        assertThat(connecting.isCancelled(), is(false));
+
+        connecting.set(serverSession);
+
+        assertThat(bobManager.isConnected(), is(true));
+        verify(messageSender, never()).sendError(any(WebSocketSession.class), any(String.class));
+        verify(serverSession, never()).disconnect();
+    }
+
+    @Test
+    public void userDestinationsRefused() throws Exception {
+        when(messagingTemplate.getUserDestinationPrefix()).thenReturn("/user/");
+        MultiplexedProxyWebSocketConnectionManager manager = manager(alice);
+        manager.start();
+
+        manager.subscribe("sub-0", "/user/queue/replies");
+        manager.sendMessage("/user/bob/queue/replies", "hello");
+
+        verify(serverSession, never()).subscribe(any(StompHeaders.class), any(StompFrameHandler.class));
+        verify(serverSession, never()).send(any(StompHeaders.class), any());
+        verify(messageSender).sendError(alice,
+                "User destinations are not supported on multiplexed sessions: /user/queue/replies");
+    }
+
+    @Test
+    public void poolGrowsToLargestSizeAskedFor() throws Exception {
+        manager(alice).start();
+        new MultiplexedProxyWebSocketConnectionManager(messagingTemplate, stompClient, bob,
+                headersCallback, URI, sessionPool, messageSender, 2).start();
+
+        verify(stompClient, times(2)).connect(eq(URI), eq(new WebSocketHttpHeaders()),
+                any(StompSessionHandler.class));
+        assertThat(sessionPool.getSessionCount(URI), is(2));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.socket;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class ProxyReconnectSchedulerTests {
+    private TaskScheduler taskScheduler = mock(TaskScheduler.class);
+    private ZuulWebSocketMetrics metrics = new ZuulWebSocketMetrics();
+    private ZuulWebSocketProperties.WsBrokerage wsBrokerage = new ZuulWebSocketProperties.WsBrokerage();
+
+    @Before
+    public void init() {
+        wsBrokerage.setId("hello");
+        wsBrokerage.getReconnect().setInitialInterval(100);
+        wsBrokerage.getReconnect().setMaxInterval(1000);
+        wsBrokerage.getReconnect().setMaxAttempts(2);
+    }
+
+    private ProxyWebSocketConnectionManager manager(SettableListenableFuture<StompSession> reconnected) {
+        ProxyWebSocketConnectionManager manager = mock(ProxyWebSocketConnectionManager.class);
+        when(manager.getBrokerage()).thenReturn(wsBrokerage);
+        when(manager.isConnectedToUserAgent()).thenReturn(true);
+        when(manager.reconnect()).thenReturn(reconnected);
+        return manager;
+    }
+
+    private List<Runnable> scheduledTasks(int count) {
+        ArgumentCaptor<Runnable> tasks = ArgumentCaptor.forClass(Runnable.class);
+        verify(taskScheduler, times(count)).schedule(tasks.capture(), any(Date.class));
+        return tasks.getAllValues();
+    }
+
+    @Test
+    public void backoffIsJitteredBelowExponentialCeiling() {
+        ProxyReconnectScheduler scheduler = new ProxyReconnectScheduler(taskScheduler, 1, metrics);
+        ZuulWebSocketProperties.Reconnect policy = wsBrokerage.getReconnect();
+
+        for (int attempt = 0; attempt < 8; attempt++) {
+            long ceiling = Math.min(1000, 100L << attempt);
+            for (int i = 0; i < 50; i++) {
+                long delay = scheduler.backoff(policy, attempt);
+                assertTrue(delay + " exceeds " + ceiling, delay >= 0 && delay <= ceiling);
+            }
+        }
+    }
+
+    @Test
+    public void userAgentFailedOnceAttemptsAreExhausted() {
+        SettableListenableFuture<StompSession> refused = new SettableListenableFuture<>();
+        refused.setException(new IOException("Connection refused "));
+        ProxyWebSocketConnectionManager manager = manager(refused);
+        ProxyReconnectScheduler scheduler = new ProxyReconnectScheduler(taskScheduler, 1, metrics);
+
+        assertThat(scheduler.scheduleReconnect(manager), is(true));
+        assertThat(scheduler.scheduleReconnect(manager), is(false));
+
+        scheduledTasks(1).get(0).run();
+        verify(manager, never()).failUserAgent(anyString());
+
+        scheduledTasks(2).get(1).run();
+        verify(manager).failUserAgent(anyString());
+        assertThat(metrics.getCount(wsBrokerage, "reconnect.failed"), is(2L));
+        assertThat(metrics.getCount(wsBrokerage, "reconnect.exhausted"), is(1L));
+        assertThat(scheduler.isReconnecting(manager), is(false));
+        assertThat(scheduler.getReconnectsInFlight(), is(0));
+    }
+
+    @Test
+    public void concurrentReconnectsAreCapped() {
+        SettableListenableFuture<StompSession> pending = new SettableListenableFuture<>();
+        ProxyWebSocketConnectionManager first = manager(pending);
+        ProxyWebSocketConnectionManager second = manager(new SettableListenableFuture<StompSession>());
+        ProxyReconnectScheduler scheduler = new ProxyReconnectScheduler(taskScheduler, 1, metrics);
+
+        scheduler.scheduleReconnect(first);
+        scheduler.scheduleReconnect(second);
+        List<Runnable> tasks = scheduledTasks(2);
+        tasks.get(0).run();
+        tasks.get(1).run();
+
+        verify(first).reconnect();
+        verify(second, never()).reconnect();
+        assertThat(metrics.getCount(wsBrokerage, "reconnect.deferred"), is(1L));
+
+        pending.set(mock(StompSession.class));
+        scheduledTasks(3).get(2).run();
+
+        verify(second).reconnect();
+        assertThat(metrics.getCount(wsBrokerage, "reconnect.succeeded"), is(1L));
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.socket;
+
+import org.junit.Test;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.cloud.autoconfigure.ConfigurationPropertiesRebinderAutoConfiguration;
+import org.springframework.cloud.context.environment.EnvironmentChangeEvent;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.hamcrest.core.IsSame.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class ProxyRouteRefresherTests {
+
+    @Test
+    public void swapsRouteTableOnChange() throws Exception {
+        Map<String, Object> properties = new HashMap<>();
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new MapPropertySource("test", properties));
+        ProxyRouteRefresher refresher = new ProxyRouteRefresher(environment);
+        ProxyRouteTable initial = refresher.getRouteTable();
+        assertThat(initial.getRoute(new URI("/ws/info")), nullValue());
+
+        properties.put("zuul.ws.brokerages.greetings.end-points", "/ws");
+
+        refresher.onApplicationEvent(new EnvironmentChangeEvent(
+                Collections.singleton("server.port")));
+        assertThat(refresher.getRouteTable(), sameInstance(initial));
+
+        refresher.onApplicationEvent(new EnvironmentChangeEvent(
+                Collections.singleton("zuul.ws.brokerages.greetings.end-points")));
+        ProxyRouteTable.Route route = refresher.getRouteTable().getRoute(new URI("/ws/info"));
+        assertThat(route.getBrokerage().getId(), is("greetings"));
+
+        properties.put("zuul.ws.brokerages.greetings.destination-routes.unknown", "/topic/");
+        refresher.refresh();
+        assertThat(refresher.getRouteTable().getRoute(new URI("/ws/info")), sameInstance(route));
+    }
+
+    @Test
+    public void rebindingPropertiesLeavesBrokeragesOfLiveSessionsAlone() throws Exception {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("zuul.ws.brokerages.greetings.end-points", "/ws");
+        properties.put("zuul.ws.brokerages.greetings.connect-timeout", "1000");
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        context.getEnvironment().getPropertySources().addFirst(
+                new MapPropertySource("test", properties));
+        // the rebinder is only there once the properties binder is
+        context.register(RefresherConfiguration.class,
+                ConfigurationPropertiesRebinderAutoConfiguration.class);
+        context.refresh();
+        try {
+            ProxyRouteRefresher refresher = context.getBean(ProxyRouteRefresher.class);
+            // held by a session connected at startup
+            ZuulWebSocketProperties.WsBrokerage live = refresher.getRouteTable()
+                    .getRoute(new URI("/ws/info")).getBrokerage();
+
+            properties.put("zuul.ws.brokerages.greetings.connect-timeout", "2000");
+            context.publishEvent(new EnvironmentChangeEvent(
+                    Collections.singleton("zuul.ws.brokerages.greetings.connect-timeout")));
+
+            assertThat(context.getBean(ZuulWebSocketProperties.class).getBrokerages()
+                    .get("greetings").getConnectTimeout(), is(2000L));
+            assertThat(live.getConnectTimeout(), is(1000L));
+            assertThat(refresher.getRouteTable().getRoute(new URI("/ws/info")).getBrokerage()
+                    .getConnectTimeout(), is(2000L));
+        } finally {
+            context.close();
+        }
+    }
+
+    @Configuration
+    @EnableConfigurationProperties(ZuulWebSocketProperties.class)
+    static class RefresherConfiguration {
+        @Bean
+        public ProxyRouteRefresher proxyRouteRefresher(ConfigurableEnvironment environment) {
+            return new ProxyRouteRefresher(environment);
+        }
+    }
+}
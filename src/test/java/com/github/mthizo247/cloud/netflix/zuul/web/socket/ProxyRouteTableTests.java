@@ -0,0 +1,75 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.socket;
+
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class ProxyRouteTableTests {
+
+    private static ZuulWebSocketProperties.WsBrokerage brokerage(String... endPoints) {
+        ZuulWebSocketProperties.WsBrokerage wsBrokerage = new ZuulWebSocketProperties.WsBrokerage();
+        wsBrokerage.setEndPoints(endPoints);
+        return wsBrokerage;
+    }
+
+    @Test
+    public void routesPathsToEndPoints() throws Exception {
+        Map<String, ZuulWebSocketProperties.WsBrokerage> brokerages = new LinkedHashMap<>();
+        brokerages.put("greetings", brokerage("/ws"));
+        brokerages.put("prices", brokerage("prices/", "/feeds/*/live"));
+        ZuulWebSocketProperties properties = new ZuulWebSocketProperties();
+        properties.setBrokerages(brokerages);
+        ProxyRouteTable routeTable = new ProxyRouteTable(properties);
+
+        ProxyRouteTable.Route route = routeTable.getRoute(new URI("ws://localhost:8080/ws/123/abc/websocket"));
+        assertThat(route.getBrokerage(), is(brokerages.get("greetings")));
+        assertThat(route.getEndPoint(), is("/ws"));
+        assertThat(routeTable.getRoute(new URI("/api/prices?token=1")).getEndPoint(), is("prices/"));
+        assertThat(routeTable.getRoute(new URI("/feeds/eur/live/info")).getEndPoint(),
+                is("/feeds/*/live"));
+        assertThat(routeTable.getRoute(new URI("/wsx")), nullValue());
+    }
+
+    @Test
+    public void sockJsSessionsDontFillTheCache() throws Exception {
+        Map<String, ZuulWebSocketProperties.WsBrokerage> brokerages = new LinkedHashMap<>();
+        brokerages.put("greetings", brokerage("/ws"));
+        ZuulWebSocketProperties properties = new ZuulWebSocketProperties();
+        properties.setBrokerages(brokerages);
+        ProxyRouteTable routeTable = new ProxyRouteTable(properties);
+
+        for (int i = 0; i <= ProxyRouteTable.MAX_CACHED_PATHS; i++) {
+            assertThat(routeTable.getRoute(new URI("/ws/" + (i % 1000) + "/session-" + i
+                    + "/websocket")).getEndPoint(), is("/ws"));
+        }
+        assertThat(routeTable.getRoute(new URI("/ws/1/session/xhr_streaming")).getEndPoint(),
+                is("/ws"));
+        assertThat(routeTable.getCachedPaths(), is(1));
+    }
+}
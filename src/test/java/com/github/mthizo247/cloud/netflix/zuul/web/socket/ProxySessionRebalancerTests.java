@@ -0,0 +1,132 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.socket;
+
+import com.github.mthizo247.cloud.netflix.zuul.web.proxytarget.ProxyTarget;
+import com.github.mthizo247.cloud.netflix.zuul.web.proxytarget.ProxyTargetCache;
+import com.github.mthizo247.cloud.netflix.zuul.web.proxytarget.ProxyTargetHealth;
+import org.junit.Test;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.netflix.zuul.filters.ZuulProperties;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class ProxySessionRebalancerTests {
+
+    @Test
+    public void migratesSessionsOverTheShareOfTheirInstance() throws Exception {
+        ZuulProperties zuulProperties = new ZuulProperties();
+        zuulProperties.getRoutes().put("greetings",
+                new ZuulProperties.ZuulRoute("greetings", "/**", "greetings", null, false, false, null));
+        ProxyTarget first = new ProxyTarget(
+                new DefaultServiceInstance("greetings", "10.0.0.1", 8080, false));
+        ProxyTarget second = new ProxyTarget(
+                new DefaultServiceInstance("greetings", "10.0.0.2", 8080, false));
+        ProxyTargetCache targetCache = mock(ProxyTargetCache.class);
+        when(targetCache.getTargets("greetings")).thenReturn(Arrays.asList(first, second));
+
+        ZuulWebSocketProperties.WsBrokerage wsBrokerage = new ZuulWebSocketProperties.WsBrokerage();
+        wsBrokerage.setId("greetings");
+        List<ProxyWebSocketConnectionManager> managers = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            // the first session is busy and can't be migrated
+            managers.add(manager(wsBrokerage, first.getUri(), second.getUri(), i > 0));
+        }
+        ProxyWebSocketHandler handler = mock(ProxyWebSocketHandler.class);
+        when(handler.getConnectionManagers()).thenReturn(managers);
+
+        ProxySessionRebalancer rebalancer = new ProxySessionRebalancer(targetCache,
+                zuulProperties, mock(TaskScheduler.class), new ZuulWebSocketMetrics(), 1000, 1);
+        rebalancer.register(handler);
+
+        // rate limited to one migration per run
+        assertThat(rebalancer.rebalance(), is(1));
+        verify(managers.get(0)).migrate(second.getUri());
+        verify(managers.get(1)).migrate(second.getUri());
+
+        rebalancer = new ProxySessionRebalancer(targetCache, zuulProperties,
+                mock(TaskScheduler.class), new ZuulWebSocketMetrics(), 1000, 10);
+        rebalancer.register(handler);
+
+        // 5 sessions over 2 instances, 3 are left on the first one
+        assertThat(rebalancer.rebalance(), is(2));
+        verify(managers.get(2), times(1)).migrate(second.getUri());
+        verify(managers.get(4), times(0)).migrate(second.getUri());
+    }
+
+    @Test
+    public void ejectedInstancesReceiveNoSessions() throws Exception {
+        ZuulProperties zuulProperties = new ZuulProperties();
+        zuulProperties.getRoutes().put("greetings",
+                new ZuulProperties.ZuulRoute("greetings", "/**", "greetings", null, false, false, null));
+        ProxyTarget first = new ProxyTarget(
+                new DefaultServiceInstance("greetings", "10.0.0.1", 8080, false));
+        ProxyTarget second = new ProxyTarget(
+                new DefaultServiceInstance("greetings", "10.0.0.2", 8080, false));
+        ProxyTargetCache targetCache = mock(ProxyTargetCache.class);
+        when(targetCache.getTargets("greetings")).thenReturn(Arrays.asList(first, second));
+        ProxyTargetHealth targetHealth = new ProxyTargetHealth(1, 0.5, 0, 60000, 1000);
+        targetHealth.connectFailed(second.getUri());
+
+        ZuulWebSocketProperties.WsBrokerage wsBrokerage = new ZuulWebSocketProperties.WsBrokerage();
+        wsBrokerage.setId("greetings");
+        List<ProxyWebSocketConnectionManager> managers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            managers.add(manager(wsBrokerage, first.getUri(), second.getUri(), true));
+        }
+        ProxyWebSocketHandler handler = mock(ProxyWebSocketHandler.class);
+        when(handler.getConnectionManagers()).thenReturn(managers);
+
+        ProxySessionRebalancer rebalancer = new ProxySessionRebalancer(targetCache,
+                zuulProperties, mock(TaskScheduler.class), new ZuulWebSocketMetrics(), 1000, 10);
+        rebalancer.targetHealth(targetHealth);
+        rebalancer.register(handler);
+
+        assertThat(rebalancer.rebalance(), is(0));
+        verify(managers.get(0), never()).migrate(second.getUri());
+    }
+
+    private static ProxyWebSocketConnectionManager manager(
+            ZuulWebSocketProperties.WsBrokerage wsBrokerage, URI target, URI migrateTo,
+            boolean settled) {
+        ProxyWebSocketConnectionManager manager = mock(ProxyWebSocketConnectionManager.class);
+        when(manager.getBrokerage()).thenReturn(wsBrokerage);
+        when(manager.getProxyTarget()).thenReturn(target);
+        when(manager.isConnectedToUserAgent()).thenReturn(true);
+        when(manager.migrate(migrateTo)).thenReturn(
+                settled ? new SettableListenableFuture<StompSession>() : null);
+        return manager;
+    }
+}
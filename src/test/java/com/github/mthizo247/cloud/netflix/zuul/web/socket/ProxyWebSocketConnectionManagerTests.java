@@ -18,17 +18,47 @@ package com.github.mthizo247.cloud.netflix.zuul.web.socket;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.converter.CompositeMessageConverter;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.scheduling.TaskScheduler;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompFrameHandler;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
 import org.springframework.messaging.simp.stomp.StompHeaders;
 import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.messaging.support.NativeMessageHeaderAccessor;
 import org.springframework.util.ErrorHandler;
-import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.util.concurrent.SettableListenableFuture;
 import org.springframework.web.socket.WebSocketHttpHeaders;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.messaging.WebSocketStompClient;
 
+import java.lang.reflect.Type;
+import java.net.URI;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -46,8 +76,9 @@ public class ProxyWebSocketConnectionManagerTests {
     private WebSocketHttpHeadersCallback headersCallback = mock(
             WebSocketHttpHeadersCallback.class);
     private StompSession serverSession = mock(StompSession.class);
-    private ListenableFuture<StompSession> listenableFuture = (ListenableFuture<StompSession>) mock(
-            ListenableFuture.class);
+    private SettableListenableFuture<StompSession> listenableFuture = new SettableListenableFuture<>();
+    private TaskScheduler taskScheduler = mock(TaskScheduler.class);
+    private UserAgentMessageSender messageSender = mock(UserAgentMessageSender.class);
     private ErrorHandler errHandler = mock(ErrorHandler.class);
 
     @Before
@@ -57,22 +88,106 @@ public class ProxyWebSocketConnectionManagerTests {
                 stompClient, wsSession, headersCallback, uri);
 
         proxyConnectionManager.errorHandler(errHandler);
+        proxyConnectionManager.messageSender(messageSender);
 
-        when(listenableFuture.get()).thenReturn(serverSession);
+        when(serverSession.isConnected()).thenReturn(true);
+        when(messagingTemplate.getUserDestinationPrefix()).thenReturn("/user/");
+        when(stompClient.getTaskScheduler()).thenReturn(taskScheduler);
         when(stompClient.connect(uri, new WebSocketHttpHeaders(),
                 proxyConnectionManager)).thenReturn(listenableFuture);
     }
 
+    private static StompHeaders headers(String destination) {
+        StompHeaders headers = new StompHeaders();
+        headers.setDestination(destination);
+        return headers;
+    }
+
     @Test
     public void sendStringMessageAsBytes() throws Exception {
         String destination = "/app/messages";
         String message = "hello";
 
+        listenableFuture.set(serverSession);
+        proxyConnectionManager.start();
+
+        proxyConnectionManager.sendMessage(destination, message);
+
+        verify(serverSession).send(eq(headers(destination)), eq(message.getBytes()));
+    }
+
+    @Test
+    public void sendBinaryMessageAsIs() throws Exception {
+        String destination = "/app/messages";
+        byte[] message = new byte[]{8, 0, (byte) 0xFF};
+
+        listenableFuture.set(serverSession);
         proxyConnectionManager.start();
 
         proxyConnectionManager.sendMessage(destination, message);
 
-        verify(serverSession).send(destination, message.getBytes());
+        verify(serverSession).send(headers(destination), message);
+    }
+
+    @Test
+    public void framesQueuedUntilConnected() throws Exception {
+        proxyConnectionManager.start();
+
+        proxyConnectionManager.subscribe("sub-0", "/topic/greetings");
+        proxyConnectionManager.sendMessage("/app/messages", "hello");
+
+        verify(serverSession, never()).send(any(StompHeaders.class), any());
+
+        listenableFuture.set(serverSession);
+
+        InOrder inOrder = inOrder(serverSession);
+        inOrder.verify(serverSession).subscribe(any(StompHeaders.class),
+                any(StompFrameHandler.class));
+        inOrder.verify(serverSession).send(eq(headers("/app/messages")),
+                eq("hello".getBytes()));
+    }
+
+    @Test
+    public void connectTimeoutFailsUserAgent() throws Exception {
+        proxyConnectionManager.connectTimeout(5000);
+        proxyConnectionManager.start();
+        proxyConnectionManager.sendMessage("/app/messages", "hello");
+
+        ArgumentCaptor<Runnable> timeout = ArgumentCaptor.forClass(Runnable.class);
+        verify(taskScheduler).schedule(timeout.capture(), any(Date.class));
+        timeout.getValue().run();
+
+        assertThat(listenableFuture.isCancelled(), is(true));
+        verify(messageSender).sendError(eq(wsSession), any(String.class));
+        verify(serverSession, never()).send(any(StompHeaders.class), any());
+    }
+
+    @Test
+    public void pendingFramesAreBounded() throws Exception {
+        proxyConnectionManager.pendingFramesLimit(1);
+        proxyConnectionManager.start();
+
+        proxyConnectionManager.sendMessage("/app/messages", "first");
+        verify(messageSender, never()).sendError(eq(wsSession), any(String.class));
+        proxyConnectionManager.sendMessage("/app/messages", "second");
+
+        verify(messageSender).sendError(eq(wsSession), any(String.class));
+    }
+
+    @Test
+    public void lostSessionFailsUserAgentUnlessReconnectScheduled() throws Exception {
+        listenableFuture.set(serverSession);
+        proxyConnectionManager.start();
+        when(serverSession.isConnected()).thenReturn(false);
+
+        proxyConnectionManager.reconnectScheduled(true);
+        proxyConnectionManager.sendMessage("/app/messages", "first");
+        verify(messageSender, never()).sendError(eq(wsSession), any(String.class));
+
+        proxyConnectionManager.reconnectScheduled(false);
+        proxyConnectionManager.sendMessage("/app/messages", "second");
+        verify(messageSender).sendError(eq(wsSession), any(String.class));
+        verify(serverSession, never()).send(any(StompHeaders.class), any());
     }
 
     @Test
@@ -93,4 +208,320 @@ public class ProxyWebSocketConnectionManagerTests {
 
         verify(errHandler).handleError(new ProxySessionException(proxyConnectionManager, serverSession, exception));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void conflatedSubscriptionRelaysLatestFrame() throws Exception {
+        when(serverSession.subscribe(any(StompHeaders.class), any(StompFrameHandler.class)))
+                .thenReturn(mock(StompSession.Subscription.class));
+        proxyConnectionManager.conflatedDestinations(0, "/topic/prices.*");
+        listenableFuture.set(serverSession);
+        proxyConnectionManager.start();
+        proxyConnectionManager.subscribe("sub-0", "/topic/prices.eur");
+
+        ArgumentCaptor<StompFrameHandler> handler = ArgumentCaptor.forClass(StompFrameHandler.class);
+        verify(serverSession).subscribe(any(StompHeaders.class), handler.capture());
+        StompHeaders headers = new StompHeaders();
+        headers.setDestination("/topic/prices.eur");
+        handler.getValue().handleFrame(headers, "1.10".getBytes());
+        handler.getValue().handleFrame(headers, "1.11".getBytes());
+        byte[] latest = "1.12".getBytes();
+        handler.getValue().handleFrame(headers, latest);
+
+        ArgumentCaptor<Runnable> relay = ArgumentCaptor.forClass(Runnable.class);
+        // after the connect timeout, a single relay for all three frames
+        verify(taskScheduler, times(2)).schedule(relay.capture(), any(Date.class));
+        relay.getValue().run();
+
+        ArgumentCaptor<Message> relayed = ArgumentCaptor.forClass(Message.class);
+        verify(messagingTemplate).send(eq("/topic/prices.eur"), relayed.capture());
+        assertThat(relayed.getValue().getPayload(), is((Object) latest));
+    }
+
+    @Test
+    public void relayReusesReceivedFrame() throws Exception {
+        StompHeaders headers = new StompHeaders();
+        headers.setDestination("/topic/greetings");
+        headers.set("content-type", "application/json");
+        byte[] payload = "{\"greeting\":\"hello\"}".getBytes();
+
+        proxyConnectionManager.handleFrame(headers, payload);
+
+        ArgumentCaptor<Message> relayed = ArgumentCaptor.forClass(Message.class);
+        verify(messagingTemplate).send(eq("/topic/greetings"), relayed.capture());
+        assertThat(relayed.getValue().getPayload(), is((Object) payload));
+        assertThat(relayed.getValue().getHeaders().get(NativeMessageHeaderAccessor.NATIVE_HEADERS),
+                is((Object) headers));
+    }
+
+    @Test
+    public void userDestinationRelayedToUser() throws Exception {
+        Principal principal = mock(Principal.class);
+        when(principal.getName()).thenReturn("alice");
+        when(wsSession.getPrincipal()).thenReturn(principal);
+        StompHeaders headers = new StompHeaders();
+        headers.setDestination("/user/queue/replies");
+
+        proxyConnectionManager.handleFrame(headers, new byte[0]);
+
+        verify(messagingTemplate).send(eq("/user/alice/queue/replies"), any(Message.class));
+    }
+
+    @Test
+    public void lastValueSentOnSubscribe() throws Exception {
+        LastValueCache cache = new LastValueCache(10, 1024, 0);
+        StompHeaders headers = new StompHeaders();
+        headers.setDestination("/topic/prices.eur");
+        byte[] body = "1.12".getBytes();
+        cache.put("http://example.com", "/topic/prices.eur", headers, body);
+        proxyConnectionManager.lastValueCache(cache, "/topic/prices.*");
+        proxyConnectionManager.start();
+
+        proxyConnectionManager.subscribe("sub-0", "/topic/prices.eur");
+
+        ArgumentCaptor<StompHeaders> sent = ArgumentCaptor.forClass(StompHeaders.class);
+        verify(messageSender).sendMessage(eq(wsSession), eq("sub-0"), sent.capture(), eq(body));
+        assertThat(sent.getValue().getDestination(), is("/topic/prices.eur"));
+    }
+
+    @Test
+    public void cachedFrameSerializedOnceForCacheAndRelay() throws Exception {
+        LastValueCache cache = new LastValueCache(10, 1024, 0);
+        proxyConnectionManager.lastValueCache(cache, "/topic/prices.*");
+        proxyConnectionManager.directDelivery(true);
+        listenableFuture.set(serverSession);
+        proxyConnectionManager.start();
+        proxyConnectionManager.subscribe("sub-0", "/topic/prices.eur");
+        ArgumentCaptor<StompFrameHandler> handler = ArgumentCaptor.forClass(StompFrameHandler.class);
+        verify(serverSession).subscribe(any(StompHeaders.class), handler.capture());
+
+        StompHeaders headers = new StompHeaders();
+        headers.setDestination("/topic/prices.eur");
+        Object payload = new Object();
+        byte[] body = "1.12".getBytes();
+        when(messageSender.serialize(headers, payload))
+                .thenReturn(new UserAgentMessageSender.Frame(headers, body));
+        handler.getValue().handleFrame(headers, payload);
+
+        verify(messageSender, times(1)).serialize(any(StompHeaders.class), any());
+        verify(messageSender).sendMessage(wsSession, "sub-0", headers, body);
+    }
+
+    @Test
+    public void payloadPassthroughKeepsBodyAsReceived() throws Exception {
+        proxyConnectionManager.payloadPassthrough(true);
+        StompHeaders headers = new StompHeaders();
+        headers.setContentType(MimeTypeUtils.APPLICATION_JSON);
+        assertThat(proxyConnectionManager.getPayloadType(headers), is((Type) byte[].class));
+
+        byte[] body = "{\"greeting\":\"hello\"}".getBytes();
+        StompHeaderAccessor accessor = StompHeaderAccessor.create(StompCommand.MESSAGE);
+        accessor.setContentType(MimeTypeUtils.APPLICATION_JSON);
+        MessageConverter converter = new CompositeMessageConverter(Arrays.asList(
+                new PassthroughMessageConverter(), new MappingJackson2MessageConverter()));
+
+        assertThat(converter.fromMessage(MessageBuilder.createMessage(body,
+                accessor.getMessageHeaders()), byte[].class), is((Object) body));
+    }
+
+    @Test
+    public void sendHeadersAndReceiptRelayed() throws Exception {
+        StompSession.Receiptable receiptable = mock(StompSession.Receiptable.class);
+        when(receiptable.getReceiptId()).thenReturn("backend-receipt");
+        when(serverSession.send(any(StompHeaders.class), any())).thenReturn(receiptable);
+        when(wsSession.getId()).thenReturn("ua-1");
+        listenableFuture.set(serverSession);
+        proxyConnectionManager.start();
+
+        StompHeaders headers = headers("/app/orders");
+        headers.setContentType(MimeTypeUtils.APPLICATION_JSON);
+        headers.set("x-correlation-id", "42");
+        headers.setReceipt("r-7");
+        proxyConnectionManager.sendMessage(headers, "{}".getBytes());
+
+        ArgumentCaptor<StompHeaders> sent = ArgumentCaptor.forClass(StompHeaders.class);
+        verify(serverSession).send(sent.capture(), eq("{}".getBytes()));
+        assertThat(sent.getValue().getContentType(), is(MimeTypeUtils.APPLICATION_JSON));
+        assertThat(sent.getValue().getFirst("x-correlation-id"), is("42"));
+        assertThat(sent.getValue().getReceipt(), is("ua-1-1"));
+
+        ArgumentCaptor<Runnable> receipt = ArgumentCaptor.forClass(Runnable.class);
+        verify(receiptable).addReceiptTask(receipt.capture());
+        receipt.getValue().run();
+        verify(messageSender).sendReceipt(wsSession, "r-7");
+    }
+
+    @Test
+    public void directDeliverySendsToSubscriptionOfUserAgent() throws Exception {
+        listenableFuture.set(serverSession);
+        proxyConnectionManager.directDelivery(true);
+        proxyConnectionManager.start();
+        proxyConnectionManager.subscribe("sub-0", "/topic/greetings");
+
+        ArgumentCaptor<StompFrameHandler> handler = ArgumentCaptor.forClass(StompFrameHandler.class);
+        verify(serverSession).subscribe(any(StompHeaders.class), handler.capture());
+        StompHeaders headers = headers("/topic/greetings");
+        handler.getValue().handleFrame(headers, "hello".getBytes());
+
+        verify(messageSender).sendMessage(wsSession, "sub-0", headers, "hello".getBytes());
+        verify(messagingTemplate, never()).send(anyString(), any(Message.class));
+    }
+
+    @Test
+    public void directDeliveryFanOutGrowsLinearly() throws Exception {
+        for (int userAgents : new int[]{10, 100, 1000}) {
+            // every user agent subscribed to the same topic on its own upstream session
+            final List<Message<?>> delivered = new ArrayList<>();
+            MessageChannel clientOutboundChannel = new MessageChannel() {
+                @Override
+                public boolean send(Message<?> message) {
+                    delivered.add(message);
+                    return true;
+                }
+
+                @Override
+                public boolean send(Message<?> message, long timeout) {
+                    return send(message);
+                }
+            };
+            UserAgentMessageSender sender = new UserAgentMessageSender(clientOutboundChannel,
+                    mock(MessageConverter.class));
+            StompSession upstream = mock(StompSession.class);
+            when(upstream.isConnected()).thenReturn(true);
+
+            for (int i = 0; i < userAgents; i++) {
+                WebSocketSession userAgent = mock(WebSocketSession.class);
+                when(userAgent.getId()).thenReturn("ua-" + i);
+                ProxyWebSocketConnectionManager manager = new ProxyWebSocketConnectionManager(
+                        messagingTemplate, stompClient, userAgent, headersCallback, "http://example.com");
+                manager.messageSender(sender);
+                // as wired for a brokerage with the default properties
+                manager.directDelivery(new ZuulWebSocketProperties.WsBrokerage().isDirectDelivery());
+                SettableListenableFuture<StompSession> connected = new SettableListenableFuture<>();
+                connected.set(upstream);
+                when(stompClient.connect("http://example.com", new WebSocketHttpHeaders(), manager))
+                        .thenReturn(connected);
+                manager.start();
+                manager.subscribe("sub-" + i, "/topic/prices");
+            }
+
+            ArgumentCaptor<StompFrameHandler> handlers = ArgumentCaptor.forClass(StompFrameHandler.class);
+            verify(upstream, times(userAgents)).subscribe(any(StompHeaders.class), handlers.capture());
+            for (StompFrameHandler handler : handlers.getAllValues()) {
+                int before = delivered.size();
+                handler.handleFrame(headers("/topic/prices"), "1.10".getBytes());
+                // constant per frame, a broadcast would deliver it to every user agent
+                assertThat(delivered.size() - before, is(1));
+            }
+
+            // deliveries grow linearly with the user agents, not quadratically
+            assertThat(delivered.size(), is(userAgents));
+            for (int i = 0; i < userAgents; i++) {
+                StompHeaderAccessor accessor = StompHeaderAccessor.wrap(delivered.get(i));
+                assertThat(accessor.getSessionId(), is("ua-" + i));
+                assertThat(accessor.getSubscriptionId(), is("sub-" + i));
+            }
+        }
+        verify(messagingTemplate, never()).send(anyString(), any(Message.class));
+    }
+
+    @Test
+    public void migrateSubscribesOnNewTargetBeforeDisconnecting() throws Exception {
+        StompSession.Subscription subscription = mock(StompSession.Subscription.class);
+        when(serverSession.subscribe(any(StompHeaders.class), any(StompFrameHandler.class)))
+                .thenReturn(subscription);
+        listenableFuture.set(serverSession);
+        proxyConnectionManager.proxyTarget(URI.create("http://example.com"));
+        proxyConnectionManager.start();
+        proxyConnectionManager.subscribe("sub-0", "/topic/greetings");
+
+        final URI other = URI.create("http://other.example.com");
+        proxyConnectionManager.retargeter(new ProxyWebSocketConnectionManager.Retargeter() {
+            @Override
+            public void retarget(ProxyWebSocketConnectionManager connectionManager) {
+            }
+
+            @Override
+            public void retarget(ProxyWebSocketConnectionManager connectionManager,
+                                 URI proxyTarget) {
+                connectionManager.retarget(proxyTarget, proxyTarget.toString());
+            }
+        });
+        SettableListenableFuture<StompSession> migrated = new SettableListenableFuture<>();
+        when(stompClient.connect(other.toString(), new WebSocketHttpHeaders(),
+                proxyConnectionManager)).thenReturn(migrated);
+
+        assertThat(proxyConnectionManager.migrate(other), is((Object) migrated));
+        proxyConnectionManager.sendMessage("/app/greetings", "hello");
+        verify(serverSession, never()).disconnect();
+        verify(subscription, never()).unsubscribe();
+
+        StompSession newSession = mock(StompSession.class);
+        when(newSession.isConnected()).thenReturn(true);
+        migrated.set(newSession);
+
+        verify(newSession).subscribe(eq(headers("/topic/greetings")), any(StompFrameHandler.class));
+        verify(newSession).send(headers("/app/greetings"), "hello".getBytes());
+        verify(subscription).unsubscribe();
+        verify(serverSession).disconnect();
+        assertThat(proxyConnectionManager.getProxyTarget(), is(other));
+    }
+
+    @Test
+    public void reconnectDisconnectsPreviousSession() throws Exception {
+        StompSession.Subscription subscription = mock(StompSession.Subscription.class);
+        when(serverSession.subscribe(any(StompHeaders.class), any(StompFrameHandler.class)))
+                .thenReturn(subscription);
+        listenableFuture.set(serverSession);
+        proxyConnectionManager.start();
+        proxyConnectionManager.subscribe("sub-0", "/topic/greetings");
+
+        SettableListenableFuture<StompSession> reconnected = new SettableListenableFuture<>();
+        when(stompClient.connect("http://example.com", new WebSocketHttpHeaders(),
+                proxyConnectionManager)).thenReturn(reconnected);
+        proxyConnectionManager.reconnect();
+
+        verify(subscription).unsubscribe();
+        verify(serverSession).disconnect();
+
+        StompSession newSession = mock(StompSession.class);
+        when(newSession.isConnected()).thenReturn(true);
+        reconnected.set(newSession);
+
+        verify(newSession).subscribe(eq(headers("/topic/greetings")), any(StompFrameHandler.class));
+    }
+
+    @Test
+    public void clientAcksRelayedOnCommit() throws Exception {
+        StompSession.Subscription subscription = mock(StompSession.Subscription.class);
+        when(serverSession.subscribe(any(StompHeaders.class), any(StompFrameHandler.class)))
+                .thenReturn(subscription);
+        listenableFuture.set(serverSession);
+        proxyConnectionManager.start();
+        proxyConnectionManager.subscribe("sub-0", "/queue/orders", "client");
+
+        ArgumentCaptor<StompHeaders> subscribed = ArgumentCaptor.forClass(StompHeaders.class);
+        ArgumentCaptor<StompFrameHandler> handler = ArgumentCaptor.forClass(StompFrameHandler.class);
+        verify(serverSession).subscribe(subscribed.capture(), handler.capture());
+        assertThat(subscribed.getValue().getAck(), is("client"));
+
+        for (String ackId : Arrays.asList("m-1", "m-2", "m-3")) {
+            StompHeaders headers = headers("/queue/orders");
+            headers.setAck(ackId);
+            handler.getValue().handleFrame(headers, "order".getBytes());
+        }
+
+        proxyConnectionManager.begin("tx-1");
+        proxyConnectionManager.acknowledge("m-2", true, "tx-1");
+        proxyConnectionManager.acknowledge("unknown", true, null);
+        verify(serverSession, never()).acknowledge(anyString(), anyBoolean());
+
+        proxyConnectionManager.commit("tx-1");
+        verify(serverSession).acknowledge("m-2", true);
+
+        // m-1 went with the cumulative ack of m-2
+        proxyConnectionManager.acknowledge("m-1", true, null);
+        proxyConnectionManager.acknowledge("m-3", false, null);
+        verify(serverSession, never()).acknowledge("m-1", true);
+        verify(serverSession).acknowledge("m-3", false);
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.socket;
+
+import com.github.mthizo247.cloud.netflix.zuul.web.proxytarget.ProxyTargetResolver;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.stomp.StompFrameHandler;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.simp.stomp.StompSessionHandler;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketHttpHeaders;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class ProxyWebSocketHandlerTests {
+    private static final String GREETINGS_URI = "http://greetings:8080/ws";
+    private static final String PRICES_URI = "http://prices:8080/prices-ws";
+
+    private ZuulWebSocketProperties properties = new ZuulWebSocketProperties();
+    private ZuulWebSocketProperties.WsBrokerage greetings = new ZuulWebSocketProperties.WsBrokerage();
+    private ZuulWebSocketProperties.WsBrokerage prices = new ZuulWebSocketProperties.WsBrokerage();
+    private WebSocketHandler delegate = mock(WebSocketHandler.class);
+    private WebSocketStompClient stompClient = mock(WebSocketStompClient.class);
+    private SimpMessagingTemplate messagingTemplate = mock(SimpMessagingTemplate.class);
+    private ProxyTargetResolver proxyTargetResolver = mock(ProxyTargetResolver.class);
+    private WebSocketSession userAgentSession = mock(WebSocketSession.class);
+    private StompSession greetingsSession = mock(StompSession.class);
+    private StompSession pricesSession = mock(StompSession.class);
+    private StompSession.Subscription greetingsSubscription = mock(StompSession.Subscription.class);
+    private StompSession.Subscription pricesSubscription = mock(StompSession.Subscription.class);
+
+    @Before
+    public void init() throws Exception {
+        greetings.setEndPoints(new String[]{"/ws"});
+        prices.setEndPoints(new String[]{"/prices-ws"});
+        Map<String, ZuulWebSocketProperties.WsBrokerage> brokerages = new LinkedHashMap<>();
+        brokerages.put("greetings", greetings);
+        brokerages.put("prices", prices);
+        properties.setBrokerages(brokerages);
+
+        when(userAgentSession.getId()).thenReturn("ua-1");
+        when(userAgentSession.getUri()).thenReturn(new URI("ws://gateway/ws"));
+        when(messagingTemplate.getUserDestinationPrefix()).thenReturn("/user/");
+        when(proxyTargetResolver.resolveTarget(greetings)).thenReturn(new URI("http://greetings:8080"));
+        when(proxyTargetResolver.resolveTarget(prices)).thenReturn(new URI("http://prices:8080"));
+        connects(GREETINGS_URI, greetingsSession, greetingsSubscription);
+        connects(PRICES_URI, pricesSession, pricesSubscription);
+    }
+
+    private void connects(String uri, StompSession session, StompSession.Subscription subscription) {
+        SettableListenableFuture<StompSession> future = new SettableListenableFuture<>();
+        future.set(session);
+        when(stompClient.connect(eq(uri), any(WebSocketHttpHeaders.class),
+                any(StompSessionHandler.class))).thenReturn(future);
+        when(session.isConnected()).thenReturn(true);
+        when(session.subscribe(any(StompHeaders.class), any(StompFrameHandler.class)))
+                .thenReturn(subscription);
+    }
+
+    private ProxyWebSocketHandler handler() {
+        properties.init();
+        return new ProxyWebSocketHandler(delegate, stompClient, null, messagingTemplate,
+                proxyTargetResolver, properties);
+    }
+
+    private static TextMessage frame(String command, String... headers) {
+        StringBuilder frame = new StringBuilder(command).append('\n');
+        for (String header : headers) {
+            frame.append(header).append('\n');
+        }
+        return new TextMessage(frame.append('\n').append('\0').toString());
+    }
+
+    private static StompHeaders destination(String destination) {
+        StompHeaders headers = new StompHeaders();
+        headers.setDestination(destination);
+        return headers;
+    }
+
+    @Test
+    public void destinationsRoutedToTheBrokerageOfTheirPrefix() throws Exception {
+        greetings.getDestinationRoutes().put("prices", new String[]{"/topic/prices", "/app/prices"});
+        ProxyWebSocketHandler handler = handler();
+        handler.afterConnectionEstablished(userAgentSession);
+
+        handler.handleMessage(userAgentSession, frame("CONNECT", "accept-version:1.2"));
+        handler.handleMessage(userAgentSession, frame("SUBSCRIBE", "id:sub-0",
+                "destination:/topic/greetings"));
+
+        verify(greetingsSession).subscribe(eq(destination("/topic/greetings")),
+                any(StompFrameHandler.class));
+        // the backend of a prefix is only connected once a frame goes to it
+        verify(stompClient, never()).connect(eq(PRICES_URI), any(WebSocketHttpHeaders.class),
+                any(StompSessionHandler.class));
+
+        handler.handleMessage(userAgentSession, frame("SUBSCRIBE", "id:sub-1",
+                "destination:/topic/prices.eur"));
+        handler.handleMessage(userAgentSession, frame("SEND", "destination:/app/prices"));
+
+        verify(pricesSession).subscribe(eq(destination("/topic/prices.eur")),
+                any(StompFrameHandler.class));
+        verify(pricesSession).send(eq(destination("/app/prices")), any());
+        verify(greetingsSession, never()).send(any(StompHeaders.class), any());
+
+        handler.handleMessage(userAgentSession, frame("UNSUBSCRIBE", "id:sub-1"));
+
+        verify(pricesSubscription).unsubscribe();
+        verify(greetingsSubscription, never()).unsubscribe();
+
+        handler.handleMessage(userAgentSession, frame("DISCONNECT"));
+
+        verify(greetingsSession).disconnect();
+        verify(pricesSession).disconnect();
+        assertThat(handler.getConnectionManagers().isEmpty(), is(true));
+    }
+
+    @Test
+    public void transactionsSpanTheBackendsOfPrefixes() throws Exception {
+        greetings.getDestinationRoutes().put("prices", new String[]{"/app/prices"});
+        ProxyWebSocketHandler handler = handler();
+        handler.afterConnectionEstablished(userAgentSession);
+        handler.handleMessage(userAgentSession, frame("CONNECT", "accept-version:1.2"));
+
+        handler.handleMessage(userAgentSession, frame("BEGIN", "transaction:tx-1"));
+        // the backend connected within the transaction joins it
+        handler.handleMessage(userAgentSession, frame("SEND", "destination:/app/prices",
+                "transaction:tx-1"));
+        handler.handleMessage(userAgentSession, frame("SEND", "destination:/app/greetings",
+                "transaction:tx-1"));
+
+        verify(pricesSession, never()).send(any(StompHeaders.class), any());
+        verify(greetingsSession, never()).send(any(StompHeaders.class), any());
+
+        handler.handleMessage(userAgentSession, frame("COMMIT", "transaction:tx-1"));
+
+        verify(pricesSession).send(eq(destination("/app/prices")), any());
+        verify(greetingsSession).send(eq(destination("/app/greetings")), any());
+    }
+
+    @Test
+    public void pureProxiedSessionsBypassTheLocalBroker() throws Exception {
+        greetings.setMode(ZuulWebSocketProperties.Mode.PURE_PROXY);
+        UserAgentMessageSender messageSender = mock(UserAgentMessageSender.class);
+        ProxyWebSocketHandler handler = handler();
+        handler.userAgentMessageSender(messageSender);
+        handler.afterConnectionEstablished(userAgentSession);
+
+        TextMessage connect = frame("CONNECT", "accept-version:1.2");
+        TextMessage subscribe = frame("SUBSCRIBE", "id:sub-0", "destination:/topic/greetings");
+        TextMessage send = frame("SEND", "destination:/app/greetings");
+        handler.handleMessage(userAgentSession, connect);
+        handler.handleMessage(userAgentSession, subscribe);
+        handler.handleMessage(userAgentSession, send);
+
+        // the local broker only sees the frames the session itself depends on
+        verify(delegate).handleMessage(userAgentSession, connect);
+        verify(delegate, never()).handleMessage(userAgentSession, subscribe);
+        verify(delegate, never()).handleMessage(userAgentSession, send);
+        verify(greetingsSession).send(eq(destination("/app/greetings")), any());
+
+        ArgumentCaptor<StompFrameHandler> frameHandler = ArgumentCaptor.forClass(StompFrameHandler.class);
+        verify(greetingsSession).subscribe(eq(destination("/topic/greetings")),
+                frameHandler.capture());
+        StompHeaders headers = destination("/topic/greetings");
+        frameHandler.getValue().handleFrame(headers, "hello".getBytes());
+
+        verify(messageSender).sendMessage(userAgentSession, "sub-0", headers, "hello".getBytes());
+        verify(messagingTemplate, never()).send(anyString(), any(Message.class));
+
+        TextMessage disconnect = frame("DISCONNECT");
+        handler.handleMessage(userAgentSession, disconnect);
+
+        verify(delegate).handleMessage(userAgentSession, disconnect);
+        verify(greetingsSession).disconnect();
+    }
+
+    /**
+     * Subscribes through the handler and returns the handler of the frames the proxied
+     * target sends to the subscription.
+     */
+    private StompFrameHandler subscribe(ProxyWebSocketHandler handler) throws Exception {
+        handler.afterConnectionEstablished(userAgentSession);
+        handler.handleMessage(userAgentSession, frame("CONNECT", "accept-version:1.2"));
+        handler.handleMessage(userAgentSession, frame("SUBSCRIBE", "id:sub-0",
+                "destination:/topic/greetings"));
+
+        ArgumentCaptor<StompFrameHandler> frameHandler = ArgumentCaptor.forClass(StompFrameHandler.class);
+        verify(greetingsSession).subscribe(eq(destination("/topic/greetings")),
+                frameHandler.capture());
+        return frameHandler.getValue();
+    }
+
+    @Test
+    public void directDeliveryByDefault() throws Exception {
+        UserAgentMessageSender messageSender = mock(UserAgentMessageSender.class);
+        ProxyWebSocketHandler handler = handler();
+        handler.userAgentMessageSender(messageSender);
+
+        StompHeaders headers = destination("/topic/greetings");
+        subscribe(handler).handleFrame(headers, "hello".getBytes());
+
+        verify(messageSender).sendMessage(userAgentSession, "sub-0", headers, "hello".getBytes());
+        verify(messagingTemplate, never()).send(anyString(), any(Message.class));
+    }
+
+    @Test
+    public void directDeliveryDisabledPublishesToLocalBroker() throws Exception {
+        greetings.setDirectDelivery(false);
+        UserAgentMessageSender messageSender = mock(UserAgentMessageSender.class);
+        ProxyWebSocketHandler handler = handler();
+        handler.userAgentMessageSender(messageSender);
+
+        subscribe(handler).handleFrame(destination("/topic/greetings"), "hello".getBytes());
+
+        verify(messagingTemplate).send(eq("/topic/greetings"), any(Message.class));
+        verify(messageSender, never()).sendMessage(any(WebSocketSession.class), anyString(),
+                any(StompHeaders.class), any());
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.socket;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketHttpHeaders;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.client.WebSocketClient;
+
+import java.net.URI;
+
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class ProxyWebSocketTunnelTests {
+    private static final String URI_STRING = "http://example.com/ws";
+
+    private ProxyWebSocketTunnel tunnel;
+
+    private WebSocketClient webSocketClient = mock(WebSocketClient.class);
+    private WebSocketSession userAgentSession = mock(WebSocketSession.class);
+    private WebSocketSession serverSession = mock(WebSocketSession.class);
+    private SettableListenableFuture<WebSocketSession> listenableFuture = new SettableListenableFuture<>();
+
+    @Before
+    public void init() throws Exception {
+        tunnel = new ProxyWebSocketTunnel(webSocketClient, userAgentSession, null, URI_STRING);
+
+        when(webSocketClient.doHandshake(tunnel, new WebSocketHttpHeaders(),
+                URI.create(URI_STRING))).thenReturn(listenableFuture);
+        when(userAgentSession.isOpen()).thenReturn(true);
+        when(serverSession.isOpen()).thenReturn(true);
+    }
+
+    @Test
+    public void relaysClientFramesAsIs() throws Exception {
+        BinaryMessage message = new BinaryMessage(new byte[]{'S', 'E', 'N', 'D', '\n', '\n', 0});
+
+        listenableFuture.set(serverSession);
+        tunnel.connect();
+        tunnel.sendMessage(message);
+
+        verify(serverSession).sendMessage(message);
+    }
+
+    @Test
+    public void holdsClientFramesUntilHandshakeCompletes() throws Exception {
+        TextMessage connect = new TextMessage("CONNECT\naccept-version:1.2\n\n\0");
+        TextMessage subscribe = new TextMessage("SUBSCRIBE\nid:0\ndestination:/topic/a\n\n\0");
+
+        tunnel.connect();
+        tunnel.sendMessage(connect);
+        tunnel.sendMessage(subscribe);
+        verify(serverSession, never()).sendMessage(connect);
+
+        listenableFuture.set(serverSession);
+
+        InOrder inOrder = inOrder(serverSession);
+        inOrder.verify(serverSession).sendMessage(connect);
+        inOrder.verify(serverSession).sendMessage(subscribe);
+    }
+
+    @Test
+    public void relaysServerFramesAsIs() throws Exception {
+        TextMessage message = new TextMessage("MESSAGE\ndestination:/topic/a\n\nhi\0");
+
+        listenableFuture.set(serverSession);
+        tunnel.connect();
+        tunnel.handleMessage(serverSession, message);
+
+        verify(userAgentSession).sendMessage(message);
+    }
+
+    @Test
+    public void closesClientWhenServerCloses() throws Exception {
+        listenableFuture.set(serverSession);
+        tunnel.connect();
+        tunnel.afterConnectionClosed(serverSession, CloseStatus.NO_CLOSE_FRAME);
+
+        verify(userAgentSession).close(CloseStatus.GOING_AWAY);
+    }
+}
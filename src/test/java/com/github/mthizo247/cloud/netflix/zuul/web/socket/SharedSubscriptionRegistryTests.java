@@ -0,0 +1,151 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.socket;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.stomp.StompFrameHandler;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.simp.stomp.StompSessionHandler;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.socket.WebSocketHttpHeaders;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+
+import java.lang.reflect.Type;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class SharedSubscriptionRegistryTests {
+    private static final String URI = "http://example.com/ws";
+    private static final byte[] BODY = "{\"price\":42}".getBytes();
+
+    private SimpMessagingTemplate messagingTemplate = mock(SimpMessagingTemplate.class);
+    private WebSocketStompClient stompClient = mock(WebSocketStompClient.class);
+    private WebSocketSession alice = mock(WebSocketSession.class);
+    private WebSocketSession bob = mock(WebSocketSession.class);
+    private StompSession serverSession = mock(StompSession.class);
+    private StompSession.Subscription subscription = mock(StompSession.Subscription.class);
+    private SettableListenableFuture<StompSession> listenableFuture = new SettableListenableFuture<>();
+    private UserAgentMessageSender messageSender = mock(UserAgentMessageSender.class);
+    private SharedSubscriptionRegistry registry = new SharedSubscriptionRegistry(
+            new ProxyStompSessionPool(stompClient), messageSender, mock(TaskScheduler.class));
+
+    @Before
+    public void init() throws Exception {
+        listenableFuture.set(serverSession);
+        when(stompClient.connect(eq(URI), eq(new WebSocketHttpHeaders()),
+                any(StompSessionHandler.class))).thenReturn(listenableFuture);
+        when(serverSession.subscribe(any(StompHeaders.class), any(StompFrameHandler.class)))
+                .thenReturn(subscription);
+        when(serverSession.isConnected()).thenReturn(true);
+        when(messagingTemplate.getUserDestinationPrefix()).thenReturn("/user/");
+    }
+
+    private ProxyWebSocketConnectionManager manager(WebSocketSession session) {
+        ProxyWebSocketConnectionManager manager = new ProxyWebSocketConnectionManager(
+                messagingTemplate, stompClient, session, null, URI + "?access_token=secret");
+        manager.messageSender(messageSender);
+        manager.sharedSubscriptions(registry, "/topic/prices.*");
+        return manager;
+    }
+
+    @Test
+    public void userAgentsShareOneBackendSubscription() throws Exception {
+        manager(alice).subscribe("sub-0", "/topic/prices.eur");
+        manager(bob).subscribe("sub-7", "/topic/prices.eur");
+
+        ArgumentCaptor<StompFrameHandler> handler = ArgumentCaptor.forClass(StompFrameHandler.class);
+        verify(serverSession, times(1)).subscribe(any(StompHeaders.class), handler.capture());
+        assertThat(registry.getSubscriberCount(URI, "/topic/prices.eur"), is(2));
+
+        StompHeaders headers = new StompHeaders();
+        Object payload = new Object();
+        when(messageSender.serialize(headers, payload))
+                .thenReturn(new UserAgentMessageSender.Frame(headers, BODY));
+        handler.getValue().handleFrame(headers, payload);
+
+        verify(messageSender, times(1)).serialize(headers, payload);
+        verify(messageSender).sendMessage(alice, "sub-0", headers, BODY);
+        verify(messageSender).sendMessage(bob, "sub-7", headers, BODY);
+    }
+
+    @Test
+    public void backendSubscriptionClosedWithLastSubscriber() throws Exception {
+        ProxyWebSocketConnectionManager aliceManager = manager(alice);
+        ProxyWebSocketConnectionManager bobManager = manager(bob);
+        aliceManager.subscribe("sub-0", "/topic/prices.eur");
+        bobManager.subscribe("sub-0", "/topic/prices.eur");
+
+        aliceManager.unsubscribe("sub-0");
+        verify(subscription, never()).unsubscribe();
+
+        bobManager.disconnect();
+        verify(subscription).unsubscribe();
+        verify(serverSession).disconnect();
+        assertThat(registry.getSubscriberCount(URI, "/topic/prices.eur"), is(0));
+    }
+
+    @Test
+    public void sharedSubscriptionMadeAgainWhenSessionLost() throws Exception {
+        ProxyWebSocketConnectionManager aliceManager = manager(alice);
+        aliceManager.subscribe("sub-0", "/topic/prices.eur");
+        manager(bob).subscribe("sub-7", "/topic/prices.eur");
+
+        ArgumentCaptor<StompSessionHandler> pooled = ArgumentCaptor.forClass(StompSessionHandler.class);
+        verify(stompClient).connect(eq(URI), eq(new WebSocketHttpHeaders()), pooled.capture());
+        pooled.getValue().handleTransportError(serverSession, new IllegalStateException("lost"));
+
+        verify(serverSession, times(2)).subscribe(any(StompHeaders.class), any(StompFrameHandler.class));
+        assertThat(registry.getSubscriberCount(URI, "/topic/prices.eur"), is(2));
+        // the user agent's own session is left alone
+        assertThat(aliceManager.isConnected(), is(false));
+        verify(stompClient, never()).connect(eq(URI + "?access_token=secret"),
+                any(WebSocketHttpHeaders.class), any(StompSessionHandler.class));
+    }
+
+    @Test
+    public void passthroughUserAgentsShareSubscriptionTakingBytes() throws Exception {
+        manager(alice).subscribe("sub-0", "/topic/prices.eur");
+        ProxyWebSocketConnectionManager bobManager = manager(bob);
+        bobManager.payloadPassthrough(true);
+        bobManager.subscribe("sub-7", "/topic/prices.eur");
+
+        ArgumentCaptor<StompFrameHandler> handler = ArgumentCaptor.forClass(StompFrameHandler.class);
+        verify(serverSession, times(2)).subscribe(any(StompHeaders.class), handler.capture());
+        StompHeaders headers = new StompHeaders();
+        assertThat(handler.getAllValues().get(0).getPayloadType(headers), is((Type) Object.class));
+        assertThat(handler.getAllValues().get(1).getPayloadType(headers), is((Type) byte[].class));
+        assertThat(registry.getSubscriberCount(URI, "/topic/prices.eur"), is(2));
+    }
+}
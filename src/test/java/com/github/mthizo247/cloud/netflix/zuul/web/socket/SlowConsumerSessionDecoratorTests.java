@@ -0,0 +1,227 @@
+/*
+ * Copyright 2002-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.mthizo247.cloud.netflix.zuul.web.socket;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+import org.springframework.web.socket.sockjs.transport.SockJsSession;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+/**
+ * @author Ronald Mthombeni
+ * @author Salman Noor
+ */
+public class SlowConsumerSessionDecoratorTests {
+    private static final TextMessage A1 = frame("/topic/a", "1");
+    private static final TextMessage A2 = frame("/topic/a", "2");
+    private static final TextMessage B1 = frame("/topic/b", "1");
+    private static final TextMessage B2 = frame("/topic/b", "2");
+
+    private ZuulWebSocketProperties.WsBrokerage wsBrokerage = new ZuulWebSocketProperties.WsBrokerage();
+    private ZuulWebSocketMetrics metrics = new ZuulWebSocketMetrics();
+    private WebSocketSession userAgentSession = mock(WebSocketSession.class);
+
+    private static TextMessage frame(String destination, String body) {
+        return new TextMessage("MESSAGE\nsubscription:sub-0\ndestination:" + destination
+                + "\nmessage-id:" + destination + body + "\n\n" + body + "\0");
+    }
+
+    @Before
+    public void init() {
+        wsBrokerage.setId("hello");
+        wsBrokerage.getSlowConsumer().setEnabled(true);
+        // room for two frames
+        wsBrokerage.getSlowConsumer().setBufferSizeLimit(A1.getPayloadLength() * 2);
+    }
+
+    /**
+     * Sends the given frames while the first one is being written to the user agent
+     * and returns the frames written in the end.
+     */
+    private List<WebSocketMessage<?>> sendToSlowConsumer(final TextMessage... frames)
+            throws IOException {
+        final List<WebSocketMessage<?>> written = new ArrayList<>();
+        final SlowConsumerSessionDecorator[] decorator = new SlowConsumerSessionDecorator[1];
+        WebSocketSession slowSession = new WebSocketSessionDecorator(userAgentSession) {
+            @Override
+            public void sendMessage(WebSocketMessage<?> message) throws IOException {
+                written.add(message);
+                if (written.size() == 1) {
+                    for (TextMessage frame : Arrays.copyOfRange(frames, 1, frames.length)) {
+                        decorator[0].sendMessage(frame);
+                    }
+                }
+            }
+        };
+        decorator[0] = SlowConsumerSessionDecorator.decorate(slowSession, wsBrokerage, metrics,
+                new SyncTaskExecutor());
+
+        decorator[0].sendMessage(frames[0]);
+        assertThat(decorator[0].getBufferSize(), is(0));
+        return written;
+    }
+
+    @Test
+    public void dropNewest() throws Exception {
+        wsBrokerage.getSlowConsumer().setOverflowPolicy(ZuulWebSocketProperties.OverflowPolicy.DROP_NEWEST);
+
+        List<WebSocketMessage<?>> written = sendToSlowConsumer(A1, B1, A2, B2);
+
+        assertThat(written, is(Arrays.<WebSocketMessage<?>>asList(A1, B1, A2)));
+        assertThat(metrics.getCount(wsBrokerage, "slow-consumer.drop-newest"), is(1L));
+    }
+
+    @Test
+    public void dropOldest() throws Exception {
+        wsBrokerage.getSlowConsumer().setOverflowPolicy(ZuulWebSocketProperties.OverflowPolicy.DROP_OLDEST);
+
+        List<WebSocketMessage<?>> written = sendToSlowConsumer(A1, B1, A2, B2);
+
+        assertThat(written, is(Arrays.<WebSocketMessage<?>>asList(A1, A2, B2)));
+        assertThat(metrics.getCount(wsBrokerage, "slow-consumer.drop-oldest"), is(1L));
+    }
+
+    @Test
+    public void conflateKeepsLatestPerDestination() throws Exception {
+        wsBrokerage.getSlowConsumer().setOverflowPolicy(ZuulWebSocketProperties.OverflowPolicy.CONFLATE);
+
+        List<WebSocketMessage<?>> written = sendToSlowConsumer(A1, B1, A2, B2);
+
+        assertThat(written, is(Arrays.<WebSocketMessage<?>>asList(A1, B2, A2)));
+        assertThat(metrics.getCount(wsBrokerage, "slow-consumer.conflate"), is(1L));
+    }
+
+    @Test
+    public void conflatedDestinationsReplacedUntilWritten() throws Exception {
+        wsBrokerage.getSlowConsumer().setOverflowPolicy(ZuulWebSocketProperties.OverflowPolicy.DROP_NEWEST);
+        wsBrokerage.getSlowConsumer().setBufferSizeLimit(A1.getPayloadLength() * 10);
+        wsBrokerage.setConflatedDestinations(new String[] { "/topic/*" });
+
+        List<WebSocketMessage<?>> written = sendToSlowConsumer(A1, B1, A2, B2);
+
+        assertThat(written, is(Arrays.<WebSocketMessage<?>>asList(A1, B2, A2)));
+        assertThat(metrics.getCount(wsBrokerage, "slow-consumer.drop-newest"), is(0L));
+    }
+
+    @Test
+    public void closeSlowConsumer() throws Exception {
+        wsBrokerage.getSlowConsumer().setOverflowPolicy(ZuulWebSocketProperties.OverflowPolicy.CLOSE);
+        wsBrokerage.getSlowConsumer().setCloseStatusCode(4000);
+
+        List<WebSocketMessage<?>> written = sendToSlowConsumer(A1, B1, A2, B2);
+
+        assertThat(written, is(Arrays.<WebSocketMessage<?>>asList(A1)));
+        verify(userAgentSession).close(new CloseStatus(4000, "Slow consumer"));
+        assertThat(metrics.getCount(wsBrokerage, "slow-consumer.close"), is(1L));
+    }
+
+    @Test
+    public void stuckWriteClosesSessionWhateverThePolicy() throws Exception {
+        wsBrokerage.getSlowConsumer().setOverflowPolicy(ZuulWebSocketProperties.OverflowPolicy.DROP_NEWEST);
+        wsBrokerage.getSlowConsumer().setSendTimeLimit(10);
+        wsBrokerage.getSlowConsumer().setCloseStatusCode(4000);
+        final SlowConsumerSessionDecorator[] decorator = new SlowConsumerSessionDecorator[1];
+        WebSocketSession stuckSession = new WebSocketSessionDecorator(userAgentSession) {
+            @Override
+            public void sendMessage(WebSocketMessage<?> message) throws IOException {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                decorator[0].sendMessage(B1);
+            }
+        };
+        decorator[0] = SlowConsumerSessionDecorator.decorate(stuckSession, wsBrokerage, metrics,
+                new SyncTaskExecutor());
+
+        decorator[0].sendMessage(A1);
+
+        verify(userAgentSession).close(new CloseStatus(4000, "Slow consumer"));
+        assertThat(metrics.getCount(wsBrokerage, "slow-consumer.close"), is(1L));
+        assertThat(metrics.getCount(wsBrokerage, "slow-consumer.drop-newest"), is(0L));
+    }
+
+    @Test
+    public void stuckWriteClosedWithoutFurtherFrames() throws Exception {
+        wsBrokerage.getSlowConsumer().setSendTimeLimit(10);
+        wsBrokerage.getSlowConsumer().setCloseStatusCode(4000);
+        final CountDownLatch closed = new CountDownLatch(1);
+        WebSocketSession stuckSession = new WebSocketSessionDecorator(userAgentSession) {
+            @Override
+            public void sendMessage(WebSocketMessage<?> message) throws IOException {
+                try {
+                    closed.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+
+            @Override
+            public void close(CloseStatus status) throws IOException {
+                super.close(status);
+                closed.countDown();
+            }
+        };
+        TaskScheduler taskScheduler = mock(TaskScheduler.class);
+        SlowConsumerSessionDecorator decorator = SlowConsumerSessionDecorator.decorate(
+                stuckSession, wsBrokerage, metrics, new SimpleAsyncTaskExecutor(), taskScheduler);
+
+        decorator.sendMessage(A1);
+
+        ArgumentCaptor<Runnable> check = ArgumentCaptor.forClass(Runnable.class);
+        ArgumentCaptor<Date> at = ArgumentCaptor.forClass(Date.class);
+        verify(taskScheduler, timeout(1000)).schedule(check.capture(), at.capture());
+        Thread.sleep(Math.max(0, at.getValue().getTime() - System.currentTimeMillis()) + 1);
+        check.getValue().run();
+
+        assertTrue(closed.await(1, TimeUnit.SECONDS));
+        verify(userAgentSession).close(new CloseStatus(4000, "Slow consumer"));
+        assertThat(metrics.getCount(wsBrokerage, "slow-consumer.close"), is(1L));
+    }
+
+    @Test
+    public void sockJsSessionsStaySockJsSessions() {
+        WebSocketSession sockJsSession = mock(SockJsSession.class);
+
+        assertTrue(SlowConsumerSessionDecorator.decorate(sockJsSession, wsBrokerage,
+                metrics, new SyncTaskExecutor()) instanceof SockJsSession);
+    }
+}
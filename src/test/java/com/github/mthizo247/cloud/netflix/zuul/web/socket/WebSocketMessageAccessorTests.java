@@ -16,10 +16,22 @@
 
 package com.github.mthizo247.cloud.netflix.zuul.web.socket;
 
+import static org.hamcrest.Matchers.lessThan;
 import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collections;
 
 import org.junit.Test;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.web.socket.BinaryMessage;
 
 /**
  * @author Ronald Mthombeni
@@ -54,4 +66,180 @@ public class WebSocketMessageAccessorTests {
 		assertThat(accessor.getDestination(), is("/app/hello"));
 		assertThat(accessor.getPayload(), is("{\"name\":\"hell9\"}"));
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void allHeaders() throws Exception {
+		accessor = WebSocketMessageAccessor.create("SEND\n" + "destination:/app/hello\n"
+				+ "x-note:a\\cb\n" + "receipt:r-1\n" + "x-note:ignored\n" + "\n" + "hi\0");
+
+		StompHeaders headers = accessor.getHeaders();
+		assertThat(headers.getDestination(), is("/app/hello"));
+		assertThat(headers.get("x-note"), is(Collections.singletonList("a:b")));
+		assertThat(headers.getReceipt(), is("r-1"));
+		assertThat(headers.size(), is(3));
+	}
+
+	@Test
+	public void heartbeat() throws Exception {
+		accessor = WebSocketMessageAccessor.create("\n");
+
+		assertThat(accessor.getCommand(), is(nullValue()));
+		assertThat(accessor.getStompCommand(), is(nullValue()));
+		assertThat(accessor.getDestination(), is(nullValue()));
+		assertThat(accessor.getPayload(), is(nullValue()));
+	}
+
+	@Test
+	public void leadingEolsAndCarriageReturns() throws Exception {
+		accessor = WebSocketMessageAccessor.create("\r\n\nsend\r\n"
+				+ "destination:/app/hello\r\n" + "\r\n" + "hi\0");
+
+		assertThat(accessor.getStompCommand(), is(StompCommand.SEND));
+		assertThat(accessor.getDestination(), is("/app/hello"));
+		assertThat(accessor.getPayload(), is("hi"));
+	}
+
+	@Test
+	public void escapedHeaders() throws Exception {
+		accessor = WebSocketMessageAccessor.create("SEND\n"
+				+ "destination:/app/a\\cb\n" + "x-note:line\\nbreak\\\\\n" + "\n\0");
+
+		assertThat(accessor.getDestination(), is("/app/a:b"));
+		assertThat(accessor.getHeader("x-note"), is("line\nbreak\\"));
+	}
+
+	@Test
+	public void connectHeadersAreNotUnescaped() throws Exception {
+		accessor = WebSocketMessageAccessor.create("CONNECT\n" + "passcode:a\\cb\n" + "\n\0");
+
+		assertThat(accessor.getHeader("passcode"), is("a\\cb"));
+	}
+
+	@Test
+	public void firstRepeatedHeaderWins() throws Exception {
+		accessor = WebSocketMessageAccessor.create("SEND\n" + "destination:/app/first\n"
+				+ "destination:/app/second\n" + "\n\0");
+
+		assertThat(accessor.getDestination(), is("/app/first"));
+	}
+
+	@Test
+	public void headerNamesMatchExactly() throws Exception {
+		accessor = WebSocketMessageAccessor.create("SEND\n" + "destination-x:/app/x\n"
+				+ "destination:/app/y\n" + "\n" + "destination:/app/body\0");
+
+		assertThat(accessor.getDestination(), is("/app/y"));
+		assertThat(accessor.getHeader("destination:"), is("/app/y"));
+		assertThat(accessor.getHeader("receipt"), is(nullValue()));
+	}
+
+	@Test
+	public void multiLineNulTerminatedBody() throws Exception {
+		accessor = WebSocketMessageAccessor.create("SEND\n" + "destination:/app/hello\n"
+				+ "\n" + "line one\n\nline two\0\n\n");
+
+		assertThat(accessor.getPayload(), is("line one\n\nline two"));
+	}
+
+	@Test
+	public void contentLengthBodyMayContainNul() throws Exception {
+		accessor = WebSocketMessageAccessor.create("SEND\n" + "destination:/app/hello\n"
+				+ "content-length:5\n" + "\n" + "a\0b\0c\0");
+
+		assertThat(accessor.getContentLength(), is(5));
+		assertThat(accessor.getPayload(), is("a\0b\0c"));
+	}
+
+	@Test
+	public void contentLengthCountsUtf8Octets() throws Exception {
+		accessor = WebSocketMessageAccessor.create("SEND\n" + "destination:/app/hello\n"
+				+ "content-length:6\n" + "\n" + "\u00e9\u20ac!\0");
+
+		assertThat(accessor.getPayload(), is("\u00e9\u20ac!"));
+	}
+
+	@Test
+	public void binarySend() throws Exception {
+		byte[] body = new byte[] { 8, 0, 0x0A, (byte) 0xFF, 0 };
+		accessor = WebSocketMessageAccessor
+				.create(new BinaryMessage(binaryFrame("SEND\n" + "destination:/app/proto\n"
+						+ "content-type:application/x-protobuf\n" + "content-length:5\n" + "\n",
+						body)));
+
+		assertThat(accessor.isBinary(), is(true));
+		assertThat(accessor.getStompCommand(), is(StompCommand.SEND));
+		assertThat(accessor.getDestination(), is("/app/proto"));
+		assertThat(accessor.getHeader("content-type"), is("application/x-protobuf"));
+		assertThat(accessor.getPayloadBytes(), is(body));
+	}
+
+	@Test
+	public void binaryFrameWithoutContentLengthEndsAtNul() throws Exception {
+		ByteBuffer buffer = ByteBuffer
+				.wrap(binaryFrame("\nsend\r\n" + "destination:/app/caf\u00e9\n" + "\n",
+						"hi".getBytes(Charset.forName("UTF-8"))));
+
+		accessor = WebSocketMessageAccessor.create(buffer);
+
+		assertThat(accessor.getStompCommand(), is(StompCommand.SEND));
+		assertThat(accessor.getDestination(), is("/app/caf\u00e9"));
+		assertThat(accessor.getPayload(), is("hi"));
+		assertThat(buffer.position(), is(0));
+	}
+
+	@Test
+	public void textFramePayloadBytesAreUtf8() throws Exception {
+		accessor = WebSocketMessageAccessor.create("SEND\n" + "destination:/app/hello\n"
+				+ "\n" + "\u20ac\0");
+
+		assertThat(accessor.isBinary(), is(false));
+		assertThat(accessor.getPayloadBytes(), is("\u20ac".getBytes(Charset.forName("UTF-8"))));
+	}
+
+	private static byte[] binaryFrame(String headers, byte[] body) {
+		byte[] head = headers.getBytes(Charset.forName("UTF-8"));
+		ByteBuffer frame = ByteBuffer.allocate(head.length + body.length + 1);
+		frame.put(head).put(body).put((byte) 0);
+		return frame.array();
+	}
+
+	@Test
+	public void parsingAllocatesOnlyRequestedValues() throws Exception {
+		ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+		assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threadMXBean;
+		assumeTrue(allocations.isThreadAllocatedMemorySupported());
+		allocations.setThreadAllocatedMemoryEnabled(true);
+
+		String frame = "SEND\n" + "destination:/app/prices\n" + "content-type:application/json\n"
+				+ "x-correlation-id:3f1a2b\n" + "content-length:32\n" + "\n"
+				+ "{\"symbol\":\"ABC\",\"price\":101.25}\0";
+		int frames = 20000;
+		long checksum = parse(frame, frames);
+
+		long threadId = Thread.currentThread().getId();
+		long perFrame = Long.MAX_VALUE;
+		// the lowest of a few rounds, compilation may still allocate in the first ones
+		for (int round = 0; round < 3; round++) {
+			long before = allocations.getThreadAllocatedBytes(threadId);
+			checksum += parse(frame, frames);
+			perFrame = Math.min(perFrame,
+					(allocations.getThreadAllocatedBytes(threadId) - before) / frames);
+		}
+
+		assertThat(checksum > 0, is(true));
+		// the accessor itself plus the destination value, the frame is never split up
+		assertThat(perFrame, lessThan(160L));
+	}
+
+	private long parse(String frame, int frames) {
+		long checksum = 0;
+		for (int i = 0; i < frames; i++) {
+			WebSocketMessageAccessor frameAccessor = WebSocketMessageAccessor.create(frame);
+			if (frameAccessor.getStompCommand() == StompCommand.SEND) {
+				checksum += frameAccessor.getDestination().length();
+			}
+		}
+		return checksum;
+	}
+}
@@ -63,4 +63,28 @@ public class ZuulWebSocketPropertiesTests {
 
 		assertThat(brokerage.getId(), is("foo"));
 	}
-}
\ No newline at end of file
+
+	@Test(expected = IllegalStateException.class)
+	public void destinationsRoutedToUnknownBrokerage() throws Exception {
+		ZuulWebSocketProperties.WsBrokerage brokerage = new ZuulWebSocketProperties.WsBrokerage();
+		brokerage.getDestinationRoutes().put("quotes", new String[] { "/topic/quotes/" });
+		Map<String, ZuulWebSocketProperties.WsBrokerage> brokerages = new HashMap<>();
+		brokerages.put("foo", brokerage);
+
+		properties.setBrokerages(brokerages);
+
+		properties.init();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void userDestinationsNotShared() throws Exception {
+		ZuulWebSocketProperties.WsBrokerage brokerage = new ZuulWebSocketProperties.WsBrokerage();
+		brokerage.setSharedDestinations(new String[] { "/topic/news", "/user/queue/*" });
+		Map<String, ZuulWebSocketProperties.WsBrokerage> brokerages = new HashMap<>();
+		brokerages.put("foo", brokerage);
+
+		properties.setBrokerages(brokerages);
+
+		properties.init();
+	}
+}